@@ -0,0 +1,149 @@
+package com.redislabs.sa.ot.rouws;
+
+import com.redislabs.sa.ot.util.JitteredBackoff;
+import com.redislabs.sa.ot.util.LettuceConnectionHelper;
+import com.redislabs.sa.ot.util.ReconnectMetrics;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking version of DummyOrderWriter used by the lettuce engine
+ * It writes the same events to the same streams, but each writer is a chain of callbacks on the shared scheduler
+ * The per-customer order state is read with a single HMGET (instead of EXISTS + HINCRBY + HGET)
+ * and the state update is sent together with the XADD
+ * A failed event is retried after a jittered backoff (not right away) so a lost connection does not cause a reconnect storm
+ */
+public class AsyncDummyOrderWriter {
+    private LettuceConnectionHelper connectionHelper;
+    private RedisAsyncCommands<String,String> async;
+    private DummyOrderWriter eventBuilder = new DummyOrderWriter();
+    private int routingValueCount=2;//default is all events go in 2 streams
+    private long sleepTime = 50l;//milliseconds
+    private long totalNumberToWrite = 1000;
+    private String streamNameBase;
+    private AtomicLong totalWrittenCounter = new AtomicLong();
+    private OrderEventCodec payloadCodec = OrderEventCodec.forName(OrderEventCodec.FIELDS);
+    private final JitteredBackoff backoff = new JitteredBackoff(); // only used by this writer's chain - one step at a time
+
+    public AsyncDummyOrderWriter setRoutingValueCount(int routingValueCount){
+        this.routingValueCount=routingValueCount;
+        eventBuilder.setRoutingValueCount(routingValueCount);
+        return this;
+    }
+
+    public AsyncDummyOrderWriter setStreamNameBase(String streamNameBase){
+        this.streamNameBase=streamNameBase;
+        System.out.println(this.getClass().getName()+"... setStreamBase() "+streamNameBase);
+        return this;
+    }
+
+    public AsyncDummyOrderWriter setConnectionHelper(LettuceConnectionHelper connectionHelper){
+        this.connectionHelper=connectionHelper;
+        this.async=connectionHelper.getAsyncCommands();
+        return this;
+    }
+
+    public AsyncDummyOrderWriter setPayloadCodec(OrderEventCodec payloadCodec){
+        this.payloadCodec=payloadCodec;
+        return this;
+    }
+
+    public AsyncDummyOrderWriter setWorkloadModel(OrderWorkloadModel workloadModel, int writerIndex){
+        eventBuilder.setWorkloadModel(workloadModel, writerIndex);
+        return this;
+    }
+
+    public AsyncDummyOrderWriter setTotalNumberToWrite(long totalNumberToWrite){
+        this.totalNumberToWrite=totalNumberToWrite;
+        eventBuilder.setTotalNumberToWrite(totalNumberToWrite);
+        return this;
+    }
+
+    public AsyncDummyOrderWriter setSleepTime(long sleepTime){
+        this.sleepTime=sleepTime;
+        return this;
+    }
+
+    public void kickOffStreamEvents(){
+        connectionHelper.getScheduler().execute(this::writeNextEvent);
+    }
+
+    private void writeNextEvent(){
+        if(totalWrittenCounter.get()>=totalNumberToWrite){
+            System.out.println(this.getClass().getName()+": Wrote "+totalWrittenCounter.get()+" messages.  Done.");
+            return;
+        }
+        //The number of streams is equal to routingValueCount
+        int streamID = eventBuilder.nextCustomerID();
+        String hashKeyName = eventBuilder.getRouteEnrichedHashKeyName(routingValueCount,streamNameBase,streamID);
+        String streamName = eventBuilder.getRouteEnrichedStreamName(routingValueCount,streamNameBase,streamID);
+        buildCustomerOrderEvent(hashKeyName)
+                .thenCompose(entryMap -> async.xadd(streamName, payloadCodec.encode(entryMap)).toCompletableFuture())
+                .whenComplete((id, t) -> {
+                    long delayMillis = sleepTime;
+                    if (t != null) {
+                        System.out.println(this.getClass().getName() + " failed to write to " + streamName + ": " + t.getMessage());
+                        ReconnectMetrics.GLOBAL.recordConnectionFailure();
+                        delayMillis = Math.max(sleepTime, backoff.nextDelayMillis());
+                    } else {
+                        totalWrittenCounter.incrementAndGet();
+                        if (backoff.getAttempt() > 0) {
+                            ReconnectMetrics.GLOBAL.recordReconnect();
+                            backoff.reset();
+                        }
+                    }
+                    connectionHelper.getScheduler().schedule(this::writeNextEvent, delayMillis, TimeUnit.MILLISECONDS);
+                });
+    }
+
+    private CompletableFuture<HashMap<String,String>> buildCustomerOrderEvent(String hashKeyName){
+        String orderIDBase = eventBuilder.getOrderIDBase(hashKeyName);
+        return async.hmget(hashKeyName,"stage","orderSeed").toCompletableFuture().thenCompose(state -> {
+            HashMap<String,String> entryMap = new HashMap<>();
+            String storedStage = valueOf(state,0);
+            String storedSeed = valueOf(state,1);
+            boolean newCustomer = (storedStage==null && storedSeed==null);
+            int nextStage = DummyOrderWriter.STAGE_NEW;
+            if(eventBuilder.hasWorkloadModel()){
+                nextStage = eventBuilder.nextModelledStage(storedStage);
+                entryMap.put("stage",OrderWorkloadModel.STAGES[nextStage]);
+                return saveStage(hashKeyName, nextStage, nextStage==OrderWorkloadModel.NEW, entryMap, orderIDBase, storedSeed);
+            }
+            if(!newCustomer){
+                nextStage = (storedStage==null ? 0 : Integer.parseInt(storedStage)) + 1;
+                if(nextStage>=5){//cancelled or incremented beyond available options
+                    nextStage = DummyOrderWriter.STAGE_NEW;
+                }
+            }
+            nextStage = eventBuilder.putStage(entryMap,nextStage,newCustomer);
+            return saveStage(hashKeyName, nextStage, nextStage==DummyOrderWriter.STAGE_NEW, entryMap, orderIDBase, storedSeed);
+        });
+    }
+
+    // the event is only complete once the stage is stored - a failed HSET fails the event (and the next HMGET sees the new stage)
+    private CompletableFuture<HashMap<String,String>> saveStage(String hashKeyName, int nextStage, boolean newOrder,
+                                                               HashMap<String,String> entryMap, String orderIDBase, String storedSeed){
+        CompletableFuture<Boolean> stageSaved = async.hset(hashKeyName,"stage",""+nextStage).toCompletableFuture();
+        if(newOrder){
+            eventBuilder.putNewOrderDetails(entryMap);
+            return stageSaved.thenCombine(async.hincrby(hashKeyName,"orderSeed",1).toCompletableFuture(), (saved, orderSeed) -> {
+                entryMap.put("orderID",orderIDBase+"__"+orderSeed);
+                return entryMap;
+            });
+        }
+        //we are adding the orderID to the entry that captures any other order stage
+        entryMap.put("orderID",orderIDBase+"__"+(storedSeed==null?0:storedSeed));
+        return stageSaved.thenApply(saved -> entryMap);
+    }
+
+    private static String valueOf(List<KeyValue<String,String>> values, int index){
+        KeyValue<String,String> kv = values.get(index);
+        return kv.hasValue() ? kv.getValue() : null;
+    }
+}
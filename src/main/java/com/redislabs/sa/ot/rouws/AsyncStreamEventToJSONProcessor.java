@@ -0,0 +1,135 @@
+package com.redislabs.sa.ot.rouws;
+
+import com.redislabs.sa.ot.streamutils.AsyncStreamEventMapProcessor;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.output.ArrayOutput;
+import io.lettuce.core.output.StatusOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.ProtocolKeyword;
+import redis.clients.jedis.resps.StreamEntry;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking version of StreamEventToJSONProcessorV2 used by the lettuce engine
+ * Instead of EXISTS followed by either JSON.ARRAPPEND or two JSON.SET calls it optimistically appends:
+ *  - JSON.ARRAPPEND succeeds for every customer that already has a document (the common case)
+ *  - when the document does not exist yet it is created in one JSON.SET ... NX
+ *  - if another consumer created it in between (NX returns nil) the append is retried
+ */
+public class AsyncStreamEventToJSONProcessor implements AsyncStreamEventMapProcessor {
+    private RedisAsyncCommands<String,String> async = null;
+    private boolean verbose = false;
+    private String JSON_KEY_PREFIX="customer_order_history:";
+    private int skipSize=1000;
+    private final AtomicLong printcounter = new AtomicLong();
+
+    enum JsonKeyword implements ProtocolKeyword {
+        ARRAPPEND("JSON.ARRAPPEND"), SET("JSON.SET");
+
+        private final byte[] bytes;
+
+        JsonKeyword(String name){
+            this.bytes = name.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+
+    public AsyncStreamEventToJSONProcessor setJSONKeyPrefix(String jsonKeyPrefix){
+        this.JSON_KEY_PREFIX=jsonKeyPrefix;
+        return this;
+    }
+
+    public AsyncStreamEventToJSONProcessor setVerbose(boolean verbose){
+        this.verbose=verbose;
+        return this;
+    }
+
+    public AsyncStreamEventToJSONProcessor setPrintoutSkipSize(int skipSize){
+        this.skipSize = skipSize;
+        return this;
+    }
+
+    public AsyncStreamEventToJSONProcessor setAsyncCommands(RedisAsyncCommands<String,String> async){
+        this.async=async;
+        return this;
+    }
+
+    @Override
+    public CompletionStage<Void> processStreamEntry(String streamName, StreamEntry payload) {
+        printMessageSparingly(() -> "AsyncStreamEventToJSONProcessor.processStreamEntry..."+payload);
+        String jsonKeyName = JSON_KEY_PREFIX+streamName;
+        Map<String,String> orderEvent = OrderEventCodec.decode(payload.getFields()); // entries may be in either payload layout
+        byte[] orderStageJson = OrderStageJsonEncoder.get().encodeOrderStage(orderEvent);
+        return arrAppend(jsonKeyName, orderStageJson)
+                .handle((reply, t) -> {
+                    if (t == null) {
+                        return Boolean.TRUE;
+                    }
+                    if (isMissingDocument(t)) {
+                        return Boolean.FALSE; // the document does not exist yet
+                    }
+                    // timeouts, disconnects, WRONGTYPE...: the append may have been applied - creating the document could write the stage twice
+                    throw t instanceof CompletionException ? (CompletionException) t : new CompletionException(t);
+                })
+                .thenCompose(appended -> {
+                    if (appended) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    byte[] documentJson = OrderStageJsonEncoder.get()
+                            .encodeNewDocument(StreamEventToJSONProcessorV2.getRegionID(streamName), orderEvent);
+                    return setIfAbsent(jsonKeyName, documentJson)
+                            .thenCompose(status -> "OK".equals(status) ?
+                                    CompletableFuture.completedFuture(null) :
+                                    arrAppend(jsonKeyName, orderStageJson).thenApply(ignored -> null));
+                })
+                .thenApply(ignored -> {
+                    printMessageSparingly(() -> "Changed this JSON Object in redis: " + jsonKeyName);
+                    return null;
+                });
+    }
+
+    // the error JSON.ARRAPPEND replies with when the key does not exist - anything else is passed on
+    static boolean isMissingDocument(Throwable t){
+        Throwable cause = t instanceof CompletionException && t.getCause()!=null ? t.getCause() : t;
+        if(!(cause instanceof RedisCommandExecutionException) || cause.getMessage()==null){
+            return false;
+        }
+        String message = cause.getMessage().toLowerCase();
+        return message.contains("doesn't exist") || message.contains("does not exist");
+    }
+
+    private CompletableFuture<List<Object>> arrAppend(String jsonKeyName, byte[] orderStageJson){
+        CommandArgs<String,String> args = new CommandArgs<>(StringCodec.UTF8)
+                .addKey(jsonKeyName).add("$.order_stages").add(orderStageJson);
+        return async.dispatch(JsonKeyword.ARRAPPEND, new ArrayOutput<>(StringCodec.UTF8), args).toCompletableFuture();
+    }
+
+    private CompletableFuture<String> setIfAbsent(String jsonKeyName, byte[] documentJson){
+        CommandArgs<String,String> args = new CommandArgs<>(StringCodec.UTF8)
+                .addKey(jsonKeyName).add("$").add(documentJson).add("NX");
+        return async.dispatch(JsonKeyword.SET, new StatusOutput<>(StringCodec.UTF8), args).toCompletableFuture();
+    }
+
+    void printMessageSparingly(Supplier<String> message){
+        if(!verbose){
+            return;
+        }
+        if(printcounter.getAndIncrement()%skipSize==0) {
+            System.out.println("AsyncStreamEventToJSONProcessor.message printed 1 time for each "+skipSize+" events:\n"+message.get());
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.redislabs.sa.ot.rouws;
+
+import com.redislabs.sa.ot.streamutils.RedisStreamWorkerGroupHelperV2;
+import com.redislabs.sa.ot.streamutils.StreamEventMapProcessorV2;
+import com.redislabs.sa.ot.util.JedisConnectionHelper;
+import com.redislabs.sa.ot.util.JedisConnectionHelperSettings;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+import redis.clients.jedis.resps.StreamEntry;
+import redis.clients.jedis.resps.StreamGroupInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sweeps a matrix of workers x writers x routing value counts x batch sizes
+ * For each combination it starts DummyOrderWriters and StreamEventToJSONProcessorV2 workers against Redis
+ * (a local redis-server is started when --redisserverpath is given) and measures:
+ *  - sustained events/sec (entries processed / time from the first write to the last processed entry)
+ *  - consumer lag (the highest pending + lag summed across the streams of a run, sampled every second)
+ *  - end-to-end latency percentiles (time of processing - time encoded in the stream entry ID)
+ * Results are written to <reportfile>.csv and <reportfile>.json so runs can be compared over time
+ *
+ * Each run uses its own stream name base so runs do not see each other's entries
+ * and its keys (streams, writer hashes and JSON documents) are deleted once it is measured - every run starts from the same dataset
+ * The processors write JSON documents, so the server must have the JSON module loaded
+ * (use --redisserverargs "--loadmodule /path/to/rejson.so" when starting a local server)
+ *
+ * mvn compile exec:java -Dexec.mainClass=com.redislabs.sa.ot.rouws.BenchmarkRunner -Dexec.cleanupDaemonThreads=false -Dexec.args="--host localhost --port 6379 --workers 1,4 --writers 1,8 --routingvaluecounts 2,50 --batchsizes 10,100"
+ */
+public class BenchmarkRunner {
+    static String HOST = "localhost";
+    static int PORT = 6379;
+    static String REDIS_SERVER_PATH = null;
+    static String REDIS_SERVER_ARGS = "";
+    static int[] WORKERS = {1,4};
+    static int[] WRITERS = {1,4};
+    static int[] ROUTING_VALUE_COUNTS = {2,50};
+    static int[] BATCH_SIZES = {10,100};
+    static int ENTRIES_PER_RUN = 10000;
+    static long RUN_TIMEOUT_MILLIS = 300000;
+    static String REPORT_FILE = "benchmark_report";
+    static String GROUP_NAME = "benchmark_processors";
+
+    public static void main(String[] args) throws Exception {
+        JedisConnectionHelperSettings settings = new JedisConnectionHelperSettings();
+        settings.setRedisHost(HOST);
+        settings.setRedisPort(PORT);
+        ArrayList<String> argList = new ArrayList<>(Arrays.asList(args));
+        Main.parseConnectionSettings(argList, settings); // host, port, username, password and ssl like the other tools
+        HOST = settings.getRedisHost();
+        PORT = settings.getRedisPort();
+        if (argList.contains("--redisserverpath")) {
+            REDIS_SERVER_PATH = argList.get(argList.indexOf("--redisserverpath") + 1);
+        }
+        if (argList.contains("--redisserverargs")) {
+            REDIS_SERVER_ARGS = argList.get(argList.indexOf("--redisserverargs") + 1);
+        }
+        if (argList.contains("--workers")) {
+            WORKERS = parseIntList(argList.get(argList.indexOf("--workers") + 1));
+        }
+        if (argList.contains("--writers")) {
+            WRITERS = parseIntList(argList.get(argList.indexOf("--writers") + 1));
+        }
+        if (argList.contains("--routingvaluecounts")) {
+            ROUTING_VALUE_COUNTS = parseIntList(argList.get(argList.indexOf("--routingvaluecounts") + 1));
+        }
+        if (argList.contains("--batchsizes")) {
+            BATCH_SIZES = parseIntList(argList.get(argList.indexOf("--batchsizes") + 1));
+        }
+        if (argList.contains("--entriesperrun")) {
+            ENTRIES_PER_RUN = Integer.parseInt(argList.get(argList.indexOf("--entriesperrun") + 1));
+        }
+        if (argList.contains("--runtimeoutmillis")) {
+            RUN_TIMEOUT_MILLIS = Long.parseLong(argList.get(argList.indexOf("--runtimeoutmillis") + 1));
+        }
+        if (argList.contains("--reportfile")) {
+            REPORT_FILE = argList.get(argList.indexOf("--reportfile") + 1);
+        }
+        settings.setTestOnBorrow(false);
+        settings.setTestWhileIdle(true);
+
+        Process redisServer = null;
+        if(REDIS_SERVER_PATH!=null){
+            redisServer = startLocalRedisServer();
+        }
+        try {
+            JedisConnectionHelper connectionHelper = new JedisConnectionHelper(settings);
+            List<JSONObject> results = new ArrayList<>();
+            int runNumber = 0;
+            for (int routingValueCount : ROUTING_VALUE_COUNTS) {
+                for (int batchSize : BATCH_SIZES) {
+                    for (int writers : WRITERS) {
+                        for (int workers : WORKERS) {
+                            runNumber++;
+                            JSONObject result = runOnce(connectionHelper, runNumber, workers, writers, routingValueCount, batchSize);
+                            System.out.println("BenchmarkRunner result: " + result);
+                            results.add(result);
+                        }
+                    }
+                }
+            }
+            writeReport(results);
+        }finally {
+            if(redisServer!=null){
+                redisServer.destroy();
+            }
+        }
+        System.exit(0); // consumers of the last run may still be inside a blocking read
+    }
+
+    static Process startLocalRedisServer() throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(Arrays.asList(REDIS_SERVER_PATH, "--port", ""+PORT, "--save", "", "--appendonly", "no"));
+        if(!REDIS_SERVER_ARGS.trim().isEmpty()){
+            command.addAll(Arrays.asList(REDIS_SERVER_ARGS.trim().split("\\s+")));
+        }
+        System.out.println("BenchmarkRunner starting local redis-server: "+command);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(new File(REPORT_FILE+"_redis-server.log")).start();
+        Thread.sleep(1000); // give the server time to open its port
+        return process;
+    }
+
+    static JSONObject runOnce(JedisConnectionHelper connectionHelper, int runNumber, int workers, int writers,
+                              int routingValueCount, int batchSize) throws InterruptedException {
+        String streamNameBase = "bench"+runNumber+"_"+System.currentTimeMillis();
+        long entriesPerWriter = Math.max(routingValueCount, ENTRIES_PER_RUN/Math.max(1,writers));
+        long totalEntries = entriesPerWriter*writers;
+        System.out.println("\nBenchmarkRunner run "+runNumber+": workers="+workers+" writers="+writers+
+                " routingValueCount="+routingValueCount+" batchSize="+batchSize+" entries="+totalEntries);
+
+        // the writers pick streams 0..(entriesPerWriter/routingValueCount) - the consumers must cover the same ones
+        DummyOrderWriter nameBuilder = new DummyOrderWriter();
+        int streamCount = (int) Math.max(routingValueCount, entriesPerWriter/routingValueCount);
+        List<ArrayList<String>> batches = new ArrayList<>();
+        List<String> allStreams = new ArrayList<>();
+        for(int batch=0;batch<routingValueCount;batch++){
+            batches.add(new ArrayList<>());
+        }
+        for(int x=0;x<streamCount;x++){
+            String streamName = nameBuilder.getRouteEnrichedStreamName(routingValueCount, streamNameBase, x);
+            batches.get(x%routingValueCount).add(streamName);
+            allStreams.add(streamName);
+        }
+
+        LatencyRecorder recorder = new LatencyRecorder((int) totalEntries);
+        List<RedisStreamWorkerGroupHelperV2> helpers = new ArrayList<>();
+        for(ArrayList<String> streamNames:batches){
+            if(streamNames.isEmpty()){
+                continue;
+            }
+            RedisStreamWorkerGroupHelperV2 helper = new RedisStreamWorkerGroupHelperV2()
+                    .setPooledJedis(connectionHelper.getPooledJedis())
+                    .setStreamNamesArrayList(streamNames)
+                    .setBatchSize(batchSize);
+            helper.createConsumerGroup(GROUP_NAME);
+            for(int w=0;w<workers;w++){
+                StreamEventMapProcessorV2 processor = new StreamEventToJSONProcessorV2()
+                        .setJedisPooled(connectionHelper.getPooledJedis())
+                        .setJSONKeyPrefix("benchmark_order_history:");
+                helper.namedGroupConsumerStartListeningToAllStreams("benchWorker"+w, recorder.wrap(processor));
+            }
+            helpers.add(helper);
+        }
+
+        long startTime = System.currentTimeMillis();
+        for(int wt=0;wt<writers;wt++){
+            new DummyOrderWriter()
+                    .setJedisPooled(connectionHelper.getPooledJedis())
+                    .setSleepTime(0)
+                    .setRoutingValueCount(routingValueCount)
+                    .setTotalNumberToWrite(entriesPerWriter)
+                    .setStreamNameBase(streamNameBase)
+                    .kickOffStreamEvents();
+        }
+        long maxLag = 0;
+        while(recorder.getProcessedCount()<totalEntries && System.currentTimeMillis()-startTime<RUN_TIMEOUT_MILLIS){
+            Thread.sleep(1000);
+            maxLag = Math.max(maxLag, sampleLag(connectionHelper, allStreams));
+        }
+        long elapsedMillis = Math.max(1, recorder.getLastProcessedMillis()-startTime);
+        for(RedisStreamWorkerGroupHelperV2 helper:helpers){
+            helper.stopListening();
+        }
+        for(RedisStreamWorkerGroupHelperV2 helper:helpers){
+            helper.awaitStopped(10000); // no consumer may still be reading when the streams are deleted
+        }
+        deleteRunKeys(connectionHelper, streamNameBase);
+
+        JSONObject result = new JSONObject();
+        result.put("run", runNumber);
+        result.put("workers", workers);
+        result.put("writers", writers);
+        result.put("routing_value_count", routingValueCount);
+        result.put("batch_size", batchSize);
+        result.put("entries_written", totalEntries);
+        result.put("entries_processed", recorder.getProcessedCount());
+        result.put("completed", recorder.getProcessedCount()>=totalEntries);
+        result.put("elapsed_millis", elapsedMillis);
+        result.put("events_per_second", recorder.getProcessedCount()*1000.0/elapsedMillis);
+        result.put("max_consumer_lag", maxLag);
+        result.put("latency_p50_millis", recorder.percentile(50));
+        result.put("latency_p95_millis", recorder.percentile(95));
+        result.put("latency_p99_millis", recorder.percentile(99));
+        result.put("latency_max_millis", recorder.percentile(100));
+        return result;
+    }
+
+    // pending (delivered but not acked) + lag (not yet delivered) summed over every stream of the run
+    static long sampleLag(JedisConnectionHelper connectionHelper, List<String> streamNames){
+        long total = 0;
+        try(Connection connection = connectionHelper.getConnection()){
+            Pipeline pipeline = new Pipeline(connection);
+            List<Response<List<StreamGroupInfo>>> responses = new ArrayList<>();
+            for(String streamName:streamNames){
+                responses.add(pipeline.xinfoGroups(streamName));
+            }
+            pipeline.sync();
+            for(Response<List<StreamGroupInfo>> response:responses){
+                List<StreamGroupInfo> groups;
+                try{
+                    groups = response.get();
+                }catch(JedisDataException jde){ // a stream nobody has written to yet - the rest of the sample still counts
+                    continue;
+                }
+                for(StreamGroupInfo groupInfo:groups){
+                    if(!GROUP_NAME.equals(groupInfo.getName())){
+                        continue;
+                    }
+                    total += groupInfo.getPending();
+                    Object lag = groupInfo.getGroupInfo().get("lag"); // only reported by redis 7 and later
+                    if(lag instanceof Long){
+                        total += (Long) lag;
+                    }
+                }
+            }
+        }catch(RuntimeException re){
+            System.out.println("BenchmarkRunner could not sample consumer lag: "+re.getMessage());
+        }
+        return total;
+    }
+
+    // every key of a run has its stream name base in its name: X:<base>:..., <base>:<id>:order... and <prefix>X:<base>:...
+    static void deleteRunKeys(JedisConnectionHelper connectionHelper, String streamNameBase){
+        JedisPooled jedis = connectionHelper.getPooledJedis();
+        ScanParams scanParams = new ScanParams().match("*"+streamNameBase+":*").count(1000);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        long deleted = 0;
+        do{
+            ScanResult<String> scanResult = jedis.scan(cursor, scanParams);
+            try(Connection connection = connectionHelper.getConnection()){ // one round trip per SCAN page
+                Pipeline pipeline = new Pipeline(connection);
+                for(String keyName:scanResult.getResult()){
+                    pipeline.unlink(keyName);
+                }
+                pipeline.sync();
+            }
+            deleted += scanResult.getResult().size();
+            cursor = scanResult.getCursor();
+        }while(!ScanParams.SCAN_POINTER_START.equals(cursor));
+        System.out.println("BenchmarkRunner deleted the "+deleted+" keys of "+streamNameBase);
+    }
+
+    static void writeReport(List<JSONObject> results) throws IOException {
+        String[] columns = {"run","workers","writers","routing_value_count","batch_size","entries_written","entries_processed",
+                "completed","elapsed_millis","events_per_second","max_consumer_lag","latency_p50_millis","latency_p95_millis",
+                "latency_p99_millis","latency_max_millis"};
+        try(PrintWriter csv = new PrintWriter(Files.newBufferedWriter(Paths.get(REPORT_FILE+".csv"), StandardCharsets.UTF_8))){
+            csv.println(String.join(",", columns));
+            for(JSONObject result:results){
+                StringJoiner row = new StringJoiner(",");
+                for(String column:columns){
+                    row.add(String.valueOf(result.get(column)));
+                }
+                csv.println(row);
+            }
+        }
+        JSONObject report = new JSONObject();
+        report.put("generated_at_millis", System.currentTimeMillis());
+        report.put("host", HOST);
+        report.put("port", PORT);
+        report.put("entries_per_run", ENTRIES_PER_RUN);
+        report.put("runs", new JSONArray(results));
+        Files.write(Paths.get(REPORT_FILE+".json"), report.toString(2).getBytes(StandardCharsets.UTF_8));
+        System.out.println("BenchmarkRunner wrote "+REPORT_FILE+".csv and "+REPORT_FILE+".json");
+    }
+
+    static int[] parseIntList(String commaSeparated){
+        String[] parts = commaSeparated.split(",");
+        int[] values = new int[parts.length];
+        for(int x=0;x<parts.length;x++){
+            values[x] = Integer.parseInt(parts[x].trim());
+        }
+        return values;
+    }
+
+    /**
+     * Counts processed entries and keeps the end-to-end latency of each one
+     * (the millisecond part of an entry ID is the time the entry was added to the stream)
+     */
+    static class LatencyRecorder {
+        private final long[] latencies;
+        private final AtomicLong processed = new AtomicLong();
+        private volatile long lastProcessedMillis = System.currentTimeMillis();
+
+        LatencyRecorder(int capacity){
+            this.latencies = new long[Math.max(1,capacity)];
+        }
+
+        StreamEventMapProcessorV2 wrap(StreamEventMapProcessorV2 processor){
+            return new StreamEventMapProcessorV2() {
+                @Override
+                public void processStreamEntry(String streamName, StreamEntry payload) {
+                    processor.processStreamEntry(streamName, payload);
+                    record(payload);
+                }
+
+                @Override
+                public void processStreamEntries(String streamName, List<StreamEntry> payloads) {
+                    processor.processStreamEntries(streamName, payloads);
+                    for(StreamEntry payload:payloads){
+                        record(payload);
+                    }
+                }
+            };
+        }
+
+        void record(StreamEntry payload){
+            long now = System.currentTimeMillis();
+            long index = processed.getAndIncrement();
+            if(index<latencies.length){
+                latencies[(int) index] = now-payload.getID().getTime();
+            }
+            lastProcessedMillis = now;
+        }
+
+        long getProcessedCount(){
+            return processed.get();
+        }
+
+        long getLastProcessedMillis(){
+            return lastProcessedMillis;
+        }
+
+        long percentile(int percentile){
+            int count = (int) Math.min(processed.get(), latencies.length);
+            if(count==0){
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile/100.0*count)-1;
+            return sorted[Math.max(0, Math.min(count-1, index))];
+        }
+    }
+}
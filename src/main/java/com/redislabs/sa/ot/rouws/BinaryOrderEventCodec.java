@@ -0,0 +1,209 @@
+package com.redislabs.sa.ot.rouws;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Packs an order event into the single stream field "_p"
+ *
+ * Layout (version 1) - all counts and lengths are unsigned varints, strings are UTF-8:
+ *  version | stage code | presence flags | [orderID] | [contact_name] | [order_cost]
+ *  | item count | (item number, item)* | other field count | (name, value)*
+ * The stage code indexes STAGE_DICTIONARY - a stage outside the dictionary is written as LITERAL_STAGE followed by the name
+ *
+ * Jedis hands stream values to the consumers as (UTF-8 decoded) Strings, so raw bytes would not survive the trip
+ * The packed bytes are therefore re-packed 7 bits per byte: every stored byte is below 0x80 and so is valid UTF-8
+ * This costs 1 byte in 8, much less than the field names and stage strings it replaces
+ */
+public class BinaryOrderEventCodec implements OrderEventCodec {
+    static final String PAYLOAD_FIELD = "_p";
+    static final int VERSION = 1;
+    static final String[] STAGE_DICTIONARY = {"new","accepted","in_preparation","out_for_delivery","completed","delayed","cancelled"};
+    static final int NO_STAGE = 0x7E, LITERAL_STAGE = 0x7F;
+    static final int HAS_ORDER_ID = 1, HAS_CONTACT_NAME = 2, HAS_ORDER_COST = 4;
+
+    @Override
+    public Map<String,String> encode(Map<String,String> orderEvent){
+        return Collections.singletonMap(PAYLOAD_FIELD, encodePayload(orderEvent));
+    }
+
+    static boolean isBinaryPayload(Map<String,String> entryFields){
+        return entryFields.size()==1 && entryFields.containsKey(PAYLOAD_FIELD);
+    }
+
+    static String encodePayload(Map<String,String> orderEvent){
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        out.write(VERSION);
+        String stage = orderEvent.get("stage");
+        int stageCode = stageCode(stage);
+        out.write(stageCode);
+        if(stageCode==LITERAL_STAGE){
+            writeString(out, stage);
+        }
+        String orderID = orderEvent.get("orderID");
+        String contactName = orderEvent.get("contact_name");
+        String orderCost = orderEvent.get("order_cost");
+        int flags = (orderID!=null?HAS_ORDER_ID:0) | (contactName!=null?HAS_CONTACT_NAME:0) | (orderCost!=null?HAS_ORDER_COST:0);
+        writeVarint(out, flags);
+        if(orderID!=null){writeString(out, orderID);}
+        if(contactName!=null){writeString(out, contactName);}
+        if(orderCost!=null){writeString(out, orderCost);}
+        int itemCount = 0;
+        int otherCount = 0;
+        for(String name:orderEvent.keySet()){
+            if(itemNumber(name)>0){
+                itemCount++;
+            }else if(!isFixedField(name)){
+                otherCount++;
+            }
+        }
+        writeVarint(out, itemCount);
+        for(Map.Entry<String,String> field:orderEvent.entrySet()){
+            int itemNumber = itemNumber(field.getKey());
+            if(itemNumber>0){
+                writeVarint(out, itemNumber);
+                writeString(out, field.getValue());
+            }
+        }
+        writeVarint(out, otherCount);
+        for(Map.Entry<String,String> field:orderEvent.entrySet()){
+            String name = field.getKey();
+            if(itemNumber(name)<=0 && !isFixedField(name)){
+                writeString(out, name);
+                writeString(out, field.getValue());
+            }
+        }
+        return pack7(out.toByteArray());
+    }
+
+    static Map<String,String> decodePayload(String payload){
+        byte[] bytes = unpack7(payload);
+        int[] position = {0};
+        int version = bytes[position[0]++];
+        if(version!=VERSION){
+            throw new IllegalArgumentException("Unsupported order event payload version "+version);
+        }
+        HashMap<String,String> orderEvent = new HashMap<>();
+        int stageCode = bytes[position[0]++];
+        if(stageCode==LITERAL_STAGE){
+            orderEvent.put("stage", readString(bytes, position));
+        }else if(stageCode!=NO_STAGE){
+            orderEvent.put("stage", STAGE_DICTIONARY[stageCode]);
+        }
+        int flags = (int) readVarint(bytes, position);
+        if((flags&HAS_ORDER_ID)!=0){orderEvent.put("orderID", readString(bytes, position));}
+        if((flags&HAS_CONTACT_NAME)!=0){orderEvent.put("contact_name", readString(bytes, position));}
+        if((flags&HAS_ORDER_COST)!=0){orderEvent.put("order_cost", readString(bytes, position));}
+        long itemCount = readVarint(bytes, position);
+        for(long x=0;x<itemCount;x++){
+            long itemNumber = readVarint(bytes, position);
+            orderEvent.put("item"+itemNumber, readString(bytes, position));
+        }
+        long otherCount = readVarint(bytes, position);
+        for(long x=0;x<otherCount;x++){
+            String name = readString(bytes, position);
+            orderEvent.put(name, readString(bytes, position));
+        }
+        return orderEvent;
+    }
+
+    private static int stageCode(String stage){
+        if(stage==null){
+            return NO_STAGE;
+        }
+        for(int x=0;x<STAGE_DICTIONARY.length;x++){
+            if(STAGE_DICTIONARY[x].equals(stage)){
+                return x;
+            }
+        }
+        return LITERAL_STAGE;
+    }
+
+    private static boolean isFixedField(String name){
+        return name.equals("stage") || name.equals("orderID") || name.equals("contact_name") || name.equals("order_cost");
+    }
+
+    // "item7" -> 7, anything else -> 0
+    private static int itemNumber(String name){
+        if(!name.startsWith("item") || name.length()==4 || name.length()>8){
+            return 0;
+        }
+        int number = 0;
+        for(int x=4;x<name.length();x++){
+            char c = name.charAt(x);
+            if(c<'0' || c>'9' || (x==4 && c=='0')){
+                return 0;
+            }
+            number = number*10+(c-'0');
+        }
+        return number;
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value){
+        while((value & ~0x7FL)!=0){
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(byte[] bytes, int[] position){
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do{
+            b = bytes[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }while((b & 0x80)!=0);
+        return value;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value){
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(byte[] bytes, int[] position){
+        int length = (int) readVarint(bytes, position);
+        String value = new String(bytes, position[0], length, StandardCharsets.UTF_8);
+        position[0] += length;
+        return value;
+    }
+
+    // spreads the bits of the input over 7-bit chars (high bit always clear)
+    static String pack7(byte[] input){
+        char[] packed = new char[(input.length*8+6)/7];
+        int bitBuffer = 0, bitCount = 0, index = 0;
+        for(byte b:input){
+            bitBuffer = (bitBuffer<<8) | (b & 0xFF);
+            bitCount += 8;
+            while(bitCount>=7){
+                bitCount -= 7;
+                packed[index++] = (char) ((bitBuffer>>>bitCount) & 0x7F);
+            }
+        }
+        if(bitCount>0){
+            packed[index++] = (char) ((bitBuffer<<(7-bitCount)) & 0x7F);
+        }
+        return new String(packed, 0, index);
+    }
+
+    static byte[] unpack7(String packed){
+        byte[] output = new byte[packed.length()*7/8];
+        int bitBuffer = 0, bitCount = 0, index = 0;
+        for(int x=0;x<packed.length() && index<output.length;x++){
+            bitBuffer = (bitBuffer<<7) | (packed.charAt(x) & 0x7F);
+            bitCount += 7;
+            if(bitCount>=8){
+                bitCount -= 8;
+                output[index++] = (byte) (bitBuffer>>>bitCount);
+            }
+        }
+        return output;
+    }
+}
@@ -0,0 +1,268 @@
+package com.redislabs.sa.ot.rouws;
+
+import com.redislabs.sa.ot.util.JedisConnectionHelper;
+import com.redislabs.sa.ot.util.JedisConnectionHelperSettings;
+import org.json.JSONObject;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.params.XAddParams;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backfills historical orders from a local file into the customer streams
+ * The file is either NDJSON (one flat JSON object per line) or CSV (the first line holds the field names)
+ * Every record must carry a numeric customer_id - it is routed to its stream with the same
+ * getRouteEnrichedStreamName() scheme that DummyOrderWriter uses, all other fields become the stream entry:
+ *  {"customer_id":37,"stage":"new","orderID":"rouws:37:order__1","contact_name":"Sam","order_cost":"12.50","item1":"Pizza"}
+ *
+ * The file is read line by line (never loaded whole) by one thread that hands batches of records
+ * over a bounded queue to --importconnections writer threads
+ * Each writer keeps one connection and sends a whole batch of XADD commands as a single pipeline
+ * Every XADD reply is checked - entries redis rejected (OOM, WRONGTYPE...) are counted and fail the import once the file is read
+ *
+ * mvn compile exec:java -Dexec.mainClass=com.redislabs.sa.ot.rouws.BulkOrderImporter -Dexec.cleanupDaemonThreads=false -Dexec.args="--host myhost.com --port 10000 --importfile orders.ndjson --routingvaluecount 2 --importconnections 4 --importbatchsize 1000"
+ */
+public class BulkOrderImporter {
+    static String IMPORT_FILE = "orders.ndjson";
+    static String IMPORT_FORMAT = null; // ndjson or csv - taken from the file extension when not given
+    static String STREAM_NAME_BASE = "rouws:";
+    static String CUSTOMER_ID_FIELD = "customer_id";
+    static int ROUTING_VALUE_COUNT = 2;
+    static int IMPORT_CONNECTIONS = 4;
+    static int IMPORT_BATCH_SIZE = 1000;
+    static String PAYLOAD_CODEC = OrderEventCodec.FIELDS;
+    private static final List<Map<String,String>> END_OF_RECORDS = Collections.emptyList();
+
+    private final JedisConnectionHelper connectionHelper;
+    private final DummyOrderWriter streamNamer = new DummyOrderWriter();
+    private final OrderEventCodec payloadCodec;
+    private final AtomicLong recordsRead = new AtomicLong();
+    private final AtomicLong recordsSkipped = new AtomicLong();
+    private final AtomicLong entriesWritten = new AtomicLong();
+    private final AtomicLong entriesFailed = new AtomicLong();
+
+    public BulkOrderImporter(JedisConnectionHelper connectionHelper, OrderEventCodec payloadCodec){
+        this.connectionHelper = connectionHelper;
+        this.payloadCodec = payloadCodec;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ArrayList<String> argList = new ArrayList<>(Arrays.asList(args));
+        JedisConnectionHelperSettings settings = Main.parseConnectionSettings(argList, new JedisConnectionHelperSettings());
+        if (argList.contains("--importfile")) {
+            IMPORT_FILE = argList.get(argList.indexOf("--importfile") + 1);
+        }
+        if (argList.contains("--importformat")) {
+            IMPORT_FORMAT = argList.get(argList.indexOf("--importformat") + 1);
+        }
+        if (argList.contains("--streamnamebase")) {
+            STREAM_NAME_BASE = argList.get(argList.indexOf("--streamnamebase") + 1);
+        }
+        if (argList.contains("--customeridfield")) {
+            CUSTOMER_ID_FIELD = argList.get(argList.indexOf("--customeridfield") + 1);
+        }
+        if (argList.contains("--routingvaluecount")) {
+            ROUTING_VALUE_COUNT = Integer.parseInt(argList.get(argList.indexOf("--routingvaluecount") + 1));
+        }
+        if (argList.contains("--importconnections")) {
+            IMPORT_CONNECTIONS = Integer.parseInt(argList.get(argList.indexOf("--importconnections") + 1));
+        }
+        if (argList.contains("--importbatchsize")) {
+            IMPORT_BATCH_SIZE = Integer.parseInt(argList.get(argList.indexOf("--importbatchsize") + 1));
+        }
+        if (argList.contains("--payloadcodec")) {
+            PAYLOAD_CODEC = argList.get(argList.indexOf("--payloadcodec") + 1);
+        }
+        if (IMPORT_FORMAT == null) {
+            IMPORT_FORMAT = IMPORT_FILE.toLowerCase().endsWith(".csv") ? "csv" : "ndjson";
+        }
+        settings.setTestOnBorrow(false);
+        settings.setTestWhileIdle(true);
+        settings.setMaxConnections(Math.max(IMPORT_CONNECTIONS*2, 10));
+        new BulkOrderImporter(new JedisConnectionHelper(settings), OrderEventCodec.forName(PAYLOAD_CODEC)).importFile(IMPORT_FILE, IMPORT_FORMAT);
+    }
+
+    public void importFile(String fileName, String format) throws Exception {
+        long startTime = System.currentTimeMillis();
+        BlockingQueue<List<Map<String,String>>> queue = new ArrayBlockingQueue<>(IMPORT_CONNECTIONS*2);
+        List<Thread> writerThreads = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for(int x=0;x<IMPORT_CONNECTIONS;x++){
+            Thread writerThread = new Thread(() -> {
+                try {
+                    writeBatches(queue);
+                } catch (Throwable t) {
+                    failures.add(t);
+                    try { // keep taking batches so the reader is never stuck waiting on a dead writer
+                        while (queue.take() != END_OF_RECORDS) { }
+                    } catch (InterruptedException ie) { }
+                }
+            }, "importWriter"+x);
+            writerThread.start();
+            writerThreads.add(writerThread);
+        }
+
+        try(BufferedReader reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)){
+            List<String> csvHeader = "csv".equalsIgnoreCase(format) ? parseCsvLine(reader.readLine()) : null;
+            List<Map<String,String>> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+            long lastProgressTime = startTime;
+            String line;
+            while((line = reader.readLine())!=null && failures.isEmpty()){
+                if(line.trim().isEmpty()){
+                    continue;
+                }
+                recordsRead.incrementAndGet();
+                try {
+                    batch.add(csvHeader==null ? parseJsonLine(line) : toRecord(csvHeader, parseCsvLine(line)));
+                }catch(RuntimeException re){
+                    recordsSkipped.incrementAndGet();
+                    System.out.println("BulkOrderImporter skipping unreadable record at line "+recordsRead.get()+": "+re.getMessage());
+                    continue;
+                }
+                if(batch.size()>=IMPORT_BATCH_SIZE){
+                    queue.put(batch);
+                    batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+                }
+                if(System.currentTimeMillis()-lastProgressTime>5000){
+                    printProgress(startTime);
+                    lastProgressTime = System.currentTimeMillis();
+                }
+            }
+            if(!batch.isEmpty()){
+                queue.put(batch);
+            }
+        }finally {
+            for(int x=0;x<IMPORT_CONNECTIONS;x++){
+                queue.put(END_OF_RECORDS);
+            }
+            for(Thread writerThread:writerThreads){
+                writerThread.join();
+            }
+        }
+        printProgress(startTime);
+        if(!failures.isEmpty()){
+            throw new IOException("BulkOrderImporter: "+failures.size()+" writer(s) failed", failures.get(0));
+        }
+        if(entriesFailed.get()>0){
+            throw new IOException("BulkOrderImporter: redis rejected "+entriesFailed.get()+" entries - they were not imported");
+        }
+        System.out.println("BulkOrderImporter done.");
+    }
+
+    void writeBatches(BlockingQueue<List<Map<String,String>>> queue) throws InterruptedException {
+        try(Connection connection = connectionHelper.getConnection()){
+            while(true){
+                List<Map<String,String>> batch = queue.take();
+                if(batch==END_OF_RECORDS){
+                    break;
+                }
+                Pipeline pipeline = new Pipeline(connection);
+                List<Response<StreamEntryID>> replies = new ArrayList<>(batch.size());
+                for(Map<String,String> record:batch){
+                    int customerID = customerIDOf(record);
+                    if(customerID<0){
+                        recordsSkipped.incrementAndGet();
+                        continue;
+                    }
+                    String streamName = streamNamer.getRouteEnrichedStreamName(ROUTING_VALUE_COUNT, STREAM_NAME_BASE, customerID);
+                    replies.add(pipeline.xadd(streamName, XAddParams.xAddParams(), payloadCodec.encode(record)));
+                }
+                pipeline.sync();
+                int written = 0;
+                for(Response<StreamEntryID> reply:replies){
+                    try{
+                        reply.get();
+                        written++;
+                    }catch(JedisDataException jde){
+                        if(entriesFailed.getAndIncrement()==0){ // the rest are counted - usually they all fail for the same reason
+                            System.out.println("BulkOrderImporter: redis rejected an entry: "+jde.getMessage());
+                        }
+                    }
+                }
+                entriesWritten.addAndGet(written);
+            }
+        }
+    }
+
+    // removes the customer_id from the record - returns -1 when it is missing or not a number
+    static int customerIDOf(Map<String,String> record){
+        String customerID = record.remove(CUSTOMER_ID_FIELD);
+        try {
+            return customerID==null ? -1 : Integer.parseInt(customerID.trim());
+        }catch(NumberFormatException nfe){
+            return -1;
+        }
+    }
+
+    // only flat objects are expected - nested values are written as their JSON text
+    static Map<String,String> parseJsonLine(String line){
+        JSONObject json = new JSONObject(line);
+        Map<String,String> record = new HashMap<>();
+        for(String field:json.keySet()){
+            if(!json.isNull(field)){
+                record.put(field, String.valueOf(json.get(field)));
+            }
+        }
+        return record;
+    }
+
+    static Map<String,String> toRecord(List<String> header, List<String> values){
+        Map<String,String> record = new HashMap<>();
+        for(int x=0;x<header.size() && x<values.size();x++){
+            if(!values.get(x).isEmpty()){
+                record.put(header.get(x), values.get(x));
+            }
+        }
+        return record;
+    }
+
+    // RFC 4180 style: commas inside double quotes are kept and "" is an escaped quote
+    static List<String> parseCsvLine(String line){
+        List<String> values = new ArrayList<>();
+        if(line==null){
+            return values;
+        }
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for(int x=0;x<line.length();x++){
+            char c = line.charAt(x);
+            if(quoted){
+                if(c=='"' && x+1<line.length() && line.charAt(x+1)=='"'){
+                    value.append('"');
+                    x++;
+                }else if(c=='"'){
+                    quoted = false;
+                }else{
+                    value.append(c);
+                }
+            }else if(c=='"'){
+                quoted = true;
+            }else if(c==','){
+                values.add(value.toString().trim());
+                value.setLength(0);
+            }else{
+                value.append(c);
+            }
+        }
+        values.add(value.toString().trim());
+        return values;
+    }
+
+    private void printProgress(long startTime){
+        long elapsedMillis = Math.max(1, System.currentTimeMillis()-startTime);
+        System.out.println("BulkOrderImporter progress: "+recordsRead.get()+" records read, "+entriesWritten.get()+" entries written, "+
+                entriesFailed.get()+" rejected, "+recordsSkipped.get()+" skipped in "+(elapsedMillis/1000)+" seconds ("+(entriesWritten.get()*1000/elapsedMillis)+" entries/sec)");
+    }
+}
@@ -0,0 +1,237 @@
+package com.redislabs.sa.ot.rouws;
+
+import com.redislabs.sa.ot.streamutils.StreamEventMapProcessorV2;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.resps.StreamEntry;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional processor stage that adds the customer's profile to each order event before the JSON processor writes it
+ * The profile is a hash next to the customer's document (same hash tag, so same slot):
+ *  customer_profile:X:rouws::0000000037{37}  tier gold  default_region 37  contact_preference sms
+ * and its fields are written into the order stage as profile_tier, profile_default_region ...
+ *
+ * Profiles are read through a bounded local cache shared by every worker of the JVM:
+ *  - at most maxEntries profiles, the least recently used one is evicted first
+ *  - a profile older than ttlMillis is not used - it is fetched again before the entries are processed
+ *  - a profile older than refreshAheadMillis is still used, and refreshed in the background so busy customers never expire
+ *  - the misses of one read batch are fetched together as one pipeline of HGETALLs
+ * A customer without a profile is cached too (as an empty profile) so it does not cost a round trip per event
+ * The hit ratio is printed every reportIntervalMillis
+ */
+public class CustomerProfileEnricher {
+    public static final String PROFILE_KEY_PREFIX = "customer_profile:";
+    static final String PROFILE_FIELD_PREFIX = "profile_";
+
+    private JedisPooled jedis = null;
+    private PartitionedStreamLayout partitionedStreams = null;
+    private int maxEntries = 100000;
+    private long ttlMillis = 60000;
+    private long refreshAheadMillis = 48000;
+    private long reportIntervalMillis = 10000;
+    private final LinkedHashMap<String,CachedProfile> cache = new LinkedHashMap<String,CachedProfile>(1024, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,CachedProfile> eldest){
+            return size()>maxEntries;
+        }
+    };
+    private final Set<String> refreshQueue = ConcurrentHashMap.newKeySet();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong fetchRoundTrips = new AtomicLong();
+    private volatile boolean running = false;
+
+    static class CachedProfile {
+        final Map<String,String> profile;
+        final long loadedAt;
+
+        CachedProfile(Map<String,String> profile, long loadedAt){
+            this.profile = profile;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    public CustomerProfileEnricher setJedisPooled(JedisPooled jedisPooled){
+        this.jedis=jedisPooled;
+        return this;
+    }
+
+    public CustomerProfileEnricher setPartitionedStreamLayout(PartitionedStreamLayout partitionedStreams){
+        this.partitionedStreams=partitionedStreams;
+        return this;
+    }
+
+    public CustomerProfileEnricher setMaxEntries(int maxEntries){
+        this.maxEntries=maxEntries;
+        return this;
+    }
+
+    // refresh-ahead starts at 80% of the ttl
+    public CustomerProfileEnricher setTtlMillis(long ttlMillis){
+        this.ttlMillis=ttlMillis;
+        this.refreshAheadMillis=ttlMillis*4/5;
+        return this;
+    }
+
+    public CustomerProfileEnricher setReportIntervalMillis(long reportIntervalMillis){
+        this.reportIntervalMillis=reportIntervalMillis;
+        return this;
+    }
+
+    // one instance can wrap every worker's processor - they then share the cache and the refresher thread
+    public StreamEventMapProcessorV2 wrap(StreamEventMapProcessorV2 processor){
+        CustomerProfileEnricher enricher = this;
+        return new StreamEventMapProcessorV2() {
+            @Override
+            public void processStreamEntry(String streamName, StreamEntry payload) {
+                processor.processStreamEntry(streamName, enricher.enrich(streamName, Collections.singletonList(payload)).get(0));
+            }
+
+            @Override
+            public void processStreamEntries(String streamName, List<StreamEntry> payloads) {
+                processor.processStreamEntries(streamName, enricher.enrich(streamName, payloads)); // keeps the wrapped processor's combined writes
+            }
+        };
+    }
+
+    // starts the thread that refreshes profiles ahead of their ttl and prints the hit ratio
+    public CustomerProfileEnricher start(){
+        running = true;
+        Thread refresher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long lastReportTime = System.currentTimeMillis();
+                long lastLookups = 0;
+                while(running){
+                    try{
+                        Thread.sleep(100);
+                        if(!refreshQueue.isEmpty()){
+                            List<String> customers = new ArrayList<>(refreshQueue);
+                            refreshQueue.removeAll(customers);
+                            fetch(customers);
+                        }
+                        if(System.currentTimeMillis()-lastReportTime>=reportIntervalMillis){
+                            long lookups = hits.get()+misses.get();
+                            if(lookups>lastLookups){
+                                System.out.println(CustomerProfileEnricher.this);
+                            }
+                            lastLookups = lookups;
+                            lastReportTime = System.currentTimeMillis();
+                        }
+                    }catch(InterruptedException ie){
+                        return;
+                    }catch(RuntimeException re){ // the cached profiles stay usable until their ttl
+                        System.out.println("CustomerProfileEnricher refresh failed: "+re.getMessage());
+                    }
+                }
+            }
+        }, "customerProfileRefresher");
+        refresher.setDaemon(true);
+        refresher.start();
+        return this;
+    }
+
+    public void stop(){
+        running = false;
+    }
+
+    // the entries in the same order, each decoded and with the profile fields of its customer added
+    List<StreamEntry> enrich(String streamName, List<StreamEntry> payloads){
+        List<Map<String,String>> orderEvents = new ArrayList<>(payloads.size());
+        Set<String> customers = new LinkedHashSet<>();
+        for(StreamEntry payload:payloads){
+            Map<String,String> orderEvent = OrderEventCodec.decode(payload.getFields());
+            orderEvents.add(orderEvent);
+            customers.add(customerStreamNameOf(streamName, orderEvent));
+        }
+        Map<String,Map<String,String>> profiles = lookup(customers);
+        List<StreamEntry> enriched = new ArrayList<>(payloads.size());
+        for(int x=0;x<payloads.size();x++){
+            Map<String,String> orderEvent = orderEvents.get(x);
+            Map<String,String> profile = profiles.get(customerStreamNameOf(streamName, orderEvent));
+            if(profile==null || profile.isEmpty()){
+                enriched.add(payloads.get(x));
+                continue;
+            }
+            Map<String,String> fields = new HashMap<>(orderEvent);
+            for(Map.Entry<String,String> profileField:profile.entrySet()){
+                fields.put(PROFILE_FIELD_PREFIX+profileField.getKey(), profileField.getValue());
+            }
+            enriched.add(new StreamEntry(payloads.get(x).getID(), fields));
+        }
+        return enriched;
+    }
+
+    // cached profiles are answered locally - the rest are fetched with one pipeline
+    Map<String,Map<String,String>> lookup(Collection<String> customers){
+        Map<String,Map<String,String>> profiles = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (cache){
+            for(String customer:customers){
+                CachedProfile cached = cache.get(customer);
+                if(cached==null || now-cached.loadedAt>=ttlMillis){
+                    missing.add(customer);
+                    continue;
+                }
+                if(now-cached.loadedAt>=refreshAheadMillis){
+                    refreshQueue.add(customer);
+                }
+                profiles.put(customer, cached.profile);
+            }
+        }
+        hits.addAndGet(profiles.size());
+        misses.addAndGet(missing.size());
+        if(!missing.isEmpty()){
+            profiles.putAll(fetch(missing));
+        }
+        return profiles;
+    }
+
+    private Map<String,Map<String,String>> fetch(List<String> customers){
+        Map<String,Response<Map<String,String>>> responses = new HashMap<>();
+        try(Connection connection = jedis.getPool().getResource()){
+            Pipeline pipeline = new Pipeline(connection);
+            for(String customer:customers){
+                responses.put(customer, pipeline.hgetAll(PROFILE_KEY_PREFIX+customer));
+            }
+            pipeline.sync();
+        }
+        fetchRoundTrips.incrementAndGet();
+        Map<String,Map<String,String>> profiles = new HashMap<>();
+        long loadedAt = System.currentTimeMillis();
+        synchronized (cache){
+            for(Map.Entry<String,Response<Map<String,String>>> response:responses.entrySet()){
+                Map<String,String> profile = Collections.unmodifiableMap(response.getValue().get());
+                cache.put(response.getKey(), new CachedProfile(profile, loadedAt));
+                profiles.put(response.getKey(), profile);
+            }
+        }
+        return profiles;
+    }
+
+    private String customerStreamNameOf(String streamName, Map<String,String> orderEvent){
+        return partitionedStreams==null ? streamName : partitionedStreams.customerStreamNameOf(streamName, orderEvent);
+    }
+
+    public double getHitRatio(){
+        long lookups = hits.get()+misses.get();
+        return lookups==0 ? 0 : (double) hits.get()/lookups;
+    }
+
+    @Override
+    public String toString(){
+        int cached;
+        synchronized (cache){
+            cached = cache.size();
+        }
+        return String.format("CustomerProfileEnricher hit ratio: %.3f (hits %d misses %d) fetch round trips: %d cached profiles: %d",
+                getHitRatio(), hits.get(), misses.get(), fetchRoundTrips.get(), cached);
+    }
+}
@@ -1,11 +1,22 @@
 package com.redislabs.sa.ot.rouws;
 
 import com.github.javafaker.Faker;
+import com.redislabs.sa.ot.streamutils.StreamDoorbell;
+import com.redislabs.sa.ot.util.EntryTracer;
+import com.redislabs.sa.ot.util.JitteredBackoff;
+import com.redislabs.sa.ot.util.ReconnectMetrics;
+import com.redislabs.sa.ot.util.RedisCircuitBreaker;
+import redis.clients.jedis.Connection;
 import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.StreamEntryID;
 import redis.clients.jedis.params.XAddParams;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 /**
  * This class writes entries to many streams
@@ -33,6 +44,13 @@ public class DummyOrderWriter {
     private long totalNumberToWrite = 1000;
     private String streamNameBase;
     private static Faker faker = new Faker();
+    private RedisCircuitBreaker circuitBreaker = new RedisCircuitBreaker();
+    private OrderEventCodec payloadCodec = OrderEventCodec.forName(OrderEventCodec.FIELDS);
+    private OrderWorkloadModel workloadModel = null;
+    private Random random = null;
+    private PartitionedStreamLayout partitionedStreams = null;
+    private StreamDoorbell doorbell = null;
+    private PackedOrderStateStore packedState = null;
 
     public DummyOrderWriter(){}//default constructor
 
@@ -52,6 +70,42 @@ public class DummyOrderWriter {
         return this;
     }
 
+    public DummyOrderWriter setPayloadCodec(OrderEventCodec payloadCodec){
+        this.payloadCodec=payloadCodec;
+        return this;
+    }
+
+    // replaces the nanoTime based choice of customer / stage and the Faker calls with the model
+    // writerIndex picks this writer's own reproducible random sequence
+    public DummyOrderWriter setWorkloadModel(OrderWorkloadModel workloadModel, int writerIndex){
+        this.workloadModel=workloadModel;
+        this.random=workloadModel.newRandom(writerIndex);
+        return this;
+    }
+
+    // write to the partition streams of each region (carrying the customer id in the entry) instead of a stream per customer
+    public DummyOrderWriter setPartitionedStreamLayout(PartitionedStreamLayout partitionedStreams){
+        this.partitionedStreams=partitionedStreams;
+        return this;
+    }
+
+    // keep stage and orderSeed in the packed per-slot records instead of a hash per customer
+    public DummyOrderWriter setPackedOrderStateStore(PackedOrderStateStore packedState){
+        this.packedState=packedState;
+        return this;
+    }
+
+    // ring the slot's doorbell after each write so the consumers know which streams to read
+    public DummyOrderWriter setDoorbell(StreamDoorbell doorbell){
+        this.doorbell=doorbell;
+        return this;
+    }
+
+    public DummyOrderWriter setCircuitBreaker(RedisCircuitBreaker circuitBreaker){
+        this.circuitBreaker=circuitBreaker;
+        return this;
+    }
+
     public DummyOrderWriter setTotalNumberToWrite(long totalNumberToWrite){
         this.totalNumberToWrite=totalNumberToWrite;
         return this;
@@ -68,13 +122,48 @@ public class DummyOrderWriter {
             public void run() {
                 Map<String, String> map1 = new HashMap<>();
                 long totalWrittenCounter = 1;
+                JitteredBackoff backoff = new JitteredBackoff();
                 while (totalWrittenCounter<=totalNumberToWrite) {
+                    if(!circuitBreaker.allowRequest()){
+                        backoff.pause();
+                        continue;
+                    }
                     //generate a stream for the next order event:
                     //The number of streams is equal to routingValueCount
-                    int streamID = (int) (System.nanoTime()%(totalNumberToWrite/routingValueCount));
-
-                    map1 = buildCustomerOrderEvent(getRouteEnrichedHashKeyName(routingValueCount,streamNameBase,streamID));
-                    jedis.xadd(getRouteEnrichedStreamName(routingValueCount,streamNameBase,streamID), XAddParams.xAddParams(), map1);
+                    int streamID = nextCustomerID();
+                    try {
+                        String streamName;
+                        if(packedState!=null){
+                            streamName = writePackedOrderEvent(streamID);
+                        }else {
+                            map1 = buildCustomerOrderEvent(getRouteEnrichedHashKeyName(routingValueCount, streamNameBase, streamID));
+                            streamName = getTargetStreamName(streamID, map1);
+                            long startNanos = System.nanoTime();
+                            StreamEntryID entryID = jedis.xadd(streamName, XAddParams.xAddParams(), payloadCodec.encode(map1));
+                            Map<String,String> orderEvent = map1;
+                            EntryTracer.GLOBAL.trace("xadd", streamName, entryID, startNanos, () -> orderEvent.get("stage")+" "+orderEvent.get("orderID"));
+                        }
+                        if(doorbell!=null){
+                            doorbell.ring(streamName);
+                        }
+                        circuitBreaker.recordSuccess();
+                        if(backoff.getAttempt()>0){
+                            ReconnectMetrics.GLOBAL.recordReconnect();
+                            backoff.reset();
+                        }
+                    }catch(redis.clients.jedis.exceptions.JedisConnectionException jce){
+                        System.out.println(this.getClass().getName()+": lost connection to redis - "+jce.getMessage());
+                        ReconnectMetrics.GLOBAL.recordConnectionFailure();
+                        circuitBreaker.recordFailure();
+                        backoff.pause();
+                        continue;
+                    }catch(RuntimeException re){
+                        //redis rejected the write (OOM, WRONGTYPE...) - it answered, so this still ends a half-open probe:
+                        System.out.println(this.getClass().getName()+": write failed - "+re.getMessage());
+                        circuitBreaker.recordSuccess();
+                        backoff.pause();
+                        continue;
+                    }
                     totalWrittenCounter++;
                     try{
                         Thread.sleep(sleepTime);
@@ -99,6 +188,15 @@ public class DummyOrderWriter {
         }
         return "X:"+streamNameBase+":"+pad+id;
     }
+    // the customer's own stream - or its region's partition stream, with the customer id added to the event
+    String getTargetStreamName(int customerID, Map<String,String> orderEvent){
+        if(partitionedStreams==null){
+            return getRouteEnrichedStreamName(routingValueCount, streamNameBase, customerID);
+        }
+        orderEvent.put(PartitionedStreamLayout.CUSTOMER_ID_FIELD, ""+customerID);
+        return partitionedStreams.partitionStreamNameFor(customerID);
+    }
+
     //Same as for the Stream:
     public String getRouteEnrichedHashKeyName(int routingValueCount,String streamNameBase,int id){
         String routingValue = "{"+(id%routingValueCount)+"}";
@@ -109,10 +207,84 @@ public class DummyOrderWriter {
         return streamNameBase+":"+id+":order";
     }
 
+    boolean hasWorkloadModel(){
+        return workloadModel!=null;
+    }
+
+    int nextCustomerID(){
+        if(workloadModel!=null){
+            return workloadModel.nextCustomerID(random);
+        }
+        return (int) (System.nanoTime()%(totalNumberToWrite/routingValueCount));
+    }
+
+    // the stage that follows the stored one according to the workload model (the stored value is an OrderWorkloadModel stage index)
+    int nextModelledStage(String storedStage){
+        int currentStage = -1;
+        try {
+            currentStage = storedStage==null ? -1 : Integer.parseInt(storedStage);
+        }catch(NumberFormatException nfe){}
+        return workloadModel.nextStage(currentStage, random);
+    }
+
+    private HashMap<String,String> buildModelledOrderEvent(String hashKeyName){
+        List<String> state = jedis.hmget(hashKeyName,"stage","orderSeed");
+        HashMap<String,String> entryMap = new HashMap<>();
+        int nextStage = nextModelledStage(state.get(0));
+        entryMap.put("stage",OrderWorkloadModel.STAGES[nextStage]);
+        jedis.hset(hashKeyName,"stage",""+nextStage);
+        long orderSeed;
+        if(nextStage==OrderWorkloadModel.NEW){
+            orderSeed = jedis.hincrBy(hashKeyName,"orderSeed",1);
+            putNewOrderDetails(entryMap);
+        }else{
+            orderSeed = state.get(1)==null ? 0 : Long.parseLong(state.get(1));
+        }
+        entryMap.put("orderID",getOrderIDBase(hashKeyName)+"__"+orderSeed);
+        return entryMap;
+    }
+
+    // one BITFIELD read, then the new state and the event go out together in one pipeline - returns the stream written to
+    private String writePackedOrderEvent(int customerID){
+        long[] state = packedState.read(customerID);
+        int storedStage = (int) state[0];
+        long orderSeed = state[1];
+        HashMap<String,String> entryMap = new HashMap<>();
+        int nextStage;
+        boolean newOrder;
+        if(workloadModel!=null){
+            nextStage = workloadModel.nextStage(storedStage, random);
+            entryMap.put("stage",OrderWorkloadModel.STAGES[nextStage]);
+            newOrder = nextStage==OrderWorkloadModel.NEW;
+        }else{
+            boolean newCustomer = storedStage==PackedOrderStateStore.NO_STAGE;
+            nextStage = newCustomer || storedStage+1>=5 ? STAGE_NEW : storedStage+1; // after completed or cancelled comes a new order
+            nextStage = putStage(entryMap,nextStage,newCustomer);
+            newOrder = nextStage==STAGE_NEW;
+        }
+        if(newOrder){
+            orderSeed++;
+            putNewOrderDetails(entryMap);
+        }
+        entryMap.put("orderID",getOrderIDBase(getRouteEnrichedHashKeyName(routingValueCount, streamNameBase, customerID))+"__"+orderSeed);
+        String streamName = getTargetStreamName(customerID, entryMap);
+        long startNanos = System.nanoTime();
+        Response<StreamEntryID> entryID;
+        try(Connection connection = jedis.getPool().getResource()){
+            Pipeline pipeline = new Pipeline(connection);
+            packedState.write(pipeline, customerID, nextStage, orderSeed);
+            entryID = pipeline.xadd(streamName, XAddParams.xAddParams(), payloadCodec.encode(entryMap));
+            pipeline.sync();
+        }
+        EntryTracer.GLOBAL.trace("xadd", streamName, entryID.get(), startNanos, () -> entryMap.get("stage")+" "+entryMap.get("orderID"));
+        return streamName;
+    }
+
     private HashMap<String,String> buildCustomerOrderEvent(String hashKeyName ) {
-        String orderIDBase=hashKeyName.replaceAll("\\:","");
-        orderIDBase=orderIDBase.replaceAll("\\{","");
-        orderIDBase=orderIDBase.replaceAll("}","");
+        if(workloadModel!=null){
+            return buildModelledOrderEvent(hashKeyName);
+        }
+        String orderIDBase=getOrderIDBase(hashKeyName);
         HashMap<String,String> entryMap = new HashMap<>();
         int nextStage = STAGE_NEW;
         boolean newCustomer = true;
@@ -128,26 +300,12 @@ public class DummyOrderWriter {
         }else{
             orderSeed = (long) jedis.hincrBy(hashKeyName,"orderSeed",1);
         }
-        entryMap.put("stage",stages[nextStage]);
-        if((System.nanoTime()%10==0) && nextStage<STAGE_COMPLETED && nextStage>STAGE_NEW ){
-            //every so often an order gets delayed..
-            entryMap.put("stage","delayed");
-        }
-        if(System.nanoTime()%120==0 && (!newCustomer) && nextStage>STAGE_NEW){
-            //every so often an order gets cancelled..
-            entryMap.put("stage","cancelled");
-            nextStage=STAGE_CANCELLED;//using 10 as a flag to indicate a new orderID is needed
-        }
+        nextStage = putStage(entryMap,nextStage,newCustomer);
         //create or update the string that tracks the stage for this order:
         jedis.hset(hashKeyName,"stage",""+nextStage);
         if(nextStage==STAGE_NEW){
             orderSeed = (long) jedis.hincrBy(hashKeyName,"orderSeed",1);
-            // since this is a new order - we will add some food to it
-            for(int x = 1;x<(System.nanoTime()%15)+1;x++) {
-                entryMap.put("item"+x, faker.food().ingredient());
-            }
-            entryMap.put("contact_name",faker.name().fullName());
-            entryMap.put("order_cost",3*System.nanoTime()%5+(entryMap.size()*7.99)+"");
+            putNewOrderDetails(entryMap);
             entryMap.put("orderID",orderIDBase+"__"+orderSeed);
         }else if(nextStage>STAGE_NEW){ //we are adding the orderID to the entry that captures any other order stage
             try {
@@ -157,5 +315,40 @@ public class DummyOrderWriter {
         }
         return entryMap;
     }
-}
 
+    String getOrderIDBase(String hashKeyName){
+        String orderIDBase=hashKeyName.replaceAll("\\:","");
+        orderIDBase=orderIDBase.replaceAll("\\{","");
+        orderIDBase=orderIDBase.replaceAll("}","");
+        return orderIDBase;
+    }
+
+    // puts the stage name for nextStage into the entry - every so often replacing it with delayed or cancelled
+    // returns the stage to be remembered for this customer (STAGE_CANCELLED when a new orderID is needed)
+    int putStage(Map<String,String> entryMap,int nextStage,boolean newCustomer){
+        entryMap.put("stage",stages[nextStage]);
+        if((System.nanoTime()%10==0) && nextStage<STAGE_COMPLETED && nextStage>STAGE_NEW ){
+            //every so often an order gets delayed..
+            entryMap.put("stage","delayed");
+        }
+        if(System.nanoTime()%120==0 && (!newCustomer) && nextStage>STAGE_NEW){
+            //every so often an order gets cancelled..
+            entryMap.put("stage","cancelled");
+            nextStage=STAGE_CANCELLED;//using 10 as a flag to indicate a new orderID is needed
+        }
+        return nextStage;
+    }
+
+    // since this is a new order - we will add some food to it
+    void putNewOrderDetails(Map<String,String> entryMap){
+        if(workloadModel!=null){
+            workloadModel.putOrderDetails(entryMap, random);
+            return;
+        }
+        for(int x = 1;x<(System.nanoTime()%15)+1;x++) {
+            entryMap.put("item"+x, faker.food().ingredient());
+        }
+        entryMap.put("contact_name",faker.name().fullName());
+        entryMap.put("order_cost",3*System.nanoTime()%5+(entryMap.size()*7.99)+"");
+    }
+}
@@ -1,12 +1,23 @@
 package com.redislabs.sa.ot.rouws;
 
+import com.redislabs.sa.ot.streamutils.ConsumerLagMonitor;
+import com.redislabs.sa.ot.streamutils.KeyAffinityLaneDispatcher;
+import com.redislabs.sa.ot.streamutils.LettuceStreamWorkerGroupHelper;
 import com.redislabs.sa.ot.streamutils.RedisStreamWorkerGroupHelperV2;
+import com.redislabs.sa.ot.streamutils.SlotLeaseCoordinator;
+import com.redislabs.sa.ot.streamutils.StreamDoorbell;
 import com.redislabs.sa.ot.streamutils.StreamEventMapProcessorV2;
+import com.redislabs.sa.ot.streamutils.StreamFanOutListener;
+import com.redislabs.sa.ot.util.EntryTracer;
 import com.redislabs.sa.ot.util.JedisConnectionHelperSettings;
+import com.redislabs.sa.ot.util.LettuceConnectionHelper;
+import com.redislabs.sa.ot.util.ReconnectMetrics;
+import com.redislabs.sa.ot.util.RedisCircuitBreaker;
 import redis.clients.jedis.JedisPooled;
 import redis.clients.jedis.resps.StreamInfo;
 import redis.clients.jedis.search.*;
 
+import java.nio.file.Paths;
 import java.util.*;
 
 /**
@@ -31,7 +42,7 @@ import java.util.*;
 
  *  TODO: These JSON objects are indexed so that they can be searched ad-hoc
  *  Execute the following command to create an index:
- FT.CREATE idx_rouws ON JSON PREFIX 1 customer_order_history:X SCHEMA $.CustomerID AS CustomerID TAG $.order_stages[*].item1 AS item1 TAG $.order_stages[*].item2 AS item2 TAG $.order_stages[*].item3 AS item3 TAG $.order_stages[*].item4 AS item4 TAG $.order_stages[*].item5 AS item5 TAG $.order_stages[*].contact_name AS contact_name TEXT SORTABLE $.order_stages[*].order_cost AS order_cost NUMERIC SORTABLE $.order_stages[*].stage AS order_stage TAG SORTABLE
+ FT.CREATE idx_rouws1 ON JSON PREFIX 1 customer_order_history: SCHEMA $.RegionID AS region_id TAG $.order_stages[*].stage AS order_stage TAG $.order_stages[*].order_cost AS order_cost NUMERIC SORTABLE $.order_stages[*].orderID AS order_id TAG "$.order_stages[*]['item1','item2',...,'item15']" AS items TAG $.order_stages[*].contact_name AS order_contact TEXT
  *  The JSON has multiple Orders stored within it for searching
  *  Searches will be possible at the order item level, contact name level and order state
  *  In this way, parent (customer) and child (orders) will be associated to one another
@@ -43,7 +54,7 @@ public class Main {
     static int PRINT_OUT_SKIP_SIZE =100;//used to limit the times messages are written to the screen
     static int MAX_CONNECTIONS=1000;
     static String STREAM_NAME_BASE = "rouws:";
-    static String LISTENER_GROUP_NAME = "order_listeners"; //TODO: scale the streamWorkerGroup logic
+    static String LISTENER_GROUP_NAME = "order_listeners"; // names the read-only XREAD listeners and their checkpoints
     static String PROCESSOR_GROUP_NAME = "order_to_json_processors"; //TODO: scale the streamWorkerGroup logic
     static int NUMBER_OF_WORKER_THREADS = 1; //TODO: scale the streamWorkerGroup logic
     static long WORKER_SLEEP_TIME = 50l;//milliseconds //TODO: scale the streamWorkerGroup logic
@@ -53,11 +64,62 @@ public class Main {
     static int HOW_MANY_ENTRIES = 100;
     static int MAIN_LISTENER_DURATION = 20000;//20 seconds
     static int ROUTING_VALUE_COUNT = 2; // by default, divide the streams into 2 groups / slots)
-    static String INDEX_1_NAME = "idx_rouws1";
     static String INDEX_ALIAS_NAME = "idxa_rouws";
     static String OPERATIONS_STREAM_NAME = "X:OPERATIONS";
     static int howManyResultsToShow = 2;
     static int dialectVersion = 2;//3 provides full results from nested arrays
+    static int LANE_COUNT = 0; // 0 means no lanes: each worker thread processes the entries it reads
+    static int LANE_QUEUE_CAPACITY = 1000;
+    static KeyAffinityLaneDispatcher laneDispatcher = null;
+    // one breaker for every consumer and writer in this JVM - they all talk to the same endpoint:
+    static RedisCircuitBreaker circuitBreaker = new RedisCircuitBreaker();
+    static String ENGINE = "jedis"; // or "lettuce" to run the consumers and writers on a few multiplexed connections
+    static int ASYNC_CONNECTIONS = 2;
+    static int ASYNC_SCHEDULER_THREADS = 4;
+    static String PAYLOAD_CODEC = OrderEventCodec.FIELDS; // or "binary" to pack each event into one compact field
+    static boolean ROLLUPS = false; // true to keep per-region / per-time-bucket counters while processing
+    static long ROLLUP_FLUSH_MILLIS = 1000;
+    static RegionRollupProcessor regionRollups = null;
+    static boolean PROFILES = false; // true to add the customer_profile:* hash of each customer to its order stages
+    static int PROFILE_CACHE_SIZE = 100000;
+    static long PROFILE_TTL_MILLIS = 60000;
+    static CustomerProfileEnricher profileEnricher = null;
+    static boolean SLA = false; // true to raise an alert entry for orders that stay in a stage longer than its deadline
+    static String SLA_DEADLINES = OrderSlaTracker.DEFAULT_STAGE_DEADLINES;
+    static long SLA_TICK_MILLIS = 100;
+    static OrderSlaTracker slaTracker = null;
+    static boolean LAG_MONITOR = true; // sweep XINFO GROUPS across all streams and print the backlog
+    static int LAG_SWEEP_BATCH_SIZE = 500;
+    static int LAG_MAX_STREAMS_PER_SECOND = 20000;
+    static int LAG_TOP_N = 5;
+    static String LAG_METRICS_KEY_NAME = "rouws:metrics:consumer_lag";
+    static boolean SLOT_LEASES = false; // true to share the routing slots between all running instances automatically
+    static long LEASE_MILLIS = 10000;
+    static String INSTANCE_ID = null;
+    static SlotLeaseCoordinator slotLeaseCoordinator = null;
+    static boolean WORKLOAD_MODEL = false; // true to drive the writers with OrderWorkloadModel instead of nanoTime and Faker
+    static long WORKLOAD_SEED = 42;
+    static int CUSTOMER_COUNT = 0; // 0 means HOW_MANY_ENTRIES / ROUTING_VALUE_COUNT (the range the writers always used)
+    static double ZIPF_EXPONENT = 1.0;
+    static String STAGE_MATRIX = OrderWorkloadModel.DEFAULT_STAGE_MATRIX;
+    static int CORPUS_SIZE = 1000;
+    static boolean CHANGE_NOTICES = false; // true to SPUBLISH a notice per JSON change and fan them out to local listeners
+    static int CHANGE_CHANNELS_PER_CONNECTION = 64;
+    static OrderChangeGateway changeGateway = null;
+    static int PARTITIONS_PER_REGION = 0; // 0 keeps one stream per customer - N writes every region's events to N partition streams
+    static PartitionedStreamLayout partitionedStreams = null;
+    static String WRITER_STATE = "hash"; // or "packed" to keep the writers' per-customer state in BITFIELD records per slot
+    static double TRACE_SAMPLE_RATE = 0; // fraction of entries followed from xadd to xack - 0 turns tracing off
+    static String TRACE_FILE = "entry_traces.tsv";
+    static boolean DOORBELL = false; // true to have writers ring a per-slot doorbell and consumers read only the rung streams
+    static long DOORBELL_SWEEP_MILLIS = 30000;
+    static StreamDoorbell doorbell = null;
+    static int MAX_DELIVERIES = 5; // an entry that still fails after this many deliveries goes to the dead-letter stream
+    static long RETRY_MIN_IDLE_MILLIS = 60000; // how long a failed entry waits before it is claimed and retried
+    static int NUMBER_OF_LISTENERS = 0; // read-only XREAD followers per slot batch - no consumer group, no acks
+    static String LISTENER_CHECKPOINT_DIR = null; // null keeps the listener checkpoints in redis
+    static long LISTENER_CHECKPOINT_MILLIS = 5000;
+    static List<StreamFanOutListener> fanOutListeners = new ArrayList<>();
 
     public static void main(String [] args){
         ArrayList<String> argList = null;
@@ -65,65 +127,7 @@ public class Main {
 
         if(args.length>0) {
             argList = new ArrayList<>(Arrays.asList(args));
-            if (argList.contains("--host")) {
-                int argIndex = argList.indexOf("--host");
-                String host = argList.get(argIndex + 1);
-                settings.setRedisHost(host);
-            }
-            if (argList.contains("--port")) {
-                int argIndex = argList.indexOf("--port");
-                int port = Integer.parseInt(argList.get(argIndex + 1));
-                settings.setRedisPort(port);
-            }
-            if (argList.contains("--username")) {
-                int argIndex = argList.indexOf("--username");
-                String userName = argList.get(argIndex + 1);
-                settings.setUserName(userName);
-            }
-            if (argList.contains("--password")) {
-                int argIndex = argList.indexOf("--password");
-                String password = argList.get(argIndex + 1);
-                if(password!="") {
-                    settings.setPassword(password);
-                    settings.setUsePassword(true);
-                }
-            }
-            if (argList.contains("--usessl")) {
-                int argIndex = argList.indexOf("--usessl");
-                boolean useSSL = Boolean.parseBoolean(argList.get(argIndex + 1));
-                System.out.println("loading custom --usessl == " + useSSL);
-                settings.setUseSSL(useSSL);
-            }
-            if (argList.contains("--cacertpath")) {
-                int argIndex = argList.indexOf("--cacertpath");
-                String caCertPath = argList.get(argIndex + 1);
-                System.out.println("loading custom --cacertpath == " + caCertPath);
-                settings.setCaCertPath(caCertPath);
-            }
-            if (argList.contains("--cacertpassword")) {
-                int argIndex = argList.indexOf("--cacertpassword");
-                String caCertPassword = argList.get(argIndex + 1);
-                System.out.println("loading custom --cacertpassword == " + caCertPassword);
-                settings.setCaCertPassword(caCertPassword);
-            }
-            if (argList.contains("--usercertpath")) {
-                int argIndex = argList.indexOf("--usercertpath");
-                String userCertPath = argList.get(argIndex + 1);
-                System.out.println("loading custom --usercertpath == " + userCertPath);
-                settings.setUserCertPath(userCertPath);
-            }
-            if (argList.contains("--usercertpass")) {
-                int argIndex = argList.indexOf("--usercertpass");
-                String userCertPassword = argList.get(argIndex + 1);
-                System.out.println("loading custom --usercertpass == " + userCertPassword);
-                settings.setUserCertPassword(userCertPassword);
-            }
-
-            if (argList.contains("--maxconnections")) {
-                int argIndex = argList.indexOf("--maxconnections");
-                MAX_CONNECTIONS = Integer.parseInt(argList.get(argIndex + 1));
-                settings.setMaxConnections(MAX_CONNECTIONS);
-            }
+            parseConnectionSettings(argList, settings);
             if (argList.contains("--verbose")) {
                 int argIndex = argList.indexOf("--verbose");
                 VERBOSE = Boolean.parseBoolean(argList.get(argIndex + 1));
@@ -176,8 +180,172 @@ public class Main {
                 int argIndex = argList.indexOf("--workersleeptime");
                 WORKER_SLEEP_TIME = Integer.parseInt(argList.get(argIndex + 1));
             }
+            if (argList.contains("--lanecount")) {
+                int argIndex = argList.indexOf("--lanecount");
+                LANE_COUNT = Integer.parseInt(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--lanequeuecapacity")) {
+                int argIndex = argList.indexOf("--lanequeuecapacity");
+                LANE_QUEUE_CAPACITY = Integer.parseInt(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--engine")) {
+                int argIndex = argList.indexOf("--engine");
+                ENGINE = argList.get(argIndex + 1);
+            }
+            if (argList.contains("--asyncconnections")) {
+                int argIndex = argList.indexOf("--asyncconnections");
+                ASYNC_CONNECTIONS = Integer.parseInt(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--payloadcodec")) {
+                int argIndex = argList.indexOf("--payloadcodec");
+                PAYLOAD_CODEC = argList.get(argIndex + 1);
+            }
+            if (argList.contains("--rollups")) {
+                int argIndex = argList.indexOf("--rollups");
+                ROLLUPS = Boolean.parseBoolean(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--rollupflushmillis")) {
+                int argIndex = argList.indexOf("--rollupflushmillis");
+                ROLLUP_FLUSH_MILLIS = Long.parseLong(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--profiles")) {
+                int argIndex = argList.indexOf("--profiles");
+                PROFILES = Boolean.parseBoolean(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--profilecachesize")) {
+                int argIndex = argList.indexOf("--profilecachesize");
+                PROFILE_CACHE_SIZE = Integer.parseInt(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--profilettlmillis")) {
+                int argIndex = argList.indexOf("--profilettlmillis");
+                PROFILE_TTL_MILLIS = Long.parseLong(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--sla")) {
+                int argIndex = argList.indexOf("--sla");
+                SLA = Boolean.parseBoolean(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--sladeadlines")) {
+                int argIndex = argList.indexOf("--sladeadlines");
+                SLA_DEADLINES = argList.get(argIndex + 1);
+            }
+            if (argList.contains("--slatickmillis")) {
+                int argIndex = argList.indexOf("--slatickmillis");
+                SLA_TICK_MILLIS = Long.parseLong(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--lagmonitor")) {
+                int argIndex = argList.indexOf("--lagmonitor");
+                LAG_MONITOR = Boolean.parseBoolean(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--lagsweepbatchsize")) {
+                int argIndex = argList.indexOf("--lagsweepbatchsize");
+                LAG_SWEEP_BATCH_SIZE = Integer.parseInt(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--lagmaxstreamspersecond")) {
+                int argIndex = argList.indexOf("--lagmaxstreamspersecond");
+                LAG_MAX_STREAMS_PER_SECOND = Integer.parseInt(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--lagtopn")) {
+                int argIndex = argList.indexOf("--lagtopn");
+                LAG_TOP_N = Integer.parseInt(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--slotleases")) {
+                int argIndex = argList.indexOf("--slotleases");
+                SLOT_LEASES = Boolean.parseBoolean(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--leasemillis")) {
+                int argIndex = argList.indexOf("--leasemillis");
+                LEASE_MILLIS = Long.parseLong(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--instanceid")) {
+                int argIndex = argList.indexOf("--instanceid");
+                INSTANCE_ID = argList.get(argIndex + 1);
+            }
+            if (argList.contains("--workloadmodel")) {
+                int argIndex = argList.indexOf("--workloadmodel");
+                WORKLOAD_MODEL = Boolean.parseBoolean(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--workloadseed")) {
+                int argIndex = argList.indexOf("--workloadseed");
+                WORKLOAD_SEED = Long.parseLong(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--customercount")) {
+                int argIndex = argList.indexOf("--customercount");
+                CUSTOMER_COUNT = Integer.parseInt(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--zipfexponent")) {
+                int argIndex = argList.indexOf("--zipfexponent");
+                ZIPF_EXPONENT = Double.parseDouble(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--stagematrix")) {
+                int argIndex = argList.indexOf("--stagematrix");
+                STAGE_MATRIX = argList.get(argIndex + 1);
+            }
+            if (argList.contains("--corpussize")) {
+                int argIndex = argList.indexOf("--corpussize");
+                CORPUS_SIZE = Integer.parseInt(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--changenotices")) {
+                int argIndex = argList.indexOf("--changenotices");
+                CHANGE_NOTICES = Boolean.parseBoolean(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--changechannelsperconnection")) {
+                int argIndex = argList.indexOf("--changechannelsperconnection");
+                CHANGE_CHANNELS_PER_CONNECTION = Integer.parseInt(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--partitionsperregion")) {
+                int argIndex = argList.indexOf("--partitionsperregion");
+                PARTITIONS_PER_REGION = Integer.parseInt(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--writerstate")) {
+                int argIndex = argList.indexOf("--writerstate");
+                WRITER_STATE = argList.get(argIndex + 1);
+            }
+            if (argList.contains("--tracesamplerate")) {
+                int argIndex = argList.indexOf("--tracesamplerate");
+                TRACE_SAMPLE_RATE = Double.parseDouble(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--tracefile")) {
+                int argIndex = argList.indexOf("--tracefile");
+                TRACE_FILE = argList.get(argIndex + 1);
+            }
+            if (argList.contains("--doorbell")) {
+                int argIndex = argList.indexOf("--doorbell");
+                DOORBELL = Boolean.parseBoolean(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--doorbellsweepmillis")) {
+                int argIndex = argList.indexOf("--doorbellsweepmillis");
+                DOORBELL_SWEEP_MILLIS = Long.parseLong(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--maxdeliveries")) {
+                int argIndex = argList.indexOf("--maxdeliveries");
+                MAX_DELIVERIES = Integer.parseInt(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--retryminidlemillis")) {
+                int argIndex = argList.indexOf("--retryminidlemillis");
+                RETRY_MIN_IDLE_MILLIS = Long.parseLong(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--listeners")) {
+                int argIndex = argList.indexOf("--listeners");
+                NUMBER_OF_LISTENERS = Integer.parseInt(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--listenercheckpointdir")) {
+                int argIndex = argList.indexOf("--listenercheckpointdir");
+                LISTENER_CHECKPOINT_DIR = argList.get(argIndex + 1);
+            }
+            if (argList.contains("--listenercheckpointmillis")) {
+                int argIndex = argList.indexOf("--listenercheckpointmillis");
+                LISTENER_CHECKPOINT_MILLIS = Long.parseLong(argList.get(argIndex + 1));
+            }
+            if (argList.contains("--asyncschedulerthreads")) {
+                int argIndex = argList.indexOf("--asyncschedulerthreads");
+                ASYNC_SCHEDULER_THREADS = Integer.parseInt(argList.get(argIndex + 1));
+            }
         }
-        settings.setTestOnBorrow(true);
+        EntryTracer.GLOBAL.setSampleRate(TRACE_SAMPLE_RATE).setTraceFile(TRACE_FILE).start();
+        // a PING on every borrow doubles the round trips of the hot path
+        // instead, the pool evictor validates idle connections in the background:
+        settings.setTestOnBorrow(false);
+        settings.setTestWhileIdle(true);
         settings.setConnectionTimeoutMillis(120000);
         settings.setNumberOfMinutesForWaitDuration(1);
         settings.setNumTestsPerEvictionRun(10);
@@ -201,42 +369,272 @@ public class Main {
 
 //        JedisConnectionHelper connectionHelper = new JedisConnectionHelper(JedisConnectionHelper.buildURI(host,port,userName,password),MAX_CONNECTIONS);
 
-        if(NUMBER_OF_WORKER_THREADS>0) { // we will have at least one consumer of streams:
-            ArrayList<String> streamNamesFullList = new ArrayList<>();
-            DummyOrderWriter tempDummyOrderWriter = new DummyOrderWriter();
-            int loopValue = (HOW_MANY_ENTRIES / ROUTING_VALUE_COUNT);
-            if(loopValue<ROUTING_VALUE_COUNT){loopValue=ROUTING_VALUE_COUNT;}
-            for (int x = 0; x < loopValue; x++) { //many entries/order/Stream
-                streamNamesFullList.add(tempDummyOrderWriter.getRouteEnrichedStreamName(ROUTING_VALUE_COUNT,STREAM_NAME_BASE, x));
-            }
-            int fullNameCount = streamNamesFullList.size();
-            int divisor = (int) fullNameCount / ROUTING_VALUE_COUNT;
-            if(divisor<1){divisor=1;}
-            System.out.println("fullnameCount = " + fullNameCount + " divisor = " + divisor);
-            for (int batch = 0; batch < ROUTING_VALUE_COUNT; batch++) {
-                // we want to produce ROUTING_VALUE_COUNT-many streamNameLists and also that many RedisStreamWorkerGroupHelperV2's
-                ArrayList<String> streamNamesList = new ArrayList<>();
-                for (int y = 0; y < streamNamesFullList.size(); y++) {
-                    if (y % ROUTING_VALUE_COUNT == batch) {
-                        //collect the ones that are in this batch:
-                        streamNamesList.add(streamNamesFullList.get(y));
+        if("lettuce".equalsIgnoreCase(ENGINE)){
+            // consumers and writers share a few multiplexed connections instead of holding a pooled connection each
+            if(ROLLUPS){
+                System.out.println("--rollups is only supported by the jedis engine - ignoring it");
+            }
+            if(PROFILES){
+                System.out.println("--profiles is only supported by the jedis engine - ignoring it");
+            }
+            if(SLA){
+                System.out.println("--sla is only supported by the jedis engine - ignoring it");
+            }
+            if(CHANGE_NOTICES){
+                System.out.println("--changenotices is only supported by the jedis engine - ignoring it");
+                CHANGE_NOTICES = false;
+            }
+            if(NUMBER_OF_LISTENERS>0){
+                System.out.println("--listeners is only supported by the jedis engine - ignoring it");
+            }
+            if("packed".equalsIgnoreCase(WRITER_STATE)){
+                System.out.println("--writerstate packed is only supported by the jedis engine - ignoring it");
+            }
+            if(DOORBELL){
+                System.out.println("--doorbell is only supported by the jedis engine - ignoring it");
+            }
+            if(PARTITIONS_PER_REGION>0){
+                System.out.println("--partitionsperregion is only supported by the jedis engine - ignoring it");
+                PARTITIONS_PER_REGION = 0;
+            }
+            LettuceConnectionHelper lettuceConnectionHelper = new LettuceConnectionHelper(settings,ASYNC_CONNECTIONS,ASYNC_SCHEDULER_THREADS);
+            startAsyncWorkersAndWriters(lettuceConnectionHelper);
+        }else{
+            if(DOORBELL){
+                doorbell = new StreamDoorbell().setPooledJedis(connectionHelper.getPooledJedis()).setKeyBase(STREAM_NAME_BASE+"doorbell:");
+            }
+            if(PARTITIONS_PER_REGION>0){
+                partitionedStreams = new PartitionedStreamLayout(STREAM_NAME_BASE, ROUTING_VALUE_COUNT, PARTITIONS_PER_REGION);
+            }
+            if(CHANGE_NOTICES){
+                startChangeGateway(connectionHelper); // subscribed before the processors start publishing
+            }
+            startWorkersAndWriters(connectionHelper);
+        }
+        //Create a search index
+        createSearchIndex(connectionHelper.getPooledJedis());
+
+        ConsumerLagMonitor lagMonitor = null;
+        if(LAG_MONITOR){
+            ArrayList<String> allStreamNames = new ArrayList<>();
+            for(ArrayList<String> streamNamesList:buildStreamNameBatches()){
+                allStreamNames.addAll(streamNamesList);
+            }
+            lagMonitor = new ConsumerLagMonitor()
+                    .setPooledJedis(connectionHelper.getPooledJedis())
+                    .setStreamNames(allStreamNames)
+                    .setSweepBatchSize(LAG_SWEEP_BATCH_SIZE)
+                    .setMaxStreamsPerSecond(LAG_MAX_STREAMS_PER_SECOND)
+                    .setTopN(LAG_TOP_N)
+                    .setMetricsKeyName(LAG_METRICS_KEY_NAME)
+                    .start();
+        }
+        ConsumerLagMonitor.LagSweep lastPrintedSweep = null;
+        DummyOrderWriter dummyOrderWriter = new DummyOrderWriter();
+        long startTime = System.currentTimeMillis();
+        while(System.currentTimeMillis()<startTime+MAIN_LISTENER_DURATION) {//20 seconds of this:by default
+            try {
+                Thread.sleep(WORKER_SLEEP_TIME);
+                if(laneDispatcher!=null){
+                    System.out.println(laneDispatcher.describeLaneQueueDepths());
+                }
+                if(ReconnectMetrics.GLOBAL.getConnectionFailures()>0){
+                    System.out.println(ReconnectMetrics.GLOBAL);
+                }
+                if(EntryTracer.GLOBAL.isEnabled()){
+                    System.out.println(EntryTracer.GLOBAL);
+                }
+                if(!fanOutListeners.isEmpty()){
+                    long entriesSeen = 0;
+                    for(StreamFanOutListener listener:fanOutListeners){
+                        entriesSeen += listener.getEntriesSeen();
                     }
+                    System.out.println("StreamFanOutListeners ("+fanOutListeners.size()+") entries seen: "+entriesSeen);
                 }
+                if(changeGateway!=null){
+                    System.out.println("OrderChangeGateway notices received: "+changeGateway.getNoticesReceived());
+                }
+                if(lagMonitor!=null && lagMonitor.getLatestSweep()!=lastPrintedSweep){
+                    lastPrintedSweep = lagMonitor.getLatestSweep();
+                    System.out.println(lastPrintedSweep);
+                }
+                String streamKeyName =  partitionedStreams!=null ?
+                        partitionedStreams.partitionStreamName((int)(System.nanoTime() % ROUTING_VALUE_COUNT), (int)(System.nanoTime() % PARTITIONS_PER_REGION)) :
+                        dummyOrderWriter.getRouteEnrichedStreamName(ROUTING_VALUE_COUNT,STREAM_NAME_BASE,(int)System.nanoTime() % ROUTING_VALUE_COUNT);
+                StreamInfo message = connectionHelper.getPooledJedis().xinfoStream(streamKeyName);
+                Map<String, String> entryFields = OrderEventCodec.decode(message.getLastEntry().getFields());
+                Set<String> keySet = entryFields.keySet();
+                System.out.println("\t Got message/entry from Stream with key name of: "+streamKeyName);
+                for (String key : keySet) {
+                    System.out.println(key + ": " + entryFields.get(key));
+                }
+            } catch (Throwable t) {
+            }
+        }
+        //test the StreamUpdateJSONProcessor by
+        //Registering a StreamUpdateJSONProcessor to the X:OPERATIONS stream
+        //Using the index to search for a completed order with HAM
+        //then creating a replace operation entry that will be worked on by our StreamUpdateJSONProcessor
+        registerOperationsWorker(connectionHelper);
+
+    }
 
+    // the arguments describing how to connect to redis - shared by Main and the standalone tools
+    static JedisConnectionHelperSettings parseConnectionSettings(ArrayList<String> argList, JedisConnectionHelperSettings settings){
+        if (argList.contains("--host")) {
+            int argIndex = argList.indexOf("--host");
+            String host = argList.get(argIndex + 1);
+            settings.setRedisHost(host);
+        }
+        if (argList.contains("--port")) {
+            int argIndex = argList.indexOf("--port");
+            int port = Integer.parseInt(argList.get(argIndex + 1));
+            settings.setRedisPort(port);
+        }
+        if (argList.contains("--username")) {
+            int argIndex = argList.indexOf("--username");
+            String userName = argList.get(argIndex + 1);
+            settings.setUserName(userName);
+        }
+        if (argList.contains("--password")) {
+            int argIndex = argList.indexOf("--password");
+            String password = argList.get(argIndex + 1);
+            if(password!="") {
+                settings.setPassword(password);
+                settings.setUsePassword(true);
+            }
+        }
+        if (argList.contains("--usessl")) {
+            int argIndex = argList.indexOf("--usessl");
+            boolean useSSL = Boolean.parseBoolean(argList.get(argIndex + 1));
+            System.out.println("loading custom --usessl == " + useSSL);
+            settings.setUseSSL(useSSL);
+        }
+        if (argList.contains("--cacertpath")) {
+            int argIndex = argList.indexOf("--cacertpath");
+            String caCertPath = argList.get(argIndex + 1);
+            System.out.println("loading custom --cacertpath == " + caCertPath);
+            settings.setCaCertPath(caCertPath);
+        }
+        if (argList.contains("--cacertpassword")) {
+            int argIndex = argList.indexOf("--cacertpassword");
+            String caCertPassword = argList.get(argIndex + 1);
+            System.out.println("loading custom --cacertpassword == " + caCertPassword);
+            settings.setCaCertPassword(caCertPassword);
+        }
+        if (argList.contains("--usercertpath")) {
+            int argIndex = argList.indexOf("--usercertpath");
+            String userCertPath = argList.get(argIndex + 1);
+            System.out.println("loading custom --usercertpath == " + userCertPath);
+            settings.setUserCertPath(userCertPath);
+        }
+        if (argList.contains("--usercertpass")) {
+            int argIndex = argList.indexOf("--usercertpass");
+            String userCertPassword = argList.get(argIndex + 1);
+            System.out.println("loading custom --usercertpass == " + userCertPassword);
+            settings.setUserCertPassword(userCertPassword);
+        }
+
+        if (argList.contains("--maxconnections")) {
+            int argIndex = argList.indexOf("--maxconnections");
+            MAX_CONNECTIONS = Integer.parseInt(argList.get(argIndex + 1));
+            settings.setMaxConnections(MAX_CONNECTIONS);
+        }
+        return settings;
+    }
+
+    // the routing value (slot) of a stream decides the batch it belongs to - all streams in a batch share a slot
+    static ArrayList<ArrayList<String>> buildStreamNameBatches(){
+        if(partitionedStreams!=null){
+            return partitionedStreams.streamNameBatches(); // a few partition streams per region instead of a stream per customer
+        }
+        ArrayList<ArrayList<String>> batches = new ArrayList<>();
+        ArrayList<String> streamNamesFullList = new ArrayList<>();
+        DummyOrderWriter tempDummyOrderWriter = new DummyOrderWriter();
+        int loopValue = (HOW_MANY_ENTRIES / ROUTING_VALUE_COUNT);
+        if(loopValue<ROUTING_VALUE_COUNT){loopValue=ROUTING_VALUE_COUNT;}
+        //the workload model writes to --customercount customers - every one of their streams needs a consumer group:
+        loopValue = Math.max(loopValue, CUSTOMER_COUNT);
+        for (int x = 0; x < loopValue; x++) { //many entries/order/Stream
+            streamNamesFullList.add(tempDummyOrderWriter.getRouteEnrichedStreamName(ROUTING_VALUE_COUNT,STREAM_NAME_BASE, x));
+        }
+        int fullNameCount = streamNamesFullList.size();
+        int divisor = (int) fullNameCount / ROUTING_VALUE_COUNT;
+        if(divisor<1){divisor=1;}
+        System.out.println("fullnameCount = " + fullNameCount + " divisor = " + divisor);
+        for (int batch = 0; batch < ROUTING_VALUE_COUNT; batch++) {
+            // we want to produce ROUTING_VALUE_COUNT-many streamNameLists and also that many worker group helpers
+            ArrayList<String> streamNamesList = new ArrayList<>();
+            for (int y = 0; y < streamNamesFullList.size(); y++) {
+                if (y % ROUTING_VALUE_COUNT == batch) {
+                    //collect the ones that are in this batch:
+                    streamNamesList.add(streamNamesFullList.get(y));
+                }
+            }
+            batches.add(streamNamesList);
+        }
+        return batches;
+    }
+
+    static void startWorkersAndWriters(com.redislabs.sa.ot.util.JedisConnectionHelper connectionHelper){
+        if(LANE_COUNT>0 && NUMBER_OF_WORKER_THREADS>0){
+            // one reading consumer per group hands entries to lanes keyed by stream name
+            // this keeps the stages for a customer in order while customers are processed in parallel
+            laneDispatcher = new KeyAffinityLaneDispatcher()
+                    .setLaneCount(LANE_COUNT)
+                    .setLaneQueueCapacity(LANE_QUEUE_CAPACITY)
+                    .start();
+        }
+        if(ROLLUPS && NUMBER_OF_WORKER_THREADS>0){
+            // one shared instance: all workers add to the same totals which are flushed in one pipeline
+            regionRollups = new RegionRollupProcessor()
+                    .setJedisPooled(connectionHelper.getPooledJedis())
+                    .setFlushIntervalMillis(ROLLUP_FLUSH_MILLIS)
+                    .start();
+        }
+        if(PROFILES && NUMBER_OF_WORKER_THREADS>0){
+            // one shared cache: a profile fetched by one worker is a hit for all the others
+            profileEnricher = new CustomerProfileEnricher()
+                    .setJedisPooled(connectionHelper.getPooledJedis())
+                    .setPartitionedStreamLayout(partitionedStreams)
+                    .setMaxEntries(PROFILE_CACHE_SIZE)
+                    .setTtlMillis(PROFILE_TTL_MILLIS)
+                    .start();
+        }
+        if(SLA && NUMBER_OF_WORKER_THREADS>0){
+            // one shared wheel: the stages of an order may be processed by any worker of this JVM
+            slaTracker = new OrderSlaTracker()
+                    .setJedisPooled(connectionHelper.getPooledJedis())
+                    .setPartitionedStreamLayout(partitionedStreams)
+                    .setStageDeadlines(SLA_DEADLINES)
+                    .setTickMillis(SLA_TICK_MILLIS)
+                    .setAlertStreamName("X:"+STREAM_NAME_BASE+"sla_alerts")
+                    .start();
+        }
+        if(SLOT_LEASES && NUMBER_OF_WORKER_THREADS>0){
+            startLeasedWorkers(connectionHelper);
+        }else if(NUMBER_OF_WORKER_THREADS>0) { // we will have at least one consumer of streams:
+            int laneReaderCount = 0;
+            for (ArrayList<String> streamNamesList : buildStreamNameBatches()) {
                 RedisStreamWorkerGroupHelperV2 redisStreamWorkerGroupHelperV2 =
                         new RedisStreamWorkerGroupHelperV2()
                                 .setPooledJedis(connectionHelper.getPooledJedis())
                                 .setStreamNamesArrayList(streamNamesList)
                                 .setVerbose(VERBOSE)
-                                .setPrintoutSkipSize(PRINT_OUT_SKIP_SIZE);
+                                .setPrintoutSkipSize(PRINT_OUT_SKIP_SIZE)
+                                .setLaneDispatcher(laneDispatcher)
+                                .setDoorbell(doorbell, DOORBELL_SWEEP_MILLIS)
+                                .setFailurePolicy(MAX_DELIVERIES, RETRY_MIN_IDLE_MILLIS, "X:"+STREAM_NAME_BASE+"deadletter")
+                                .setCircuitBreaker(circuitBreaker);
                 redisStreamWorkerGroupHelperV2.createConsumerGroup(PROCESSOR_GROUP_NAME);
+                if(laneDispatcher!=null){
+                    // a second reader in the same group could hand a later stage to a lane before an earlier one
+                    StreamEventMapProcessorV2 processor = buildJSONProcessor(connectionHelper);
+                    redisStreamWorkerGroupHelperV2.namedGroupConsumerStartListeningToAllStreams("laneReader" + (laneReaderCount++ + ADD_ON_DELTA_FOR_WORKER_NAME), processor);
+                    continue;
+                }
                 for (int w = 0; w < NUMBER_OF_WORKER_THREADS; w++) {
-                    StreamEventMapProcessorV2 processor =
-                            new StreamEventToJSONProcessorV2()
-                                    .setJedisPooled(connectionHelper.getPooledJedis())
-                                    .setSleepTime(WORKER_SLEEP_TIME)
-                                    .setVerbose(VERBOSE)
-                                    .setPrintoutSkipSize(PRINT_OUT_SKIP_SIZE);
+                    StreamEventMapProcessorV2 processor = buildJSONProcessor(connectionHelper);
                     String workerName = "worker" + (w + ADD_ON_DELTA_FOR_WORKER_NAME);
                     for (String streamName : streamNamesList) {
                         redisStreamWorkerGroupHelperV2.namedGroupConsumerStartListeningToAllStreams(workerName, processor);
@@ -244,40 +642,214 @@ public class Main {
                 }
             }
         }
-        DummyOrderWriter dummyOrderWriter = null;
+        if(NUMBER_OF_LISTENERS>0){
+            startFanOutListeners(connectionHelper);
+        }
+        OrderWorkloadModel workloadModel = buildWorkloadModel();
+        PackedOrderStateStore packedState = "packed".equalsIgnoreCase(WRITER_STATE) ?
+                new PackedOrderStateStore(connectionHelper.getPooledJedis(), ROUTING_VALUE_COUNT) : null;
         for(int wt=0;wt<NUMBER_OF_WRITER_THREADS;wt++){
-            dummyOrderWriter = new DummyOrderWriter()
+            DummyOrderWriter dummyOrderWriter = new DummyOrderWriter()
                     .setJedisPooled(connectionHelper.getPooledJedis())
+                    .setCircuitBreaker(circuitBreaker)
+                    .setPayloadCodec(OrderEventCodec.forName(PAYLOAD_CODEC))
                     .setSleepTime(WRITER_SLEEP_TIME)
                     .setRoutingValueCount(ROUTING_VALUE_COUNT)
                     .setTotalNumberToWrite(HOW_MANY_ENTRIES)
-                    .setStreamNameBase(STREAM_NAME_BASE);
+                    .setStreamNameBase(STREAM_NAME_BASE)
+                    .setPartitionedStreamLayout(partitionedStreams)
+                    .setDoorbell(doorbell)
+                    .setPackedOrderStateStore(packedState);
+            if(workloadModel!=null){
+                dummyOrderWriter.setWorkloadModel(workloadModel, wt);
+            }
             dummyOrderWriter.kickOffStreamEvents();
         }
-        //Create a search index
-        createSearchIndex(connectionHelper.getPooledJedis());
+    }
 
-        long startTime = System.currentTimeMillis();
-        while(System.currentTimeMillis()<startTime+MAIN_LISTENER_DURATION) {//20 seconds of this:by default
-            try {
-                Thread.sleep(WORKER_SLEEP_TIME);
-                String streamKeyName =  dummyOrderWriter.getRouteEnrichedStreamName(ROUTING_VALUE_COUNT,STREAM_NAME_BASE,(int)System.nanoTime() % ROUTING_VALUE_COUNT);
-                StreamInfo message = connectionHelper.getPooledJedis().xinfoStream(streamKeyName);
-                Map<String, String> entryFields = message.getLastEntry().getFields();
-                Set<String> keySet = entryFields.keySet();
-                System.out.println("\t Got message/entry from Stream with key name of: "+streamKeyName);
-                for (String key : keySet) {
-                    System.out.println(key + ": " + entryFields.get(key));
+    // the instances divide the routing slots among themselves - each slot's batch of streams runs here only while this instance owns it
+    static void startLeasedWorkers(com.redislabs.sa.ot.util.JedisConnectionHelper connectionHelper){
+        if(laneDispatcher!=null){
+            System.out.println("--lanecount is not used together with --slotleases");
+        }
+        ArrayList<ArrayList<String>> batches = buildStreamNameBatches();
+        ArrayList<String> slots = new ArrayList<>();
+        for(int slot=0;slot<batches.size();slot++){
+            slots.add(""+slot); // batch N holds the streams with the routing value {N}
+        }
+        String instanceID = INSTANCE_ID;
+        if(instanceID==null){
+            instanceID = java.lang.management.ManagementFactory.getRuntimeMXBean().getName()+"-"+UUID.randomUUID().toString().substring(0,8);
+        }
+        Map<String,RedisStreamWorkerGroupHelperV2> helpersBySlot = new HashMap<>();
+        String consumerBaseName = instanceID;
+        slotLeaseCoordinator = new SlotLeaseCoordinator()
+                .setPooledJedis(connectionHelper.getPooledJedis())
+                .setInstanceID(instanceID)
+                .setSlots(slots)
+                .setLeaseMillis(LEASE_MILLIS)
+                .setHeartbeatMillis(LEASE_MILLIS/3)
+                .setSlotListener(new SlotLeaseCoordinator.SlotListener() {
+                    @Override
+                    public void slotAcquired(String slot, String previousOwner, long claimMinIdleMillis) {
+                        RedisStreamWorkerGroupHelperV2 helper =
+                                new RedisStreamWorkerGroupHelperV2()
+                                        .setPooledJedis(connectionHelper.getPooledJedis())
+                                        .setStreamNamesArrayList(batches.get(Integer.parseInt(slot)))
+                                        .setVerbose(VERBOSE)
+                                        .setPrintoutSkipSize(PRINT_OUT_SKIP_SIZE)
+                                        .setDoorbell(doorbell, DOORBELL_SWEEP_MILLIS)
+                                        .setFailurePolicy(MAX_DELIVERIES, RETRY_MIN_IDLE_MILLIS, "X:"+STREAM_NAME_BASE+"deadletter")
+                                        .setCircuitBreaker(circuitBreaker);
+                        helper.createConsumerGroup(PROCESSOR_GROUP_NAME);
+                        // what the previous owner left pending is ours now - or, when it did not drain in time, what it has stopped working on
+                        long claimed = helper.claimPendingEntries(consumerBaseName+"-w0", claimMinIdleMillis, buildJSONProcessor(connectionHelper));
+                        if(claimed>0){
+                            System.out.println("Claimed "+claimed+" pending entries of slot "+slot+" from "+previousOwner);
+                        }
+                        for (int w = 0; w < NUMBER_OF_WORKER_THREADS; w++) {
+                            helper.namedGroupConsumerStartListeningToAllStreams(consumerBaseName+"-w"+w, buildJSONProcessor(connectionHelper));
+                        }
+                        helpersBySlot.put(slot, helper);
+                    }
+
+                    @Override
+                    public boolean slotReleased(String slot) {
+                        RedisStreamWorkerGroupHelperV2 helper = helpersBySlot.remove(slot);
+                        if(helper==null){
+                            return true;
+                        }
+                        helper.stopListening();
+                        try {
+                            if(helper.awaitStopped(LEASE_MILLIS)){
+                                return true;
+                            }
+                            System.out.println("Slot "+slot+" did not drain in time - its pending entries will be claimed by the next owner once idle");
+                        }catch(InterruptedException ie){
+                            Thread.currentThread().interrupt();
+                        }
+                        return false;
+                    }
+                })
+                .start();
+        // leaving cleanly hands the slots over straight away instead of after the lease expires
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> slotLeaseCoordinator.stop()));
+    }
+
+    // each listener follows every slot batch with its own XREAD loop and resumes from its own checkpoints
+    static void startFanOutListeners(com.redislabs.sa.ot.util.JedisConnectionHelper connectionHelper){
+        ArrayList<ArrayList<String>> batches = buildStreamNameBatches();
+        for(int l=0;l<NUMBER_OF_LISTENERS;l++){
+            String listenerName = LISTENER_GROUP_NAME+"-"+(l+ADD_ON_DELTA_FOR_WORKER_NAME);
+            for(int slot=0;slot<batches.size();slot++){
+                StreamFanOutListener listener = new StreamFanOutListener()
+                        .setPooledJedis(connectionHelper.getPooledJedis())
+                        .setStreamNamesArrayList(batches.get(slot))
+                        .setListenerName(listenerName+"-slot"+slot)
+                        .setCheckpointIntervalMillis(LISTENER_CHECKPOINT_MILLIS)
+                        .setCircuitBreaker(circuitBreaker);
+                if(LISTENER_CHECKPOINT_DIR!=null){
+                    listener.setCheckpointFile(Paths.get(LISTENER_CHECKPOINT_DIR, listenerName+"_slot"+slot+".offsets").toString());
+                }else{
+                    listener.setCheckpointKeyName("rouws:listener:"+listenerName+":{"+slot+"}");
                 }
-            } catch (Throwable t) {
+                fanOutListeners.add(listener.start((streamName, payload) -> { })); // counting only - plug notifications in here
             }
         }
-        //test the StreamUpdateJSONProcessor by
-        //Registering a StreamUpdateJSONProcessor to the X:OPERATIONS stream
-        //Using the index to search for a completed order with HAM
-        //then creating a replace operation entry that will be worked on by our StreamUpdateJSONProcessor
-        registerOperationsWorker(connectionHelper);
+        // a last checkpoint on the way out, so a restart replays as little as possible
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for(StreamFanOutListener listener:fanOutListeners){
+                try{ listener.stop(); }catch(InterruptedException ie){ return; }
+            }
+        }));
+    }
 
+    // one subscription per routing slot - the listeners below only show how local code registers interest
+    static void startChangeGateway(com.redislabs.sa.ot.util.JedisConnectionHelper connectionHelper){
+        ArrayList<String> regions = new ArrayList<>();
+        for(int slot=0;slot<ROUTING_VALUE_COUNT;slot++){
+            regions.add(""+slot);
+        }
+        changeGateway = new OrderChangeGateway()
+                .setConnectionHelper(connectionHelper)
+                .setRegions(regions)
+                .setChannelsPerConnection(CHANGE_CHANNELS_PER_CONNECTION)
+                .start();
+        changeGateway.subscribeToRegion("0", "cancelled", notice ->
+                System.out.println("OrderChangeGateway: order "+notice.getOrderID()+" of "+notice.getCustomer()+" was cancelled"));
+        changeGateway.subscribe(notice -> notice.getArrayLength()==1, notice ->
+                System.out.println("OrderChangeGateway: first order event for "+notice.getCustomer()));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> changeGateway.stop()));
+    }
+
+    static StreamEventMapProcessorV2 buildJSONProcessor(com.redislabs.sa.ot.util.JedisConnectionHelper connectionHelper){
+        StreamEventMapProcessorV2 processor =
+                new StreamEventToJSONProcessorV2()
+                        .setJedisPooled(connectionHelper.getPooledJedis())
+                        .setSleepTime(WORKER_SLEEP_TIME)
+                        .setVerbose(VERBOSE)
+                        .setPrintoutSkipSize(PRINT_OUT_SKIP_SIZE)
+                        .setPublishChangeNotices(CHANGE_NOTICES)
+                        .setPartitionedStreamLayout(partitionedStreams);
+        if(profileEnricher!=null){
+            processor = profileEnricher.wrap(processor); // the profile is added before the JSON is written
+        }
+        if(slaTracker!=null){
+            processor = slaTracker.wrap(processor); // a stage counts once it is written
+        }
+        return regionRollups==null ? processor : regionRollups.wrap(processor);
+    }
+
+    static void startAsyncWorkersAndWriters(LettuceConnectionHelper lettuceConnectionHelper){
+        if(NUMBER_OF_WORKER_THREADS>0) {
+            for (ArrayList<String> streamNamesList : buildStreamNameBatches()) {
+                LettuceStreamWorkerGroupHelper workerGroupHelper =
+                        new LettuceStreamWorkerGroupHelper()
+                                .setConnectionHelper(lettuceConnectionHelper)
+                                .setStreamNamesArrayList(streamNamesList)
+                                .setSleepTime(WORKER_SLEEP_TIME)
+                                .setVerbose(VERBOSE)
+                                .setPrintoutSkipSize(PRINT_OUT_SKIP_SIZE);
+                workerGroupHelper.createConsumerGroup(PROCESSOR_GROUP_NAME);
+                for (int w = 0; w < NUMBER_OF_WORKER_THREADS; w++) {
+                    AsyncStreamEventToJSONProcessor processor =
+                            new AsyncStreamEventToJSONProcessor()
+                                    .setAsyncCommands(lettuceConnectionHelper.getAsyncCommands())
+                                    .setVerbose(VERBOSE)
+                                    .setPrintoutSkipSize(PRINT_OUT_SKIP_SIZE);
+                    workerGroupHelper.namedGroupConsumerStartListeningToAllStreams("worker" + (w + ADD_ON_DELTA_FOR_WORKER_NAME), processor);
+                }
+            }
+        }
+        OrderWorkloadModel workloadModel = buildWorkloadModel();
+        for(int wt=0;wt<NUMBER_OF_WRITER_THREADS;wt++){
+            AsyncDummyOrderWriter asyncDummyOrderWriter = new AsyncDummyOrderWriter()
+                    .setConnectionHelper(lettuceConnectionHelper)
+                    .setPayloadCodec(OrderEventCodec.forName(PAYLOAD_CODEC))
+                    .setSleepTime(WRITER_SLEEP_TIME)
+                    .setRoutingValueCount(ROUTING_VALUE_COUNT)
+                    .setTotalNumberToWrite(HOW_MANY_ENTRIES)
+                    .setStreamNameBase(STREAM_NAME_BASE);
+            if(workloadModel!=null){
+                asyncDummyOrderWriter.setWorkloadModel(workloadModel, wt);
+            }
+            asyncDummyOrderWriter.kickOffStreamEvents();
+        }
+    }
+
+    // one model is shared by all writers - each writer draws from its own seeded random sequence
+    static OrderWorkloadModel buildWorkloadModel(){
+        if(!WORKLOAD_MODEL || NUMBER_OF_WRITER_THREADS<1){
+            return null;
+        }
+        int customerCount = CUSTOMER_COUNT>0 ? CUSTOMER_COUNT : Math.max(1, HOW_MANY_ENTRIES/ROUTING_VALUE_COUNT);
+        return new OrderWorkloadModel()
+                .setSeed(WORKLOAD_SEED)
+                .setCustomerCount(customerCount)
+                .setZipfExponent(ZIPF_EXPONENT)
+                .setStageMatrix(STAGE_MATRIX)
+                .setCorpusSize(CORPUS_SIZE)
+                .build();
     }
 
     //TODO: figure out if this is worth implementing:
@@ -314,7 +886,9 @@ public class Main {
                         .setPooledJedis(connectionHelper.getPooledJedis())
                         .setStreamNamesArrayList(operationsStreamNameList)
                         .setVerbose(VERBOSE)
-                        .setPrintoutSkipSize(PRINT_OUT_SKIP_SIZE);
+                        .setPrintoutSkipSize(PRINT_OUT_SKIP_SIZE)
+                        .setFailurePolicy(MAX_DELIVERIES, RETRY_MIN_IDLE_MILLIS, "X:OPERATIONS:deadletter")
+                        .setCircuitBreaker(circuitBreaker);
         updateHelper.createConsumerGroup(PROCESSOR_GROUP_NAME);
         //add processor
         StreamUpdateJSONProcessor worker =
@@ -360,44 +934,8 @@ public class Main {
 
      */
     private static void createSearchIndex(JedisPooled jedis){
-
-        Schema schema = new Schema().addField(new Schema.Field(FieldName.of("$.RegionID").as("region_id"),Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].stage").as("order_stage"),Schema.FieldType.TAG))
-                .addSortableNumericField("$.order_stages[*].order_cost").as("order_cost")
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].orderID").as("order_id"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item1").as("item1"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item2").as("item2"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item3").as("item3"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item4").as("item4"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item5").as("item5"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item6").as("item6"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item7").as("item7"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item8").as("item8"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item9").as("item9"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item10").as("item10"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item11").as("item11"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item12").as("item12"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item13").as("item13"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item14").as("item14"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.order_stages[*].item15").as("item15"), Schema.FieldType.TAG))
-                .addField(new Schema.Field(FieldName.of("$.location").as("location"), Schema.FieldType.TEXT))
-                .addTextField("$.order_stages[*].contact_name", .75).as("order_contact"); //use with search 2.6.1 allows TEXT in multivalues
-        IndexDefinition indexDefinition = new IndexDefinition(IndexDefinition.Type.JSON)
-                .setPrefixes(new String[]{JSON_KEY_PREFIX});
-        try {
-            jedis.ftCreate(INDEX_1_NAME, IndexOptions.defaultOptions().setDefinition(indexDefinition), schema);
-            //AND THEN: add schema alias so we can toggle between indexes:
-            /*
-            Added use of search index Alias (this allows for possible
-            re-assigning of the alias to an alternate index that perhaps targets a different underlying dataset
-            - maybe including additional or entirely different prefixes
-            This example doesn't demonstrate that reassignment of the alias - just its effective use as a layer of indirection.
-             */
-            jedis.ftAliasAdd(INDEX_ALIAS_NAME, INDEX_1_NAME);
-            System.out.println("Successfully created search index: " + INDEX_1_NAME + " and search index alias: " + INDEX_ALIAS_NAME);
-        }catch(redis.clients.jedis.exceptions.JedisDataException jde){
-            System.out.println("\n We can safely ignore this assuming we are happy with existing index: \n"+jde.getMessage());
-        }
+        // queries use the alias - run SearchIndexManager on its own to rebuild the index with a new schema without downtime
+        new SearchIndexManager(jedis).ensureIndex();
     }
 }
 
@@ -0,0 +1,201 @@
+package com.redislabs.sa.ot.rouws;
+
+import com.redislabs.sa.ot.util.JedisConnectionHelper;
+import com.redislabs.sa.ot.util.JitteredBackoff;
+import com.redislabs.sa.ot.util.ShardedPubSubCommand;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Lets many in-process listeners hear about order changes without polling and without a redis connection of their own
+ *
+ * The gateway SSUBSCRIBEs once to the sharded channel of every routing slot (rouws:changes:{slot})
+ * - channelsPerConnection channels share one subscribing connection - and fans each notice out in memory
+ * Listeners register for one customer, one region (optionally one stage) or any predicate:
+ *  gateway.subscribeToCustomer("X:rouws::0000000037{37}", notice -> ...)
+ *  gateway.subscribeToRegion("37", "cancelled", notice -> ...)
+ * Customer and region subscriptions are looked up by key, so thousands of them cost nothing per notice
+ * Listeners are called on the subscriber thread and must return quickly
+ */
+public class OrderChangeGateway {
+    private JedisConnectionHelper connectionHelper = null;
+    private List<String> regions = new ArrayList<>();
+    private int channelsPerConnection = 64;
+    private volatile boolean running = false;
+    private final List<Connection> subscriberConnections = new CopyOnWriteArrayList<>();
+    private final Map<String,List<Subscription>> byCustomer = new ConcurrentHashMap<>();
+    private final Map<String,List<Subscription>> byRegion = new ConcurrentHashMap<>();
+    private final List<Subscription> byPredicate = new CopyOnWriteArrayList<>();
+    private final AtomicLong noticesReceived = new AtomicLong();
+
+    /**
+     * Returned by every subscribe call - cancel() removes the listener
+     */
+    public class Subscription {
+        private final String customer;
+        private final String region;
+        private final Predicate<OrderChangeNotice> filter;
+        private final Consumer<OrderChangeNotice> listener;
+
+        Subscription(String customer, String region, Predicate<OrderChangeNotice> filter, Consumer<OrderChangeNotice> listener){
+            this.customer = customer;
+            this.region = region;
+            this.filter = filter;
+            this.listener = listener;
+        }
+
+        public void cancel(){
+            if(customer!=null){
+                remove(byCustomer, customer, this);
+            }else if(region!=null){
+                remove(byRegion, region, this);
+            }else{
+                byPredicate.remove(this);
+            }
+        }
+
+        void deliver(OrderChangeNotice notice){
+            if(filter==null || filter.test(notice)){
+                listener.accept(notice);
+            }
+        }
+    }
+
+    public OrderChangeGateway setConnectionHelper(JedisConnectionHelper connectionHelper){
+        this.connectionHelper=connectionHelper;
+        return this;
+    }
+
+    // the routing values to listen to - normally 0 .. routingValueCount-1
+    public OrderChangeGateway setRegions(List<String> regions){
+        this.regions=new ArrayList<>(regions);
+        return this;
+    }
+
+    // a single redis endpoint accepts any mix of channels - on a cluster use 1 so each connection stays on one slot
+    public OrderChangeGateway setChannelsPerConnection(int channelsPerConnection){
+        this.channelsPerConnection=Math.max(1, channelsPerConnection);
+        return this;
+    }
+
+    public long getNoticesReceived(){
+        return noticesReceived.get();
+    }
+
+    public Subscription subscribeToCustomer(String customerStreamName, Consumer<OrderChangeNotice> listener){
+        Subscription subscription = new Subscription(customerStreamName, null, null, listener);
+        byCustomer.computeIfAbsent(customerStreamName, k -> new CopyOnWriteArrayList<>()).add(subscription);
+        return subscription;
+    }
+
+    // stage may be null to hear about every stage in the region
+    public Subscription subscribeToRegion(String region, String stage, Consumer<OrderChangeNotice> listener){
+        Predicate<OrderChangeNotice> filter = stage==null ? null : notice -> stage.equals(notice.getStage());
+        Subscription subscription = new Subscription(null, region, filter, listener);
+        byRegion.computeIfAbsent(region, k -> new CopyOnWriteArrayList<>()).add(subscription);
+        return subscription;
+    }
+
+    // evaluated for every notice - prefer the customer and region subscriptions when they fit
+    public Subscription subscribe(Predicate<OrderChangeNotice> filter, Consumer<OrderChangeNotice> listener){
+        Subscription subscription = new Subscription(null, null, filter, listener);
+        byPredicate.add(subscription);
+        return subscription;
+    }
+
+    public OrderChangeGateway start(){
+        running = true;
+        for(int from=0;from<regions.size();from+=channelsPerConnection){
+            List<String> channels = new ArrayList<>();
+            for(String region:regions.subList(from, Math.min(from+channelsPerConnection, regions.size()))){
+                channels.add(OrderChangeNotice.channelFor(region));
+            }
+            Thread subscriber = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    listen(channels);
+                }
+            }, "orderChangeSubscriber"+(from/channelsPerConnection));
+            subscriber.setDaemon(true);
+            subscriber.start();
+        }
+        return this;
+    }
+
+    public void stop(){
+        running = false;
+        for(Connection connection:subscriberConnections){
+            connection.disconnect(); // unblocks the subscriber thread
+        }
+    }
+
+    private void listen(List<String> channels){
+        JitteredBackoff backoff = new JitteredBackoff();
+        while(running){
+            Connection connection = connectionHelper.getConnection();
+            subscriberConnections.add(connection);
+            try{
+                connection.setTimeoutInfinite();
+                connection.sendCommand(ShardedPubSubCommand.SSUBSCRIBE, channels.toArray(new String[0]));
+                List<Object> reply = connection.getObjectMultiBulkReply(); // flushes the SSUBSCRIBE
+                while(running){
+                    handle(reply);
+                    reply = connection.getUnflushedObjectMultiBulkReply();
+                    backoff.reset();
+                }
+            }catch(RuntimeException re){
+                if(running){
+                    System.out.println("OrderChangeGateway lost its subscription to "+channels.size()+" channels - resubscribing: "+re.getMessage());
+                    backoff.pause();
+                }
+            }finally{
+                subscriberConnections.remove(connection);
+                connection.setBroken(); // a subscribed connection must never be handed out by the pool again
+                connection.close();
+            }
+        }
+    }
+
+    private void handle(List<Object> reply){
+        if(reply.size()<3 || !"smessage".equals(SafeEncoder.encode((byte[]) reply.get(0)))){
+            return; // the ssubscribe confirmations
+        }
+        OrderChangeNotice notice;
+        try{
+            notice = OrderChangeNotice.decode(SafeEncoder.encode((byte[]) reply.get(2)));
+        }catch(RuntimeException re){
+            return;
+        }
+        noticesReceived.incrementAndGet();
+        deliver(byCustomer.get(notice.getCustomer()), notice);
+        deliver(byRegion.get(notice.getRegion()), notice);
+        deliver(byPredicate, notice);
+    }
+
+    private static void deliver(List<Subscription> subscriptions, OrderChangeNotice notice){
+        if(subscriptions==null){
+            return;
+        }
+        for(Subscription subscription:subscriptions){
+            try{
+                subscription.deliver(notice);
+            }catch(RuntimeException re){ // one failing listener must not stop the others
+                System.out.println("OrderChangeGateway listener failed: "+re.getMessage());
+            }
+        }
+    }
+
+    private static void remove(Map<String,List<Subscription>> index, String key, Subscription subscription){
+        List<Subscription> subscriptions = index.get(key);
+        if(subscriptions!=null){
+            subscriptions.remove(subscription);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.redislabs.sa.ot.rouws;
+
+import com.redislabs.sa.ot.util.RoutingValues;
+
+/**
+ * The compact message published after a customer_order_history document changes:
+ *  X:rouws::0000000037{37}|rouws37order37__3|accepted|12
+ * (customer stream | orderID | new stage | length of the order_stages array)
+ * The region is the routing value of the customer stream - it also names the sharded channel the notice is sent on
+ */
+public class OrderChangeNotice {
+    public static final String CHANNEL_BASE = "rouws:changes:";
+    private static final char SEPARATOR = '|';
+
+    private final String customer;
+    private final String region;
+    private final String orderID;
+    private final String stage;
+    private final long arrayLength;
+
+    public OrderChangeNotice(String customer, String orderID, String stage, long arrayLength){
+        this.customer = customer;
+        this.region = RoutingValues.routingValueOf(customer);
+        this.orderID = orderID==null ? "" : orderID;
+        this.stage = stage==null ? "" : stage;
+        this.arrayLength = arrayLength;
+    }
+
+    // one channel per routing slot: the hash tag puts the channel in the same slot as the customer streams
+    public static String channelFor(String region){
+        return CHANNEL_BASE+"{"+region+"}";
+    }
+
+    public String encode(){
+        return customer+SEPARATOR+orderID+SEPARATOR+stage+SEPARATOR+arrayLength;
+    }
+
+    public static OrderChangeNotice decode(String message){
+        int first = message.indexOf(SEPARATOR);
+        int second = message.indexOf(SEPARATOR, first+1);
+        int third = message.indexOf(SEPARATOR, second+1);
+        if(first<0 || second<0 || third<0){
+            throw new IllegalArgumentException("Not an order change notice: "+message);
+        }
+        return new OrderChangeNotice(message.substring(0, first), message.substring(first+1, second),
+                message.substring(second+1, third), Long.parseLong(message.substring(third+1)));
+    }
+
+    public String getCustomer(){
+        return customer;
+    }
+
+    public String getRegion(){
+        return region;
+    }
+
+    public String getOrderID(){
+        return orderID;
+    }
+
+    public String getStage(){
+        return stage;
+    }
+
+    public long getArrayLength(){
+        return arrayLength;
+    }
+
+    @Override
+    public String toString(){
+        return encode();
+    }
+}
@@ -0,0 +1,32 @@
+package com.redislabs.sa.ot.rouws;
+
+import java.util.Map;
+
+/**
+ * Decides how an order event is laid out in a stream entry
+ * - FIELDS: one field/value pair per attribute (stage, orderID, item1...) - the original layout
+ * - BINARY: the whole event packed into a single compact field (see BinaryOrderEventCodec)
+ * Writers pick a codec with --payloadcodec, readers call decode() which understands both layouts
+ * so streams holding a mix of old and new entries keep working
+ */
+public interface OrderEventCodec {
+    String FIELDS = "fields";
+    String BINARY = "binary";
+
+    Map<String,String> encode(Map<String,String> orderEvent);
+
+    static OrderEventCodec forName(String codecName){
+        if(BINARY.equalsIgnoreCase(codecName)){
+            return new BinaryOrderEventCodec();
+        }
+        return orderEvent -> orderEvent;
+    }
+
+    // returns the order event held by a stream entry written with any codec
+    static Map<String,String> decode(Map<String,String> entryFields){
+        if(BinaryOrderEventCodec.isBinaryPayload(entryFields)){
+            return BinaryOrderEventCodec.decodePayload(entryFields.get(BinaryOrderEventCodec.PAYLOAD_FIELD));
+        }
+        return entryFields;
+    }
+}
@@ -0,0 +1,206 @@
+package com.redislabs.sa.ot.rouws;
+
+import com.redislabs.sa.ot.util.JedisConnectionHelper;
+import com.redislabs.sa.ot.util.JedisConnectionHelperSettings;
+import com.redislabs.sa.ot.util.RoutingValues;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.json.JsonProtocol;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exports every customer_order_history:* document to local NDJSON files - one line per document:
+ *  {"key":"customer_order_history:X:rouws::0000000037{37}","doc":{...}}
+ *
+ * The keys are listed with SCAN (never KEYS) and handed to --exportshards shard threads
+ * A key goes to the shard chosen by its routing value, so each shard file holds whole slots
+ * Each shard fetches its keys with pipelined JSON.GET in batches of --exportbatchsize and writes the raw reply bytes
+ * through a fixed size direct buffer to its own FileChannel
+ * The hand-off queues are bounded, so memory use stays constant no matter how many documents exist
+ *
+ * mvn compile exec:java -Dexec.mainClass=com.redislabs.sa.ot.rouws.OrderHistoryExporter -Dexec.cleanupDaemonThreads=false -Dexec.args="--host myhost.com --port 10000 --exportshards 4 --exportfile order_history"
+ */
+public class OrderHistoryExporter {
+    static String JSON_KEY_PREFIX = Main.JSON_KEY_PREFIX;
+    static String EXPORT_FILE = "order_history";
+    static int EXPORT_SHARDS = 4;
+    static int EXPORT_BATCH_SIZE = 500;
+    static int SCAN_COUNT = 1000;
+    static int WRITE_BUFFER_BYTES = 1024*1024;
+    private static final List<String> END_OF_KEYS = Collections.emptyList();
+
+    private final JedisConnectionHelper connectionHelper;
+    private final AtomicLong documentsExported = new AtomicLong();
+    private final AtomicLong bytesExported = new AtomicLong();
+
+    public OrderHistoryExporter(JedisConnectionHelper connectionHelper){
+        this.connectionHelper = connectionHelper;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ArrayList<String> argList = new ArrayList<>(Arrays.asList(args));
+        JedisConnectionHelperSettings settings = Main.parseConnectionSettings(argList, new JedisConnectionHelperSettings());
+        if (argList.contains("--jsonkeyprefix")) {
+            JSON_KEY_PREFIX = argList.get(argList.indexOf("--jsonkeyprefix") + 1);
+        }
+        if (argList.contains("--exportfile")) {
+            EXPORT_FILE = argList.get(argList.indexOf("--exportfile") + 1);
+        }
+        if (argList.contains("--exportshards")) {
+            EXPORT_SHARDS = Integer.parseInt(argList.get(argList.indexOf("--exportshards") + 1));
+        }
+        if (argList.contains("--exportbatchsize")) {
+            EXPORT_BATCH_SIZE = Integer.parseInt(argList.get(argList.indexOf("--exportbatchsize") + 1));
+        }
+        if (argList.contains("--scancount")) {
+            SCAN_COUNT = Integer.parseInt(argList.get(argList.indexOf("--scancount") + 1));
+        }
+        settings.setTestOnBorrow(false);
+        settings.setTestWhileIdle(true);
+        settings.setMaxConnections(Math.max(EXPORT_SHARDS*2, 10));
+        new OrderHistoryExporter(new JedisConnectionHelper(settings)).exportAll();
+    }
+
+    public void exportAll() throws Exception {
+        long startTime = System.currentTimeMillis();
+        List<BlockingQueue<List<String>>> queues = new ArrayList<>();
+        List<Thread> shardThreads = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for(int shard=0;shard<EXPORT_SHARDS;shard++){
+            BlockingQueue<List<String>> queue = new ArrayBlockingQueue<>(4);
+            String fileName = EXPORT_FILE+"_shard"+shard+".ndjson";
+            Thread shardThread = new Thread(() -> {
+                try {
+                    exportShard(queue, fileName);
+                } catch (Throwable t) {
+                    failures.add(t);
+                    try { // keep taking batches so the scanner is never stuck waiting on a dead shard
+                        while (queue.take() != END_OF_KEYS) { }
+                    } catch (InterruptedException ie) { }
+                }
+            }, "exportShard"+shard);
+            shardThread.start();
+            queues.add(queue);
+            shardThreads.add(shardThread);
+        }
+
+        // a single SCAN feeds all shards - each key is routed by its routing value:
+        List<List<String>> pendingBatches = new ArrayList<>();
+        for(int shard=0;shard<EXPORT_SHARDS;shard++){
+            pendingBatches.add(new ArrayList<>(EXPORT_BATCH_SIZE));
+        }
+        ScanParams scanParams = new ScanParams().match(JSON_KEY_PREFIX+"*").count(SCAN_COUNT);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        long lastProgressTime = startTime;
+        do{
+            ScanResult<String> scanResult = connectionHelper.getPooledJedis().scan(cursor, scanParams, "ReJSON-RL");
+            for(String key:scanResult.getResult()){
+                int shard = Math.floorMod(RoutingValues.routingValueOf(key).hashCode(), EXPORT_SHARDS);
+                List<String> batch = pendingBatches.get(shard);
+                batch.add(key);
+                if(batch.size()>=EXPORT_BATCH_SIZE){
+                    queues.get(shard).put(batch);
+                    pendingBatches.set(shard, new ArrayList<>(EXPORT_BATCH_SIZE));
+                }
+            }
+            cursor = scanResult.getCursor();
+            if(System.currentTimeMillis()-lastProgressTime>5000){
+                printProgress(startTime);
+                lastProgressTime = System.currentTimeMillis();
+            }
+        }while(!ScanParams.SCAN_POINTER_START.equals(cursor) && failures.isEmpty());
+        for(int shard=0;shard<EXPORT_SHARDS;shard++){
+            if(!pendingBatches.get(shard).isEmpty()){
+                queues.get(shard).put(pendingBatches.get(shard));
+            }
+            queues.get(shard).put(END_OF_KEYS);
+        }
+        for(Thread shardThread:shardThreads){
+            shardThread.join();
+        }
+        printProgress(startTime);
+        if(!failures.isEmpty()){
+            throw new IOException("OrderHistoryExporter: "+failures.size()+" shard(s) failed", failures.get(0));
+        }
+        System.out.println("OrderHistoryExporter done - wrote "+EXPORT_SHARDS+" files named "+EXPORT_FILE+"_shard<N>.ndjson");
+    }
+
+    void exportShard(BlockingQueue<List<String>> queue, String fileName) throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+        try(FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+            while(true){
+                List<String> keys = queue.take();
+                if(keys==END_OF_KEYS){
+                    break;
+                }
+                List<Response<Object>> documents = new ArrayList<>(keys.size());
+                try(Connection connection = connectionHelper.getConnection()){
+                    Pipeline pipeline = new Pipeline(connection);
+                    for(String key:keys){
+                        documents.add(pipeline.sendCommand(JsonProtocol.JsonCommand.GET, SafeEncoder.encode(key)));
+                    }
+                    pipeline.sync();
+                }
+                for(int x=0;x<keys.size();x++){
+                    byte[] document = (byte[]) documents.get(x).get();
+                    if(document==null){ // deleted between SCAN and JSON.GET
+                        continue;
+                    }
+                    writeLine(channel, buffer, keys.get(x), document);
+                    documentsExported.incrementAndGet();
+                }
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    private void writeLine(FileChannel channel, ByteBuffer buffer, String key, byte[] document) throws IOException {
+        byte[] prefix = ("{\"key\":\""+key.replace("\\","\\\\").replace("\"","\\\"")+"\",\"doc\":").getBytes(StandardCharsets.UTF_8);
+        write(channel, buffer, prefix);
+        write(channel, buffer, document);
+        write(channel, buffer, LINE_END);
+    }
+
+    private static final byte[] LINE_END = "}\n".getBytes(StandardCharsets.US_ASCII);
+
+    private void write(FileChannel channel, ByteBuffer buffer, byte[] bytes) throws IOException {
+        int offset = 0;
+        while(offset<bytes.length){
+            if(!buffer.hasRemaining()){
+                flush(channel, buffer);
+            }
+            int length = Math.min(buffer.remaining(), bytes.length-offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    private void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()){
+            bytesExported.addAndGet(channel.write(buffer));
+        }
+        buffer.clear();
+    }
+
+    private void printProgress(long startTime){
+        long elapsedMillis = Math.max(1, System.currentTimeMillis()-startTime);
+        System.out.println("OrderHistoryExporter progress: "+documentsExported.get()+" documents ("+bytesExported.get()+
+                " bytes flushed) in "+(elapsedMillis/1000)+" seconds ("+(documentsExported.get()*1000/elapsedMillis)+" documents/sec)");
+    }
+}
@@ -0,0 +1,204 @@
+package com.redislabs.sa.ot.rouws;
+
+import com.redislabs.sa.ot.util.JedisConnectionHelper;
+import com.redislabs.sa.ot.util.JedisConnectionHelperSettings;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.json.JsonProtocol;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A small read API over the customer_order_history:* documents for clients that poll
+ *
+ *  GET /order_history?customer=X:rouws::0000000037{37}            -> every stage, ETag "12"
+ *  GET /order_history?customer=X:rouws::0000000037{37}&since=12   -> only the stages after the first 12
+ *  (If-None-Match: "12" works the same way as since=12)
+ *
+ * The version of a document is the length of its order_stages array - stages are only ever appended,
+ * so a client that remembers the version only needs the slice after it: JSON.GET key $.order_stages[since:]
+ * The JSON.ARRLEN and the slice are sent in one MULTI/EXEC, so each poll costs one round trip and the version always matches the slice
+ * When nothing was appended since the client's version the answer is 304 with no body
+ *
+ * mvn compile exec:java -Dexec.mainClass=com.redislabs.sa.ot.rouws.OrderHistoryHttpServer -Dexec.cleanupDaemonThreads=false -Dexec.args="--host myhost.com --port 10000 --httpport 8080"
+ */
+public class OrderHistoryHttpServer {
+    static String JSON_KEY_PREFIX = Main.JSON_KEY_PREFIX;
+    static int HTTP_PORT = 8080;
+    static int HTTP_THREADS = 8;
+    static final String PATH = "/order_history";
+    private static final byte[] ORDER_STAGES_PATH = SafeEncoder.encode("$.order_stages");
+
+    private final JedisConnectionHelper connectionHelper;
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+
+    public OrderHistoryHttpServer(JedisConnectionHelper connectionHelper){
+        this.connectionHelper = connectionHelper;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ArrayList<String> argList = new ArrayList<>(Arrays.asList(args));
+        JedisConnectionHelperSettings settings = Main.parseConnectionSettings(argList, new JedisConnectionHelperSettings());
+        if (argList.contains("--jsonkeyprefix")) {
+            JSON_KEY_PREFIX = argList.get(argList.indexOf("--jsonkeyprefix") + 1);
+        }
+        if (argList.contains("--httpport")) {
+            HTTP_PORT = Integer.parseInt(argList.get(argList.indexOf("--httpport") + 1));
+        }
+        if (argList.contains("--httpthreads")) {
+            HTTP_THREADS = Integer.parseInt(argList.get(argList.indexOf("--httpthreads") + 1));
+        }
+        settings.setTestOnBorrow(false);
+        settings.setTestWhileIdle(true);
+        settings.setMaxConnections(Math.max(HTTP_THREADS*2, 10));
+        OrderHistoryHttpServer httpServer = new OrderHistoryHttpServer(new JedisConnectionHelper(settings)).start(HTTP_PORT, HTTP_THREADS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> httpServer.stop()));
+    }
+
+    public OrderHistoryHttpServer start(int port, int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.createContext(PATH, this::handle);
+        server.setExecutor(executor);
+        server.start();
+        System.out.println("OrderHistoryHttpServer listening on http://localhost:"+port+PATH+"?customer=<stream name>&since=<version>");
+        return this;
+    }
+
+    public void stop(){
+        if(server!=null){
+            server.stop(1);
+            executor.shutdown();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try{
+            if(!"GET".equals(exchange.getRequestMethod())){
+                respond(exchange, 405, null, null);
+                return;
+            }
+            Map<String,String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String customer = query.get("customer");
+            if(customer==null || customer.isEmpty()){
+                respond(exchange, 400, null, "{\"error\":\"customer is required\"}");
+                return;
+            }
+            long since;
+            try{
+                since = Math.max(0, parseVersion(query.containsKey("since") ? query.get("since") : exchange.getRequestHeaders().getFirst("If-None-Match")));
+            }catch(NumberFormatException nfe){
+                respond(exchange, 400, null, "{\"error\":\"since must be a number\"}");
+                return;
+            }
+            writeOrderHistory(exchange, customer, since);
+        }catch(RuntimeException re){
+            System.out.println("OrderHistoryHttpServer failed: "+re.getMessage());
+            respond(exchange, 503, null, "{\"error\":\"redis unavailable\"}");
+        }finally{
+            exchange.close();
+        }
+    }
+
+    private void writeOrderHistory(HttpExchange exchange, String customer, long since) throws IOException {
+        byte[] jsonKeyName = SafeEncoder.encode(JSON_KEY_PREFIX+customer);
+        Response<Object> arrayLength;
+        Response<Object> newStages;
+        try(Connection connection = connectionHelper.getConnection()){
+            // MULTI/EXEC: a stage appended between the two commands would be in the slice but not in the version
+            Transaction transaction = new Transaction(connection);
+            arrayLength = transaction.sendCommand(JsonProtocol.JsonCommand.ARRLEN, jsonKeyName, ORDER_STAGES_PATH);
+            newStages = transaction.sendCommand(JsonProtocol.JsonCommand.GET, jsonKeyName, SafeEncoder.encode("$.order_stages["+since+":]"));
+            transaction.exec();
+        }
+        long version;
+        byte[] newStagesJson;
+        try{
+            version = versionOf(arrayLength.get());
+            newStagesJson = (byte[]) newStages.get();
+        }catch(JedisDataException jde){ // no such document
+            version = -1;
+            newStagesJson = null;
+        }
+        if(version<0 || newStagesJson==null){
+            respond(exchange, 404, null, "{\"error\":\"no order history for this customer\"}");
+            return;
+        }
+        String etag = "\""+version+"\"";
+        if(since>=version && since>0){
+            respond(exchange, 304, etag, null);
+            return;
+        }
+        // the slice reply is already the JSON array of the new stages - it is passed through untouched
+        respond(exchange, 200, etag, "{\"customer\":\""+customer.replace("\\","\\\\").replace("\"","\\\"")+
+                "\",\"version\":"+version+",\"since\":"+since+",\"order_stages\":"+SafeEncoder.encode(newStagesJson)+"}");
+    }
+
+    // JSON.ARRLEN with a $ path replies with one length per matching path
+    private static long versionOf(Object reply){
+        if(reply instanceof List){
+            List<?> lengths = (List<?>) reply;
+            return lengths.isEmpty() || lengths.get(0)==null ? -1 : (Long) lengths.get(0);
+        }
+        return reply==null ? -1 : (Long) reply;
+    }
+
+    // accepts 12, "12" and W/"12"
+    static long parseVersion(String version){
+        if(version==null){
+            return 0;
+        }
+        String digits = version.trim();
+        if(digits.startsWith("W/")){
+            digits = digits.substring(2);
+        }
+        return Long.parseLong(digits.replace("\"", ""));
+    }
+
+    static Map<String,String> parseQuery(String rawQuery){
+        Map<String,String> query = new HashMap<>();
+        if(rawQuery==null){
+            return query;
+        }
+        for(String pair:rawQuery.split("&")){
+            int equals = pair.indexOf('=');
+            if(equals>0){
+                try{
+                    query.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals+1), "UTF-8"));
+                }catch(IOException | IllegalArgumentException e){ // a malformed pair is ignored
+                }
+            }
+        }
+        return query;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String etag, String body) throws IOException {
+        if(etag!=null){
+            exchange.getResponseHeaders().set("ETag", etag);
+        }
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache"); // always revalidate - the ETag makes that cheap
+        if(body==null){
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try(OutputStream out = exchange.getResponseBody()){
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.redislabs.sa.ot.rouws;
+
+import com.redislabs.sa.ot.util.JedisConnectionHelper;
+import com.redislabs.sa.ot.util.JedisConnectionHelperSettings;
+import com.redislabs.sa.ot.util.RoutingValues;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.json.JsonProtocol;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+import redis.clients.jedis.resps.StreamEntry;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds the customer_order_history:* JSON documents from the streams that still hold the order events
+ *
+ * The streams are found with SCAN (TYPE stream) and grouped by their routing value (the {slot} suffix)
+ * Partition streams (X:rouws::p0003{1}, see PartitionedStreamLayout) mix many customers - their entries are grouped by
+ * customer, as the processor does, and applied to the per-customer documents (which share the slot of the partition stream)
+ * Each group is split into tasks of --replaystreamspertask streams so every replay thread has work, however few slots there are
+ * A task pages through all of its streams together with XRANGE in large chunks - one pipeline reads the next chunk of every
+ * stream and one pipeline applies them, each chunk in its own MULTI/EXEC:
+ *  - JSON.SET of a new document (first chunk only) + a single multi-value JSON.ARRAPPEND for the rest of the chunk
+ *  - HSET of the last applied entry ID into a checkpoint hash that shares the slot of the stream
+ *    (for a partition stream also under each customer of the chunk - a resumed rebuild appends to those documents
+ *    and replaces the documents of customers it has not reached yet)
+ * Because the document and the checkpoint change together, an interrupted rebuild resumes exactly where it stopped
+ * The checkpoints are deleted once every stream was replayed, so the next rebuild starts from scratch again
+ * Use --restart true to ignore the checkpoints of an interrupted rebuild and rebuild every document from scratch
+ *
+ * mvn compile exec:java -Dexec.mainClass=com.redislabs.sa.ot.rouws.OrderHistoryReplayer -Dexec.cleanupDaemonThreads=false -Dexec.args="--host myhost.com --port 10000 --replaythreads 16 --replaychunksize 2000"
+ */
+public class OrderHistoryReplayer {
+    static String STREAM_NAME_BASE = "rouws:";
+    static String JSON_KEY_PREFIX = Main.JSON_KEY_PREFIX;
+    static String CHECKPOINT_KEY_BASE = "rouws:replay:checkpoint";
+    static int REPLAY_THREADS = 8;
+    static int REPLAY_CHUNK_SIZE = 1000;
+    static int REPLAY_STREAMS_PER_TASK = 50;
+    static int ROUTING_VALUE_COUNT = Main.ROUTING_VALUE_COUNT; // names the customers of partition streams
+    static int SCAN_COUNT = 1000;
+    static boolean RESTART = false;
+
+    private final JedisConnectionHelper connectionHelper;
+    private final JedisPooled jedis;
+    private final AtomicLong streamsReplayed = new AtomicLong();
+    private final AtomicLong entriesReplayed = new AtomicLong();
+    private final AtomicLong streamsFailed = new AtomicLong();
+    private PartitionedStreamLayout partitionedStreams = null;
+
+    public OrderHistoryReplayer(JedisConnectionHelper connectionHelper){
+        this.connectionHelper = connectionHelper;
+        this.jedis = connectionHelper.getPooledJedis();
+    }
+
+    // without a layout partition streams are replayed like the stream of a single customer
+    public OrderHistoryReplayer setPartitionedStreamLayout(PartitionedStreamLayout partitionedStreams){
+        this.partitionedStreams = partitionedStreams;
+        return this;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        ArrayList<String> argList = new ArrayList<>(Arrays.asList(args));
+        JedisConnectionHelperSettings settings = Main.parseConnectionSettings(argList, new JedisConnectionHelperSettings());
+        if (argList.contains("--streamnamebase")) {
+            STREAM_NAME_BASE = argList.get(argList.indexOf("--streamnamebase") + 1);
+        }
+        if (argList.contains("--jsonkeyprefix")) {
+            JSON_KEY_PREFIX = argList.get(argList.indexOf("--jsonkeyprefix") + 1);
+        }
+        if (argList.contains("--replaythreads")) {
+            REPLAY_THREADS = Integer.parseInt(argList.get(argList.indexOf("--replaythreads") + 1));
+        }
+        if (argList.contains("--replaychunksize")) {
+            REPLAY_CHUNK_SIZE = Integer.parseInt(argList.get(argList.indexOf("--replaychunksize") + 1));
+        }
+        if (argList.contains("--replaystreamspertask")) {
+            REPLAY_STREAMS_PER_TASK = Integer.parseInt(argList.get(argList.indexOf("--replaystreamspertask") + 1));
+        }
+        if (argList.contains("--routingvaluecount")) {
+            ROUTING_VALUE_COUNT = Integer.parseInt(argList.get(argList.indexOf("--routingvaluecount") + 1));
+        }
+        if (argList.contains("--scancount")) {
+            SCAN_COUNT = Integer.parseInt(argList.get(argList.indexOf("--scancount") + 1));
+        }
+        if (argList.contains("--restart")) {
+            RESTART = Boolean.parseBoolean(argList.get(argList.indexOf("--restart") + 1));
+        }
+        settings.setTestOnBorrow(false);
+        settings.setTestWhileIdle(true);
+        settings.setMaxConnections(Math.max(REPLAY_THREADS*2, 10));
+        new OrderHistoryReplayer(new JedisConnectionHelper(settings))
+                .setPartitionedStreamLayout(new PartitionedStreamLayout(STREAM_NAME_BASE, ROUTING_VALUE_COUNT, 1)) // the partition count does not change customer names
+                .replayAll();
+    }
+
+    public void replayAll() throws InterruptedException {
+        Map<String, List<String>> streamsBySlot = findStreamsBySlot();
+        System.out.println("OrderHistoryReplayer found "+streamsBySlot.values().stream().mapToInt(List::size).sum()+
+                " streams in "+streamsBySlot.size()+" slot groups - replaying with "+REPLAY_THREADS+" threads");
+        long startTime = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(REPLAY_THREADS);
+        for(Map.Entry<String, List<String>> slotGroup:streamsBySlot.entrySet()){
+            List<String> streamNames = slotGroup.getValue();
+            for(int from=0;from<streamNames.size();from+=REPLAY_STREAMS_PER_TASK){
+                List<String> task = streamNames.subList(from, Math.min(from+REPLAY_STREAMS_PER_TASK, streamNames.size()));
+                executor.submit(() -> {
+                    try {
+                        replayStreams(slotGroup.getKey(), task);
+                    }catch(RuntimeException re){
+                        streamsFailed.addAndGet(task.size()); // the checkpoints tell the rerun which of them are done
+                        System.out.println("OrderHistoryReplayer failed to replay "+task.size()+" streams starting with "+task.get(0)+" (rerun to resume): "+re.getMessage());
+                    }
+                });
+            }
+        }
+        executor.shutdown();
+        while(!executor.awaitTermination(5, TimeUnit.SECONDS)){
+            printProgress(startTime);
+        }
+        printProgress(startTime);
+        if(streamsFailed.get()==0){
+            clearCheckpoints(streamsBySlot.keySet());
+            System.out.println("OrderHistoryReplayer done.");
+        }else{
+            System.out.println("OrderHistoryReplayer done - "+streamsFailed.get()+" streams failed, rerun to resume from the checkpoints.");
+        }
+    }
+
+    // a complete rebuild leaves nothing to resume - without this the next rebuild would skip every stream
+    private void clearCheckpoints(Set<String> routingValues){
+        for(String routingValue:routingValues){
+            jedis.del(CHECKPOINT_KEY_BASE+"{"+routingValue+"}");
+        }
+    }
+
+    // SCAN is used instead of KEYS so the server is never blocked while the streams are listed
+    Map<String, List<String>> findStreamsBySlot(){
+        Map<String, List<String>> streamsBySlot = new TreeMap<>();
+        ScanParams scanParams = new ScanParams().match("X:"+STREAM_NAME_BASE+":*").count(SCAN_COUNT);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        long partitionStreams = 0;
+        do{
+            ScanResult<String> scanResult = jedis.scan(cursor, scanParams, "stream");
+            for(String streamName:scanResult.getResult()){
+                if(isPartitionStream(streamName)){
+                    partitionStreams++;
+                }
+                streamsBySlot.computeIfAbsent(RoutingValues.routingValueOf(streamName), k -> new ArrayList<>()).add(streamName);
+            }
+            cursor = scanResult.getCursor();
+        }while(!ScanParams.SCAN_POINTER_START.equals(cursor));
+        if(partitionStreams>0){
+            System.out.println("OrderHistoryReplayer found "+partitionStreams+" partition streams - their entries are applied to the documents of their customers");
+        }
+        return streamsBySlot;
+    }
+
+    private boolean isPartitionStream(String streamName){
+        return partitionedStreams!=null && PartitionedStreamLayout.isPartitionStreamName(STREAM_NAME_BASE, streamName);
+    }
+
+    // the streams share a slot (routingValue) so their commands can share one pipeline
+    void replayStreams(String routingValue, List<String> streamNames){
+        String checkpointKey = CHECKPOINT_KEY_BASE+"{"+routingValue+"}"; // same slot as the streams and their documents
+        Map<String,String> startIDs = new LinkedHashMap<>(); // the XRANGE start of every stream not yet done
+        Set<String> existingDocuments = new HashSet<>(); // customers (stream-per-customer names) rebuilt by this rebuild
+        Set<String> resumedPartitionStreams = new HashSet<>(); // their customers may have been rebuilt before the interruption
+        try(Connection connection = connectionHelper.getConnection()){
+            Pipeline pipeline = new Pipeline(connection);
+            Map<String,Response<String>> checkpoints = new HashMap<>();
+            if(!RESTART){
+                for(String streamName:streamNames){
+                    checkpoints.put(streamName, pipeline.hget(checkpointKey, streamName));
+                }
+                pipeline.sync();
+            }
+            for(String streamName:streamNames){
+                String lastAppliedID = RESTART ? null : checkpoints.get(streamName).get();
+                if(lastAppliedID==null){
+                    if(!isPartitionStream(streamName)){ // rebuilding from the first entry - drop whatever is left of the old document
+                        pipeline.del(JSON_KEY_PREFIX+streamName);
+                    }
+                    startIDs.put(streamName, "-");
+                }else{
+                    if(isPartitionStream(streamName)){
+                        resumedPartitionStreams.add(streamName);
+                    }else{
+                        existingDocuments.add(streamName);
+                    }
+                    startIDs.put(streamName, "("+lastAppliedID);
+                }
+            }
+            while(!startIDs.isEmpty()){
+                Map<String,Response<List<StreamEntry>>> chunks = new LinkedHashMap<>();
+                for(Map.Entry<String,String> startID:startIDs.entrySet()){
+                    chunks.put(startID.getKey(), pipeline.xrange(startID.getKey(), startID.getValue(), "+", REPLAY_CHUNK_SIZE));
+                }
+                pipeline.sync();
+                Map<String,List<StreamEntry>> queuedChunks = new LinkedHashMap<>();
+                Map<String,Map<String,List<Map<String,String>>>> queuedEvents = new HashMap<>();
+                for(Map.Entry<String,Response<List<StreamEntry>>> chunk:chunks.entrySet()){
+                    List<StreamEntry> entries = chunk.getValue().get();
+                    if(entries.isEmpty()){
+                        startIDs.remove(chunk.getKey());
+                        streamsReplayed.incrementAndGet();
+                        continue;
+                    }
+                    queuedChunks.put(chunk.getKey(), entries);
+                    queuedEvents.put(chunk.getKey(), orderEventsByCustomer(routingValue, chunk.getKey(), entries));
+                }
+                findRebuiltCustomers(pipeline, checkpointKey, queuedEvents, resumedPartitionStreams, existingDocuments);
+                Map<String,Response<Object>> execResults = new HashMap<>();
+                for(Map.Entry<String,List<StreamEntry>> queuedChunk:queuedChunks.entrySet()){
+                    String streamName = queuedChunk.getKey();
+                    List<StreamEntry> entries = queuedChunk.getValue();
+                    execResults.put(streamName, queueChunk(pipeline, checkpointKey, streamName, queuedEvents.get(streamName),
+                            existingDocuments, entries.get(entries.size()-1).getID().toString()));
+                }
+                pipeline.sync();
+                for(Map.Entry<String,List<StreamEntry>> queuedChunk:queuedChunks.entrySet()){
+                    String streamName = queuedChunk.getKey();
+                    List<StreamEntry> entries = queuedChunk.getValue();
+                    String failure = failureOf(execResults.get(streamName));
+                    if(failure!=null){ // the MULTI/EXEC changed nothing - the checkpoint still points before this chunk
+                        startIDs.remove(streamName);
+                        streamsFailed.incrementAndGet();
+                        System.out.println("OrderHistoryReplayer failed to replay "+streamName+" (rerun to resume): "+failure);
+                        continue;
+                    }
+                    existingDocuments.addAll(queuedEvents.get(streamName).keySet());
+                    entriesReplayed.addAndGet(entries.size());
+                    if(entries.size()<REPLAY_CHUNK_SIZE){
+                        startIDs.remove(streamName);
+                        streamsReplayed.incrementAndGet();
+                    }else{
+                        startIDs.put(streamName, "("+entries.get(entries.size()-1).getID());
+                    }
+                }
+            }
+        }
+    }
+
+    // the decoded events of a chunk per customer document, in stream order - a stream-per-customer chunk has a single customer
+    private Map<String,List<Map<String,String>>> orderEventsByCustomer(String routingValue, String streamName, List<StreamEntry> entries){
+        Map<String,List<Map<String,String>>> orderEventsByCustomer = new LinkedHashMap<>();
+        for(StreamEntry entry:entries){
+            Map<String,String> orderEvent = OrderEventCodec.decode(entry.getFields());
+            String customerStreamName = isPartitionStream(streamName) ? partitionedStreams.customerStreamNameOf(streamName, orderEvent) : streamName;
+            if(!routingValue.equals(RoutingValues.routingValueOf(customerStreamName))){
+                throw new IllegalStateException(customerStreamName+" is not in the slot of "+streamName+" - is --routingvaluecount the one the writers used?");
+            }
+            orderEventsByCustomer.computeIfAbsent(customerStreamName, k -> new ArrayList<>()).add(orderEvent);
+        }
+        return orderEventsByCustomer;
+    }
+
+    // customers of a resumed partition stream that this rebuild already reached carry a checkpoint of their own
+    private void findRebuiltCustomers(Pipeline pipeline, String checkpointKey, Map<String,Map<String,List<Map<String,String>>>> queuedEvents,
+                                      Set<String> resumedPartitionStreams, Set<String> existingDocuments){
+        Map<String,Response<Boolean>> rebuilt = new HashMap<>();
+        for(String streamName:resumedPartitionStreams){
+            Map<String,List<Map<String,String>>> orderEvents = queuedEvents.get(streamName);
+            if(orderEvents==null){
+                continue;
+            }
+            for(String customerStreamName:orderEvents.keySet()){
+                if(!existingDocuments.contains(customerStreamName)){
+                    rebuilt.put(customerStreamName, pipeline.hexists(checkpointKey, customerStreamName));
+                }
+            }
+        }
+        if(rebuilt.isEmpty()){
+            return;
+        }
+        pipeline.sync();
+        for(Map.Entry<String,Response<Boolean>> customer:rebuilt.entrySet()){
+            if(customer.getValue().get()){
+                existingDocuments.add(customer.getKey());
+            }
+        }
+    }
+
+    // MULTI: the documents and the checkpoint change together - returns the reply of the EXEC
+    // a document this rebuild has not written yet is replaced (JSON.SET) by its first event, the rest is appended
+    private Response<Object> queueChunk(Pipeline pipeline, String checkpointKey, String streamName, Map<String,List<Map<String,String>>> orderEventsByCustomer,
+                                        Set<String> existingDocuments, String lastEntryID){
+        OrderStageJsonEncoder encoder = OrderStageJsonEncoder.get();
+        pipeline.sendCommand(Protocol.Command.MULTI, new String[0]);
+        List<String> checkpointArgs = new ArrayList<>(Arrays.asList(checkpointKey, streamName, lastEntryID));
+        for(Map.Entry<String,List<Map<String,String>>> customerEvents:orderEventsByCustomer.entrySet()){
+            String customerStreamName = customerEvents.getKey();
+            List<Map<String,String>> orderEvents = customerEvents.getValue();
+            byte[] jsonKey = SafeEncoder.encode(JSON_KEY_PREFIX+customerStreamName);
+            int first = 0;
+            if(!existingDocuments.contains(customerStreamName)){
+                pipeline.sendCommand(JsonProtocol.JsonCommand.SET, jsonKey, StreamEventToJSONProcessorV2.ROOT_PATH,
+                        encoder.encodeNewDocument(StreamEventToJSONProcessorV2.getRegionID(customerStreamName), orderEvents.get(0), PartitionedStreamLayout.CUSTOMER_ID_FIELD));
+                first = 1;
+            }
+            if(first<orderEvents.size()){
+                byte[][] arrAppendArgs = new byte[orderEvents.size()-first+2][];
+                arrAppendArgs[0] = jsonKey;
+                arrAppendArgs[1] = StreamEventToJSONProcessorV2.ORDER_STAGES_PATH;
+                for(int x=first;x<orderEvents.size();x++){
+                    arrAppendArgs[x-first+2] = encoder.encodeOrderStage(orderEvents.get(x), PartitionedStreamLayout.CUSTOMER_ID_FIELD);
+                }
+                pipeline.sendCommand(JsonProtocol.JsonCommand.ARRAPPEND, arrAppendArgs);
+            }
+            if(!customerStreamName.equals(streamName)){
+                checkpointArgs.add(customerStreamName);
+                checkpointArgs.add(lastEntryID);
+            }
+        }
+        pipeline.sendCommand(Protocol.Command.HSET, checkpointArgs.toArray(new String[0]));
+        return pipeline.sendCommand(Protocol.Command.EXEC, new String[0]);
+    }
+
+    // null when every command of the transaction succeeded
+    private static String failureOf(Response<Object> execResult){
+        try{
+            Object replies = execResult.get();
+            if(!(replies instanceof List)){
+                return "transaction aborted";
+            }
+            for(Object reply:(List<?>) replies){
+                if(reply instanceof JedisDataException){
+                    return ((JedisDataException) reply).getMessage();
+                }
+            }
+            return null;
+        }catch(JedisDataException jde){ // EXECABORT - a command was rejected while queuing
+            return jde.getMessage();
+        }
+    }
+
+    private void printProgress(long startTime){
+        long elapsedMillis = Math.max(1, System.currentTimeMillis()-startTime);
+        System.out.println("OrderHistoryReplayer progress: "+streamsReplayed.get()+" streams, "+entriesReplayed.get()+
+                " entries replayed in "+(elapsedMillis/1000)+" seconds ("+(entriesReplayed.get()*1000/elapsedMillis)+" entries/sec)");
+    }
+}
@@ -0,0 +1,364 @@
+package com.redislabs.sa.ot.rouws;
+
+import com.redislabs.sa.ot.streamutils.StreamEventMapProcessorV2;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.params.XAddParams;
+import redis.clients.jedis.resps.StreamEntry;
+
+import java.util.*;
+
+/**
+ * Optional processor stage that notices orders sitting in a stage for too long - instead of searching the index for them
+ * wrap() puts it behind another processor: every processed stage cancels the order's running deadline and, when the
+ * stage has an SLA (for example accepted=600000), schedules a new deadline at entry time + SLA
+ * A deadline that expires before the next stage arrives adds an alert entry to the alert stream:
+ *  X:rouws:sla_alerts  customer X:rouws::0000000037{37}  orderID ...  stage accepted  stage_time ...  deadline ...  overdue_millis ...
+ *
+ * The deadlines live on a hierarchical timing wheel: LEVELS wheels of 64 buckets each, tickMillis per bucket of the
+ * lowest wheel and 64 times more per bucket of every wheel above it (4 levels of 100ms ticks cover 19 days)
+ * Scheduling and cancelling are O(1): each timer sits in a doubly linked bucket list and is found by its order key
+ * A bucket of a higher wheel is spread over the wheels below it when the lowest wheel reaches it - each timer moves at most LEVELS times
+ * Timers are kept in parallel primitive arrays (reused through a free list) rather than one object per open order
+ *
+ * Each order remembers the entry ID of the last stage applied to it - a stage that is not newer (delivered again, claimed
+ * by a retry or read late by another worker) is ignored, so it never replaces the current deadline or raises a second alert
+ * Orders that finished (a stage without SLA or an alert) keep that entry ID for finishedOrderRetentionMillis
+ */
+public class OrderSlaTracker {
+    public static final String DEFAULT_STAGE_DEADLINES = "new=300000,accepted=600000,in_preparation=1200000,out_for_delivery=1800000,delayed=900000";
+    static final int WHEEL_BITS = 6;
+    static final int WHEEL_SIZE = 1<<WHEEL_BITS;
+    static final int LEVELS = 4;
+    private static final int NONE = -1;
+
+    private JedisPooled jedis = null;
+    private PartitionedStreamLayout partitionedStreams = null;
+    private String alertStreamName = "X:rouws:sla_alerts";
+    private long alertStreamMaxLength = 100000;
+    private long tickMillis = 100;
+    private long finishedOrderRetentionMillis = 600000;
+    private final Map<String,Integer> stageIndexes = new HashMap<>();
+    private final List<String> stageNames = new ArrayList<>();
+    private final List<Long> stageDeadlineMillis = new ArrayList<>();
+
+    // the wheels - bucket (level*WHEEL_SIZE + slot) holds the first timer of its list:
+    private final int[] bucketHeads = new int[LEVELS*WHEEL_SIZE];
+    private long currentTick;
+    // the timers - one index per open order:
+    private final Map<String,Integer> timerIndexes = new HashMap<>();
+    private String[] orderKeys = new String[1024];
+    private long[] stageTimes = new long[1024];
+    private long[] stageSequences = new long[1024];
+    private long[] deadlineTicks = new long[1024];
+    private int[] nextTimers = new int[1024];
+    private int[] previousTimers = new int[1024];
+    private int[] timerBuckets = new int[1024];
+    private byte[] timerStages = new byte[1024];
+    private int freeTimers = NONE;
+    private int usedTimers = 0;
+    // orders without a running deadline: orderKey -> {entry time, entry sequence, finished at} - oldest first
+    private final LinkedHashMap<String,long[]> finishedOrders = new LinkedHashMap<>();
+    private long alertsRaised = 0;
+    private volatile boolean running = false;
+
+    public OrderSlaTracker(){
+        Arrays.fill(bucketHeads, NONE);
+        currentTick = System.currentTimeMillis()/tickMillis;
+        setStageDeadlines(DEFAULT_STAGE_DEADLINES);
+    }
+
+    public OrderSlaTracker setJedisPooled(JedisPooled jedisPooled){
+        this.jedis=jedisPooled;
+        return this;
+    }
+
+    public OrderSlaTracker setPartitionedStreamLayout(PartitionedStreamLayout partitionedStreams){
+        this.partitionedStreams=partitionedStreams;
+        return this;
+    }
+
+    public OrderSlaTracker setAlertStreamName(String alertStreamName){
+        this.alertStreamName=alertStreamName;
+        return this;
+    }
+
+    // set before start() - a smaller tick raises alerts closer to the deadline and costs more wake ups
+    public synchronized OrderSlaTracker setTickMillis(long tickMillis){
+        this.tickMillis=tickMillis;
+        this.currentTick=System.currentTimeMillis()/tickMillis;
+        return this;
+    }
+
+    // how long a finished order still ignores its older stages - cover the redelivery window (maxDeliveries * retryMinIdleMillis)
+    public synchronized OrderSlaTracker setFinishedOrderRetentionMillis(long finishedOrderRetentionMillis){
+        this.finishedOrderRetentionMillis=finishedOrderRetentionMillis;
+        return this;
+    }
+
+    // stage=millis pairs separated by commas - stages that are not listed (completed, cancelled...) just end the running deadline
+    public synchronized OrderSlaTracker setStageDeadlines(String stageDeadlines){
+        stageIndexes.clear();
+        stageNames.clear();
+        stageDeadlineMillis.clear();
+        for(String stageDeadline:stageDeadlines.split(",")){
+            String[] parts = stageDeadline.trim().split("=");
+            if(parts.length!=2 || stageNames.size()>Byte.MAX_VALUE){
+                throw new IllegalArgumentException("Expected stage=millis but got: "+stageDeadline);
+            }
+            stageIndexes.put(parts[0].trim(), stageNames.size());
+            stageNames.add(parts[0].trim());
+            stageDeadlineMillis.add(Long.parseLong(parts[1].trim()));
+        }
+        return this;
+    }
+
+    // one instance can wrap every worker's processor - they then share the wheel and the ticker thread
+    public StreamEventMapProcessorV2 wrap(StreamEventMapProcessorV2 processor){
+        OrderSlaTracker tracker = this;
+        return new StreamEventMapProcessorV2() {
+            @Override
+            public void processStreamEntry(String streamName, StreamEntry payload) {
+                processor.processStreamEntry(streamName, payload);
+                tracker.record(streamName, payload);
+            }
+
+            @Override
+            public void processStreamEntries(String streamName, List<StreamEntry> payloads) {
+                processor.processStreamEntries(streamName, payloads); // keeps the wrapped processor's combined writes
+                for(StreamEntry payload:payloads){
+                    tracker.record(streamName, payload);
+                }
+            }
+        };
+    }
+
+    public OrderSlaTracker start(){
+        running = true;
+        Thread ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(running){
+                    try{
+                        Thread.sleep(tickMillis);
+                        List<String[]> alerts = advanceTo(System.currentTimeMillis());
+                        if(!alerts.isEmpty()){
+                            writeAlerts(alerts);
+                        }
+                    }catch(InterruptedException ie){
+                        return;
+                    }catch(RuntimeException re){ // the expired timers are gone - their alerts are lost, not retried
+                        System.out.println("OrderSlaTracker could not write its alerts: "+re.getMessage());
+                    }
+                }
+            }
+        }, "orderSlaTicker");
+        ticker.setDaemon(true);
+        ticker.start();
+        System.out.println("OrderSlaTracker watching stages "+stageNames+" - alerts go to "+alertStreamName);
+        return this;
+    }
+
+    public void stop(){
+        running = false;
+    }
+
+    void record(String streamName, StreamEntry payload){
+        Map<String,String> orderEvent = OrderEventCodec.decode(payload.getFields());
+        String orderID = orderEvent.get("orderID");
+        String stage = orderEvent.get("stage");
+        if(orderID==null || stage==null){
+            return;
+        }
+        String customer = partitionedStreams==null ? streamName : partitionedStreams.customerStreamNameOf(streamName, orderEvent);
+        stageArrived(customer+"|"+orderID, stage, payload.getID().getTime(), payload.getID().getSequence());
+    }
+
+    // cancels the running deadline of the order and schedules the one of its new stage (if the stage has an SLA)
+    // stages that are not newer than the last one applied to the order are ignored
+    synchronized void stageArrived(String orderKey, String stage, long stageTime, long stageSequence){
+        Integer timer = timerIndexes.get(orderKey);
+        if(timer!=null){
+            if(!isNewer(stageTime, stageSequence, stageTimes[timer], stageSequences[timer])){
+                return;
+            }
+        }else{
+            long[] finished = finishedOrders.get(orderKey);
+            if(finished!=null){
+                if(!isNewer(stageTime, stageSequence, finished[0], finished[1])){
+                    return;
+                }
+                finishedOrders.remove(orderKey);
+            }
+        }
+        Integer stageIndex = stageIndexes.get(stage);
+        if(stageIndex==null){
+            if(timer!=null){
+                timerIndexes.remove(orderKey);
+                unlink(timer);
+                release(timer);
+            }
+            finish(orderKey, stageTime, stageSequence);
+            return;
+        }
+        if(timer==null){
+            timer = allocate();
+            orderKeys[timer] = orderKey;
+            timerIndexes.put(orderKey, timer);
+        }else{
+            unlink(timer);
+        }
+        stageTimes[timer] = stageTime;
+        stageSequences[timer] = stageSequence;
+        timerStages[timer] = (byte)(int) stageIndex;
+        // a deadline already in the past (an old entry read late) fires on the next tick:
+        deadlineTicks[timer] = Math.max((stageTime+stageDeadlineMillis.get(stageIndex))/tickMillis, currentTick+1);
+        link(timer);
+    }
+
+    // moves the wheels forward to nowMillis and returns an alert for every deadline that expired on the way
+    synchronized List<String[]> advanceTo(long nowMillis){
+        List<String[]> alerts = new ArrayList<>();
+        long nowTick = nowMillis/tickMillis;
+        while(currentTick<nowTick){
+            currentTick++;
+            // spread the higher buckets that start at this tick over the lower wheels - highest wheel first:
+            for(int level=LEVELS-1;level>0;level--){
+                if((currentTick & ((1L<<(WHEEL_BITS*level))-1))==0){
+                    cascade(level*WHEEL_SIZE + (int)((currentTick>>>(WHEEL_BITS*level)) & (WHEEL_SIZE-1)));
+                }
+            }
+            int bucket = (int)(currentTick & (WHEEL_SIZE-1));
+            int timer = bucketHeads[bucket];
+            bucketHeads[bucket] = NONE;
+            while(timer!=NONE){
+                int next = nextTimers[timer];
+                alerts.add(alertOf(timer, nowMillis));
+                timerIndexes.remove(orderKeys[timer]);
+                finish(orderKeys[timer], stageTimes[timer], stageSequences[timer]);
+                release(timer);
+                timer = next;
+            }
+        }
+        alertsRaised += alerts.size();
+        Iterator<long[]> oldestFinished = finishedOrders.values().iterator();
+        while(oldestFinished.hasNext() && nowMillis-oldestFinished.next()[2]>=finishedOrderRetentionMillis){
+            oldestFinished.remove();
+        }
+        return alerts;
+    }
+
+    private static boolean isNewer(long stageTime, long stageSequence, long lastTime, long lastSequence){
+        return stageTime>lastTime || (stageTime==lastTime && stageSequence>lastSequence);
+    }
+
+    private void finish(String orderKey, long stageTime, long stageSequence){
+        finishedOrders.put(orderKey, new long[]{stageTime, stageSequence, currentTick*tickMillis});
+    }
+
+    private void cascade(int bucket){
+        int timer = bucketHeads[bucket];
+        bucketHeads[bucket] = NONE;
+        while(timer!=NONE){
+            int next = nextTimers[timer];
+            link(timer);
+            timer = next;
+        }
+    }
+
+    // the lowest wheel whose span covers the distance to the deadline - farther deadlines wait in the top wheel's last bucket
+    private void link(int timer){
+        long deadlineTick = deadlineTicks[timer];
+        long delta = Math.max(0, deadlineTick-currentTick);
+        int level = 0;
+        while(level<LEVELS-1 && delta>=(1L<<(WHEEL_BITS*(level+1)))){
+            level++;
+        }
+        if(delta>=(1L<<(WHEEL_BITS*LEVELS))){
+            deadlineTick = currentTick+(1L<<(WHEEL_BITS*LEVELS))-1;
+        }
+        int bucket = level*WHEEL_SIZE + (int)((deadlineTick>>>(WHEEL_BITS*level)) & (WHEEL_SIZE-1));
+        timerBuckets[timer] = bucket;
+        previousTimers[timer] = NONE;
+        nextTimers[timer] = bucketHeads[bucket];
+        if(bucketHeads[bucket]!=NONE){
+            previousTimers[bucketHeads[bucket]] = timer;
+        }
+        bucketHeads[bucket] = timer;
+    }
+
+    private void unlink(int timer){
+        int previous = previousTimers[timer];
+        int next = nextTimers[timer];
+        if(previous==NONE){
+            bucketHeads[timerBuckets[timer]] = next;
+        }else{
+            nextTimers[previous] = next;
+        }
+        if(next!=NONE){
+            previousTimers[next] = previous;
+        }
+    }
+
+    private int allocate(){
+        if(freeTimers!=NONE){
+            int timer = freeTimers;
+            freeTimers = nextTimers[timer];
+            return timer;
+        }
+        if(usedTimers==orderKeys.length){
+            int capacity = orderKeys.length*2;
+            orderKeys = Arrays.copyOf(orderKeys, capacity);
+            stageTimes = Arrays.copyOf(stageTimes, capacity);
+            stageSequences = Arrays.copyOf(stageSequences, capacity);
+            deadlineTicks = Arrays.copyOf(deadlineTicks, capacity);
+            nextTimers = Arrays.copyOf(nextTimers, capacity);
+            previousTimers = Arrays.copyOf(previousTimers, capacity);
+            timerBuckets = Arrays.copyOf(timerBuckets, capacity);
+            timerStages = Arrays.copyOf(timerStages, capacity);
+        }
+        return usedTimers++;
+    }
+
+    private void release(int timer){
+        orderKeys[timer] = null;
+        nextTimers[timer] = freeTimers;
+        freeTimers = timer;
+    }
+
+    private String[] alertOf(int timer, long nowMillis){
+        String orderKey = orderKeys[timer];
+        int separator = orderKey.lastIndexOf('|');
+        long deadline = deadlineTicks[timer]*tickMillis;
+        return new String[]{orderKey.substring(0, separator), orderKey.substring(separator+1), stageNames.get(timerStages[timer]),
+                ""+stageTimes[timer], ""+deadline, ""+Math.max(0, nowMillis-deadline)};
+    }
+
+    private void writeAlerts(List<String[]> alerts){
+        try(Connection connection = jedis.getPool().getResource()){
+            Pipeline pipeline = new Pipeline(connection);
+            XAddParams xAddParams = XAddParams.xAddParams().maxLen(alertStreamMaxLength).approximateTrimming();
+            for(String[] alert:alerts){
+                Map<String,String> alertEntry = new LinkedHashMap<>();
+                alertEntry.put("customer", alert[0]);
+                alertEntry.put("orderID", alert[1]);
+                alertEntry.put("stage", alert[2]);
+                alertEntry.put("stage_time", alert[3]);
+                alertEntry.put("deadline", alert[4]);
+                alertEntry.put("overdue_millis", alert[5]);
+                pipeline.xadd(alertStreamName, alertEntry, xAddParams);
+            }
+            pipeline.sync();
+        }
+    }
+
+    public synchronized int getOpenOrders(){
+        return timerIndexes.size();
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "OrderSlaTracker open orders: "+timerIndexes.size()+" alerts raised: "+alertsRaised;
+    }
+}
@@ -0,0 +1,231 @@
+package com.redislabs.sa.ot.rouws;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Writes the JSON for an order stage straight into a reusable per-thread byte buffer
+ * It replaces building an org.json.JSONObject per entry (and Jedis serializing it again)
+ *
+ * The encoder knows the fields written by DummyOrderWriter and looks them up directly
+ * - no per-key equalsIgnoreCase checks - any other fields are appended as strings after them
+ * order_cost is copied digit by digit from the stream value when it is a valid JSON number
+ * so it keeps its full precision (Float.parseFloat used to round it)
+ *
+ * Use get() to obtain the encoder of the current thread - an instance must not be shared between threads
+ */
+public class OrderStageJsonEncoder {
+    static final String[] STRING_FIELDS = {"stage","orderID","contact_name"};
+    static final String NUMBER_FIELD = "order_cost";
+    static final int MAX_ITEMS = 15;
+    static final String[] ITEM_FIELDS = new String[MAX_ITEMS];
+    static {
+        for(int x=0;x<MAX_ITEMS;x++){
+            ITEM_FIELDS[x] = "item"+(x+1);
+        }
+    }
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadLocal<OrderStageJsonEncoder> ENCODERS = ThreadLocal.withInitial(OrderStageJsonEncoder::new);
+
+    private byte[] buffer = new byte[512];
+    private int position = 0;
+    private boolean firstField = true;
+
+    public static OrderStageJsonEncoder get(){
+        return ENCODERS.get();
+    }
+
+    /**
+     * @param fields the fields of a stream entry
+     * @param excludedFields field names (compared ignoring case) that must not be written - for example routing hints
+     * @return the JSON object for the order stage
+     */
+    public byte[] encodeOrderStage(Map<String,String> fields, String... excludedFields){
+        position = 0;
+        writeOrderStage(fields, excludedFields);
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /**
+     * @return a complete document: {"RegionID":regionID,"order_stages":[orderStage]}
+     */
+    public byte[] encodeNewDocument(String regionID, Map<String,String> fields, String... excludedFields){
+        position = 0;
+        writeAscii("{\"RegionID\":");
+        writeString(regionID);
+        writeAscii(",\"order_stages\":[");
+        writeOrderStage(fields, excludedFields);
+        writeAscii("]}");
+        return Arrays.copyOf(buffer, position);
+    }
+
+    private void writeOrderStage(Map<String,String> fields, String... excludedFields){
+        int written = 0;
+        firstField = true;
+        writeByte('{');
+        for(String name:STRING_FIELDS){
+            String value = fields.get(name);
+            if(value!=null){
+                writeName(name);
+                writeString(value);
+                written++;
+            }
+        }
+        String cost = fields.get(NUMBER_FIELD);
+        if(cost!=null){
+            writeName(NUMBER_FIELD);
+            if(isJsonNumber(cost)){
+                writeAscii(cost);
+            }else{
+                writeString(cost);
+            }
+            written++;
+        }
+        for(String name:ITEM_FIELDS){
+            String value = fields.get(name);
+            if(value!=null){
+                writeName(name);
+                writeString(value);
+                written++;
+            }
+        }
+        int skipped = 0; // excluded fields (customer_id in partitioned mode) are expected and must not force the map walk
+        for(String excluded:excludedFields){
+            if(!isKnownField(excluded) && fields.containsKey(excluded)){
+                skipped++;
+            }
+        }
+        if(written+skipped<fields.size()){
+            // fields outside the known schema are rare - only then do we walk the map:
+            for(Map.Entry<String,String> field:fields.entrySet()){
+                String name = field.getKey();
+                if(isKnownField(name) || isExcluded(name, excludedFields)){
+                    continue;
+                }
+                writeName(name);
+                writeString(field.getValue());
+            }
+        }
+        writeByte('}');
+    }
+
+    static boolean isKnownField(String name){
+        if(name.equals(NUMBER_FIELD)){
+            return true;
+        }
+        for(String known:STRING_FIELDS){
+            if(name.equals(known)){
+                return true;
+            }
+        }
+        if(name.startsWith("item") && name.length()<=6){
+            for(String item:ITEM_FIELDS){
+                if(name.equals(item)){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isExcluded(String name, String[] excludedFields){
+        for(String excluded:excludedFields){
+            if(name.equalsIgnoreCase(excluded)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // -?digits(.digits)?([eE][+-]?digits)? - the grammar of a JSON number
+    static boolean isJsonNumber(String value){
+        int length = value.length();
+        int x = 0;
+        if(x<length && value.charAt(x)=='-'){x++;}
+        int digits = x;
+        while(x<length && isAsciiDigit(value.charAt(x))){x++;}
+        if(x==digits || (value.charAt(digits)=='0' && x-digits>1)){return false;}
+        if(x<length && value.charAt(x)=='.'){
+            x++;
+            int fraction = x;
+            while(x<length && isAsciiDigit(value.charAt(x))){x++;}
+            if(x==fraction){return false;}
+        }
+        if(x<length && (value.charAt(x)=='e' || value.charAt(x)=='E')){
+            x++;
+            if(x<length && (value.charAt(x)=='+' || value.charAt(x)=='-')){x++;}
+            int exponent = x;
+            while(x<length && isAsciiDigit(value.charAt(x))){x++;}
+            if(x==exponent){return false;}
+        }
+        return x==length;
+    }
+
+    private static boolean isAsciiDigit(char c){
+        return c>='0' && c<='9';
+    }
+
+    private void writeName(String name){
+        if(!firstField){
+            writeByte(',');
+        }
+        firstField = false;
+        writeString(name);
+        writeByte(':');
+    }
+
+    // writes a quoted, escaped JSON string encoded as UTF-8 - without creating intermediate byte arrays
+    private void writeString(String value){
+        ensureCapacity(value.length()*6+2); // worst case: every char is an escaped control character
+        buffer[position++] = '"';
+        for(int x=0;x<value.length();x++){
+            char c = value.charAt(x);
+            if(c=='"' || c=='\\'){
+                buffer[position++] = '\\';
+                buffer[position++] = (byte) c;
+            }else if(c<0x20){
+                buffer[position++] = '\\';
+                buffer[position++] = 'u';
+                buffer[position++] = '0';
+                buffer[position++] = '0';
+                buffer[position++] = HEX[c>>4];
+                buffer[position++] = HEX[c&0xF];
+            }else if(c<0x80){
+                buffer[position++] = (byte) c;
+            }else if(c<0x800){
+                buffer[position++] = (byte) (0xC0|(c>>6));
+                buffer[position++] = (byte) (0x80|(c&0x3F));
+            }else if(Character.isHighSurrogate(c) && x+1<value.length() && Character.isLowSurrogate(value.charAt(x+1))){
+                int codePoint = Character.toCodePoint(c, value.charAt(++x));
+                buffer[position++] = (byte) (0xF0|(codePoint>>18));
+                buffer[position++] = (byte) (0x80|((codePoint>>12)&0x3F));
+                buffer[position++] = (byte) (0x80|((codePoint>>6)&0x3F));
+                buffer[position++] = (byte) (0x80|(codePoint&0x3F));
+            }else{
+                buffer[position++] = (byte) (0xE0|(c>>12));
+                buffer[position++] = (byte) (0x80|((c>>6)&0x3F));
+                buffer[position++] = (byte) (0x80|(c&0x3F));
+            }
+        }
+        buffer[position++] = '"';
+    }
+
+    private void writeAscii(String value){
+        ensureCapacity(value.length());
+        for(int x=0;x<value.length();x++){
+            buffer[position++] = (byte) value.charAt(x);
+        }
+    }
+
+    private void writeByte(char c){
+        ensureCapacity(1);
+        buffer[position++] = (byte) c;
+    }
+
+    private void ensureCapacity(int extra){
+        if(position+extra>buffer.length){
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length*2, position+extra));
+        }
+    }
+}
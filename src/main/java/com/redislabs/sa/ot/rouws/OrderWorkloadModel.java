@@ -0,0 +1,171 @@
+package com.redislabs.sa.ot.rouws;
+
+import com.github.javafaker.Faker;
+
+import java.util.*;
+
+/**
+ * A configurable model of the order traffic produced by the writers
+ *  - customers are picked from a Zipf distribution: customer 0 is the hottest, exponent 0 means every customer is equally likely
+ *  - the next stage of a customer's order comes from a Markov matrix of transition probabilities
+ *  - item and contact names come from corpora generated once up front, so Faker is never called while writing
+ *  - everything is driven by a seed: a writer that uses newRandom(writerIndex) produces the same sequence on every run
+ *
+ * The matrix is given as "from:to=probability,to=probability;from:..." using the stage names, for example:
+ *  new:accepted=0.97,cancelled=0.03;accepted:in_preparation=0.9,delayed=0.08,cancelled=0.02;...
+ * Rows do not need to add up to 1 - they are normalised, and a stage without a row starts a new order
+ */
+public class OrderWorkloadModel {
+    public static final String[] STAGES = {"new","accepted","in_preparation","out_for_delivery","completed","delayed","cancelled"};
+    public static final int NEW=0, ACCEPTED=1, IN_PREPARATION=2, OUT_FOR_DELIVERY=3, COMPLETED=4, DELAYED=5, CANCELLED=6;
+    // roughly what the original nanoTime based writer produced
+    public static final String DEFAULT_STAGE_MATRIX =
+            "new:accepted=0.97,cancelled=0.03;" +
+            "accepted:in_preparation=0.89,delayed=0.1,cancelled=0.01;" +
+            "in_preparation:out_for_delivery=0.89,delayed=0.1,cancelled=0.01;" +
+            "out_for_delivery:completed=0.99,cancelled=0.01;" +
+            "delayed:in_preparation=0.3,out_for_delivery=0.6,cancelled=0.1;" +
+            "completed:new=1;" +
+            "cancelled:new=1";
+
+    private long seed = 42;
+    private int customerCount = 1000;
+    private double zipfExponent = 1.0;
+    private int corpusSize = 1000;
+    private int maxItemsPerOrder = 15;
+    private String stageMatrix = DEFAULT_STAGE_MATRIX;
+    private double[] customerCdf = null;
+    private double[][] transitionCdf = null;
+    private String[] itemCorpus = null;
+    private String[] nameCorpus = null;
+
+    public OrderWorkloadModel setSeed(long seed){
+        this.seed=seed;
+        return this;
+    }
+
+    public OrderWorkloadModel setCustomerCount(int customerCount){
+        this.customerCount=customerCount;
+        return this;
+    }
+
+    public OrderWorkloadModel setZipfExponent(double zipfExponent){
+        this.zipfExponent=zipfExponent;
+        return this;
+    }
+
+    public OrderWorkloadModel setCorpusSize(int corpusSize){
+        this.corpusSize=corpusSize;
+        return this;
+    }
+
+    public OrderWorkloadModel setMaxItemsPerOrder(int maxItemsPerOrder){
+        this.maxItemsPerOrder=maxItemsPerOrder;
+        return this;
+    }
+
+    public OrderWorkloadModel setStageMatrix(String stageMatrix){
+        this.stageMatrix=stageMatrix;
+        return this;
+    }
+
+    // builds the lookup tables and the corpora - call once before handing the model to the writers
+    public OrderWorkloadModel build(){
+        customerCdf = new double[customerCount];
+        double total = 0;
+        for(int rank=0;rank<customerCount;rank++){
+            total += 1.0/Math.pow(rank+1, zipfExponent);
+            customerCdf[rank] = total;
+        }
+        for(int rank=0;rank<customerCount;rank++){
+            customerCdf[rank] /= total;
+        }
+        transitionCdf = parseStageMatrix(stageMatrix);
+        Faker faker = new Faker(new Random(seed));
+        itemCorpus = new String[corpusSize];
+        nameCorpus = new String[corpusSize];
+        for(int x=0;x<corpusSize;x++){
+            itemCorpus[x] = faker.food().ingredient();
+            nameCorpus[x] = faker.name().fullName();
+        }
+        System.out.println("OrderWorkloadModel built: "+customerCount+" customers (zipf exponent "+zipfExponent+"), "+
+                corpusSize+" items and names, seed "+seed);
+        return this;
+    }
+
+    // each writer gets its own generator so the writers never contend and each one is reproducible
+    public Random newRandom(int writerIndex){
+        return new Random(seed*31+writerIndex);
+    }
+
+    public int nextCustomerID(Random random){
+        int rank = Arrays.binarySearch(customerCdf, random.nextDouble());
+        rank = rank>=0 ? rank : -rank-1;
+        return Math.min(rank, customerCount-1);
+    }
+
+    // the stage that follows the stored stage of a customer (-1 when the customer has no order yet)
+    public int nextStage(int currentStage, Random random){
+        if(currentStage<0 || currentStage>=STAGES.length || transitionCdf[currentStage]==null){
+            return NEW;
+        }
+        double[] row = transitionCdf[currentStage];
+        double draw = random.nextDouble();
+        for(int to=0;to<row.length;to++){
+            if(draw<row[to]){
+                return to;
+            }
+        }
+        return NEW;
+    }
+
+    public void putOrderDetails(Map<String,String> entryMap, Random random){
+        int itemCount = 1+random.nextInt(maxItemsPerOrder);
+        for(int x=1;x<=itemCount;x++){
+            entryMap.put("item"+x, itemCorpus[random.nextInt(itemCorpus.length)]);
+        }
+        entryMap.put("contact_name", nameCorpus[random.nextInt(nameCorpus.length)]);
+        entryMap.put("order_cost", String.format(Locale.ROOT, "%.2f", itemCount*7.99+random.nextInt(5)));
+    }
+
+    public static int stageIndex(String stageName){
+        for(int x=0;x<STAGES.length;x++){
+            if(STAGES[x].equals(stageName)){
+                return x;
+            }
+        }
+        throw new IllegalArgumentException("Unknown order stage in stage matrix: "+stageName);
+    }
+
+    static double[][] parseStageMatrix(String matrix){
+        double[][] cdf = new double[STAGES.length][];
+        for(String row:matrix.split(";")){
+            if(row.trim().isEmpty()){
+                continue;
+            }
+            String[] fromAndTargets = row.split(":");
+            int from = stageIndex(fromAndTargets[0].trim());
+            double[] probabilities = new double[STAGES.length];
+            double total = 0;
+            for(String target:fromAndTargets[1].split(",")){
+                String[] toAndProbability = target.split("=");
+                double probability = Double.parseDouble(toAndProbability[1].trim());
+                probabilities[stageIndex(toAndProbability[0].trim())] += probability;
+                total += probability;
+            }
+            if(total<=0){
+                throw new IllegalArgumentException("Stage matrix row has no positive probabilities: "+row);
+            }
+            double running = 0;
+            int lastPossible = 0;
+            for(int to=0;to<STAGES.length;to++){
+                lastPossible = probabilities[to]>0 ? to : lastPossible;
+                running += probabilities[to]/total;
+                probabilities[to] = running;
+            }
+            probabilities[lastPossible] = 1.0; // no rounding gap at the end of the row
+            cdf[from] = probabilities;
+        }
+        return cdf;
+    }
+}
@@ -0,0 +1,66 @@
+package com.redislabs.sa.ot.rouws;
+
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.Pipeline;
+
+import java.util.List;
+
+/**
+ * Keeps the writer's per-customer state (current stage and orderSeed) packed into one string per routing slot
+ * instead of one rouws:<id>:order hash per customer
+ *
+ * Every customer of a slot owns a fixed 32 bit record in rouws:orderstate:{slot} at bit offset (customerID / routingValueCount) * 32:
+ *  u4  stage + 1 (0 means the customer has no state yet)
+ *  u28 orderSeed (wraps at 2^28)
+ * so a million customers take 4MB in a few keys instead of a million small hashes
+ * A record is read with one BITFIELD GET GET, and written with BITFIELD SET SET - which can be pipelined with the XADD
+ */
+public class PackedOrderStateStore {
+    public static final int NO_STAGE = -1;
+    static final int RECORD_BITS = 32;
+    static final int STAGE_BITS = 4;
+    static final long SEED_MASK = (1L<<(RECORD_BITS-STAGE_BITS))-1;
+    private static final String STAGE_TYPE = "u"+STAGE_BITS;
+    private static final String SEED_TYPE = "u"+(RECORD_BITS-STAGE_BITS);
+
+    private final JedisPooled jedisPooled;
+    private final int routingValueCount;
+    private String keyBase = "rouws:orderstate:";
+
+    public PackedOrderStateStore(JedisPooled jedisPooled, int routingValueCount){
+        this.jedisPooled = jedisPooled;
+        this.routingValueCount = routingValueCount;
+    }
+
+    public PackedOrderStateStore setKeyBase(String keyBase){
+        this.keyBase=keyBase;
+        return this;
+    }
+
+    // {stage, orderSeed} - stage is NO_STAGE for a customer without state
+    public long[] read(int customerID){
+        long offset = recordOffset(customerID);
+        List<Long> fields = jedisPooled.bitfield(keyOf(customerID),
+                "GET", STAGE_TYPE, ""+offset, "GET", SEED_TYPE, ""+(offset+STAGE_BITS));
+        return new long[]{fields.get(0)-1, fields.get(1)};
+    }
+
+    // queued on the caller's pipeline so the state and the event it describes are sent together
+    public void write(Pipeline pipeline, int customerID, int stage, long orderSeed){
+        if(stage<0 || stage>=(1<<STAGE_BITS)-1){
+            throw new IllegalArgumentException("Stage "+stage+" does not fit in "+STAGE_BITS+" bits");
+        }
+        long offset = recordOffset(customerID);
+        pipeline.bitfield(keyOf(customerID),
+                "SET", STAGE_TYPE, ""+offset, ""+(stage+1), "SET", SEED_TYPE, ""+(offset+STAGE_BITS), ""+(orderSeed&SEED_MASK));
+    }
+
+    private long recordOffset(int customerID){
+        return (long)(customerID/routingValueCount)*RECORD_BITS;
+    }
+
+    // the same routing value as the customer's stream, so state and stream share a slot
+    private String keyOf(int customerID){
+        return keyBase+"{"+(customerID%routingValueCount)+"}";
+    }
+}
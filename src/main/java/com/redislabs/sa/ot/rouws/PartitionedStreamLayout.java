@@ -0,0 +1,88 @@
+package com.redislabs.sa.ot.rouws;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Names the streams when the events of a region are spread over a fixed number of partition streams
+ * instead of one stream per customer:
+ *  X:rouws::p0003{1}  holds the events of every customer of region (routing value) 1 that hashes to partition 3
+ *
+ * A customer always hashes to the same partition, so the events of one customer stay in order
+ * The writer puts the numeric customer id in the customer_id field of each entry and the processor uses it
+ * to find the customer document - the documents keep the names they have in the stream-per-customer layout:
+ *  customer_order_history:X:rouws::0000000037{1}
+ * routingValueCount * partitionsPerRegion streams replace one stream per customer
+ */
+public class PartitionedStreamLayout {
+    public static final String CUSTOMER_ID_FIELD = "customer_id";
+
+    private final String streamNameBase;
+    private final int routingValueCount;
+    private final int partitionsPerRegion;
+    private final DummyOrderWriter customerNames = new DummyOrderWriter(); // the stream-per-customer naming
+
+    public PartitionedStreamLayout(String streamNameBase, int routingValueCount, int partitionsPerRegion){
+        this.streamNameBase = streamNameBase;
+        this.routingValueCount = routingValueCount;
+        this.partitionsPerRegion = partitionsPerRegion;
+    }
+
+    public int getPartitionsPerRegion(){
+        return partitionsPerRegion;
+    }
+
+    public String partitionStreamName(int region, int partition){
+        return String.format("X:%s:p%04d{%d}", streamNameBase, partition, region);
+    }
+
+    // true for X:rouws::p0003{1} - false for the stream of a single customer (X:rouws::0000000037{1})
+    public static boolean isPartitionStreamName(String streamNameBase, String streamName){
+        String prefix = "X:"+streamNameBase+":p";
+        int open = streamName.lastIndexOf('{');
+        if(!streamName.startsWith(prefix) || open<=prefix.length()){
+            return false;
+        }
+        for(int x=prefix.length();x<open;x++){
+            if(!Character.isDigit(streamName.charAt(x))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the region of a customer is its routing value, exactly as in the stream-per-customer layout
+    public String partitionStreamNameFor(int customerID){
+        return partitionStreamName(customerID%routingValueCount, partitionOf(customerID));
+    }
+
+    // customers of a region share a residue modulo routingValueCount - mix the bits so they still spread evenly
+    int partitionOf(int customerID){
+        int hash = customerID*0x9E3779B1;
+        return Math.floorMod(hash^(hash>>>16), partitionsPerRegion);
+    }
+
+    public String customerStreamName(int customerID){
+        return customerNames.getRouteEnrichedStreamName(routingValueCount, streamNameBase, customerID);
+    }
+
+    // the customer the entry belongs to: entries read from partition streams name their customer in the customer_id field,
+    // stream-per-customer entries are named by the stream itself
+    public String customerStreamNameOf(String streamName, Map<String,String> orderEvent){
+        String customerID = orderEvent.get(CUSTOMER_ID_FIELD);
+        return customerID==null ? streamName : customerStreamName(Integer.parseInt(customerID));
+    }
+
+    // one batch of partition streams per region - the same shape as Main.buildStreamNameBatches()
+    public ArrayList<ArrayList<String>> streamNameBatches(){
+        ArrayList<ArrayList<String>> batches = new ArrayList<>();
+        for(int region=0;region<routingValueCount;region++){
+            ArrayList<String> streamNames = new ArrayList<>();
+            for(int partition=0;partition<partitionsPerRegion;partition++){
+                streamNames.add(partitionStreamName(region, partition));
+            }
+            batches.add(streamNames);
+        }
+        return batches;
+    }
+}
@@ -0,0 +1,197 @@
+package com.redislabs.sa.ot.rouws;
+
+import com.redislabs.sa.ot.streamutils.StreamEventMapProcessorV2;
+import com.redislabs.sa.ot.util.RoutingValues;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.resps.StreamEntry;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional processor stage that keeps pre-aggregated counters per region and time bucket
+ * wrap() puts it behind another processor (usually StreamEventToJSONProcessorV2): after each entry is processed
+ * the event is added to in-memory totals that are flushed as one pipeline of HINCRBY / HINCRBYFLOAT calls
+ *
+ * The region is the routing value of the stream (the {slot} suffix), the time comes from the entry ID:
+ *  rouws:rollup:{37}:m:202401311405  (one hash per region per minute - kept for 2 days)
+ *  rouws:rollup:{37}:d:20240131      (one hash per region per day - kept for 400 days)
+ * Each hash holds one counter per order stage (new, accepted, ... cancelled) and a revenue sum of order_cost
+ * so a dashboard reads "orders per stage per region per minute" or "revenue per region today" with a single HGETALL
+ *
+ * An entry that is delivered again (after a consumer crash) is counted again - the rollups are approximate
+ */
+public class RegionRollupProcessor implements StreamEventMapProcessorV2 {
+    static String ROLLUP_KEY_BASE = "rouws:rollup:";
+    static final String REVENUE_FIELD = "revenue";
+    // immutable and thread safe - shared by every worker:
+    private static final DateTimeFormatter MINUTE_BUCKET_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmm").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter DAY_BUCKET_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+    static long MINUTE_BUCKET_TTL_SECONDS = 2*24*60*60;
+    static long DAY_BUCKET_TTL_SECONDS = 400*24*60*60;
+
+    private JedisPooled jedis = null;
+    private long flushIntervalMillis = 1000;
+    private int maxPendingEvents = 5000;
+    private Map<String,Map<String,Double>> pendingTotals = new HashMap<>(); // bucket key -> field -> increment
+    private int pendingEvents = 0;
+    private volatile boolean running = false;
+
+    public RegionRollupProcessor setJedisPooled(JedisPooled jedisPooled){
+        this.jedis=jedisPooled;
+        return this;
+    }
+
+    public RegionRollupProcessor setFlushIntervalMillis(long flushIntervalMillis){
+        this.flushIntervalMillis=flushIntervalMillis;
+        return this;
+    }
+
+    public RegionRollupProcessor setMaxPendingEvents(int maxPendingEvents){
+        this.maxPendingEvents=maxPendingEvents;
+        return this;
+    }
+
+    // one instance can wrap every worker's processor - they then share the totals and the flusher thread
+    public StreamEventMapProcessorV2 wrap(StreamEventMapProcessorV2 processor){
+        RegionRollupProcessor rollupProcessor = this;
+        return new StreamEventMapProcessorV2() {
+            @Override
+            public void processStreamEntry(String streamName, StreamEntry payload) {
+                processor.processStreamEntry(streamName, payload);
+                rollupProcessor.record(streamName, payload);
+            }
+
+            @Override
+            public void processStreamEntries(String streamName, List<StreamEntry> payloads) {
+                processor.processStreamEntries(streamName, payloads); // keeps the wrapped processor's combined writes
+                for(StreamEntry payload:payloads){
+                    rollupProcessor.record(streamName, payload);
+                }
+            }
+        };
+    }
+
+    public RegionRollupProcessor start(){
+        running = true;
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(running){
+                    try{
+                        Thread.sleep(flushIntervalMillis);
+                        flush();
+                    }catch(InterruptedException ie){
+                        return;
+                    }catch(RuntimeException re){
+                        System.out.println("RegionRollupProcessor flush failed: "+re.getMessage());
+                    }
+                }
+            }
+        }, "regionRollupFlusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        return this;
+    }
+
+    public void stop(){
+        running = false;
+        flush();
+    }
+
+    @Override
+    public void processStreamEntry(String streamName, StreamEntry payload) {
+        record(streamName, payload);
+    }
+
+    void record(String streamName, StreamEntry payload){
+        Map<String,String> orderEvent = OrderEventCodec.decode(payload.getFields());
+        String region = RoutingValues.routingValueOf(streamName);
+        Instant eventTime = Instant.ofEpochMilli(payload.getID().getTime());
+        String stage = orderEvent.get("stage");
+        double revenue = parseRevenue(orderEvent.get("order_cost"));
+        boolean flushNow;
+        synchronized (this){
+            for(String bucketKey:new String[]{minuteBucketKey(region, eventTime), dayBucketKey(region, eventTime)}){
+                Map<String,Double> totals = pendingTotals.computeIfAbsent(bucketKey, k -> new HashMap<>());
+                if(stage!=null){
+                    totals.merge(stage, 1.0, Double::sum);
+                }
+                if(revenue!=0){
+                    totals.merge(REVENUE_FIELD, revenue, Double::sum);
+                }
+            }
+            flushNow = ++pendingEvents>=maxPendingEvents;
+        }
+        if(flushNow){
+            try{
+                flush();
+            }catch(RuntimeException re){ // the entry itself was processed - the flusher thread will try again
+                System.out.println("RegionRollupProcessor flush failed: "+re.getMessage());
+            }
+        }
+    }
+
+    // sends everything collected so far as one pipeline - the totals are swapped out first so workers never wait on redis
+    public void flush(){
+        Map<String,Map<String,Double>> totalsToWrite;
+        synchronized (this){
+            if(pendingTotals.isEmpty()){
+                return;
+            }
+            totalsToWrite = pendingTotals;
+            pendingTotals = new HashMap<>();
+            pendingEvents = 0;
+        }
+        try(Connection connection = jedis.getPool().getResource()){
+            Pipeline pipeline = new Pipeline(connection);
+            for(Map.Entry<String,Map<String,Double>> bucket:totalsToWrite.entrySet()){
+                String bucketKey = bucket.getKey();
+                for(Map.Entry<String,Double> total:bucket.getValue().entrySet()){
+                    if(REVENUE_FIELD.equals(total.getKey())){
+                        pipeline.hincrByFloat(bucketKey, REVENUE_FIELD, total.getValue());
+                    }else{
+                        pipeline.hincrBy(bucketKey, total.getKey(), total.getValue().longValue());
+                    }
+                }
+                pipeline.expire(bucketKey, bucketKey.contains(":m:") ? MINUTE_BUCKET_TTL_SECONDS : DAY_BUCKET_TTL_SECONDS);
+            }
+            pipeline.sync();
+        }catch(JedisConnectionException jce){
+            // keep the totals for the next flush (if part of the pipeline was applied those events count twice)
+            synchronized (this){
+                for(Map.Entry<String,Map<String,Double>> bucket:totalsToWrite.entrySet()){
+                    Map<String,Double> totals = pendingTotals.computeIfAbsent(bucket.getKey(), k -> new HashMap<>());
+                    bucket.getValue().forEach((field, value) -> totals.merge(field, value, Double::sum));
+                }
+            }
+            throw jce;
+        }
+    }
+
+    static String minuteBucketKey(String region, Instant eventTime){
+        return ROLLUP_KEY_BASE+"{"+region+"}:m:"+MINUTE_BUCKET_FORMAT.format(eventTime);
+    }
+
+    static String dayBucketKey(String region, Instant eventTime){
+        return ROLLUP_KEY_BASE+"{"+region+"}:d:"+DAY_BUCKET_FORMAT.format(eventTime);
+    }
+
+    private static double parseRevenue(String orderCost){
+        if(orderCost==null){
+            return 0;
+        }
+        try{
+            return Double.parseDouble(orderCost);
+        }catch(NumberFormatException nfe){
+            return 0;
+        }
+    }
+}
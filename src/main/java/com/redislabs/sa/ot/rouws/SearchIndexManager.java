@@ -0,0 +1,150 @@
+package com.redislabs.sa.ot.rouws;
+
+import com.redislabs.sa.ot.util.JedisConnectionHelper;
+import com.redislabs.sa.ot.util.JedisConnectionHelperSettings;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.search.FieldName;
+import redis.clients.jedis.search.IndexDefinition;
+import redis.clients.jedis.search.IndexOptions;
+import redis.clients.jedis.search.Schema;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Owns the search index behind the idxa_rouws alias
+ * Queries only ever use the alias, so the index underneath can be replaced without any query downtime:
+ *  1. INCR rouws:index:version and FT.CREATE idx_rouws<version> with the current schema
+ *  2. poll FT.INFO until the new index has finished indexing the existing documents
+ *  3. FT.ALIASUPDATE idxa_rouws idx_rouws<version> - queries switch over in one step
+ *  4. FT.DROPINDEX the old index (the documents are kept)
+ *
+ * The schema holds only the fields that are queried
+ * All 15 order items share one multi-value TAG field, so search for items with @items:{Ham|Liver}
+ *
+ * To move the alias to a freshly built index run:
+ * mvn compile exec:java -Dexec.mainClass=com.redislabs.sa.ot.rouws.SearchIndexManager -Dexec.cleanupDaemonThreads=false -Dexec.args="--host myhost.com --port 10000"
+ */
+public class SearchIndexManager {
+    static String INDEX_NAME_BASE = "idx_rouws";
+    static String INDEX_ALIAS_NAME = "idxa_rouws";
+    static String INDEX_VERSION_KEY = "rouws:index:version";
+    static String JSON_KEY_PREFIX = Main.JSON_KEY_PREFIX;
+    static int MAX_ITEMS_PER_ORDER = 15;
+    static long POLL_INTERVAL_MILLIS = 1000;
+    static long INDEXING_TIMEOUT_MILLIS = 30*60*1000;
+
+    private final JedisPooled jedis;
+
+    public SearchIndexManager(JedisPooled jedis){
+        this.jedis = jedis;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        ArrayList<String> argList = new ArrayList<>(Arrays.asList(args));
+        JedisConnectionHelperSettings settings = Main.parseConnectionSettings(argList, new JedisConnectionHelperSettings());
+        if (argList.contains("--indexalias")) {
+            INDEX_ALIAS_NAME = argList.get(argList.indexOf("--indexalias") + 1);
+        }
+        if (argList.contains("--jsonkeyprefix")) {
+            JSON_KEY_PREFIX = argList.get(argList.indexOf("--jsonkeyprefix") + 1);
+        }
+        if (argList.contains("--indexingtimeoutmillis")) {
+            INDEXING_TIMEOUT_MILLIS = Long.parseLong(argList.get(argList.indexOf("--indexingtimeoutmillis") + 1));
+        }
+        settings.setTestOnBorrow(false);
+        settings.setMaxConnections(2);
+        new SearchIndexManager(new JedisConnectionHelper(settings).getPooledJedis()).reindex();
+    }
+
+    static Schema buildSchema(){
+        // $.order_stages[*]['item1','item2',...] collects every item of every order into one multi-value TAG
+        StringBuilder itemsPath = new StringBuilder("$.order_stages[*][");
+        for(int x=1;x<=MAX_ITEMS_PER_ORDER;x++){
+            itemsPath.append(x>1 ? "," : "").append("'item").append(x).append("'");
+        }
+        itemsPath.append("]");
+        return new Schema().addField(new Schema.Field(FieldName.of("$.RegionID").as("region_id"),Schema.FieldType.TAG))
+                .addField(new Schema.Field(FieldName.of("$.order_stages[*].stage").as("order_stage"),Schema.FieldType.TAG))
+                .addSortableNumericField("$.order_stages[*].order_cost").as("order_cost")
+                .addField(new Schema.Field(FieldName.of("$.order_stages[*].orderID").as("order_id"), Schema.FieldType.TAG))
+                .addField(new Schema.Field(FieldName.of(itemsPath.toString()).as("items"), Schema.FieldType.TAG))
+                .addTextField("$.order_stages[*].contact_name", .75).as("order_contact"); //use with search 2.6.1 allows TEXT in multivalues
+    }
+
+    // creates the first index and the alias when there is no alias yet - an existing index is left alone
+    public void ensureIndex(){
+        String existingIndexName = currentIndexName();
+        if(existingIndexName!=null){
+            System.out.println("Search index alias "+INDEX_ALIAS_NAME+" already points to: "+existingIndexName);
+            return;
+        }
+        String indexName = createNextIndex();
+        jedis.ftAliasAdd(INDEX_ALIAS_NAME, indexName);
+        System.out.println("Successfully created search index: " + indexName + " and search index alias: " + INDEX_ALIAS_NAME);
+    }
+
+    // builds a new index version next to the live one and moves the alias over once it is fully indexed
+    public String reindex() throws InterruptedException {
+        String oldIndexName = currentIndexName();
+        String newIndexName = createNextIndex();
+        System.out.println("SearchIndexManager created "+newIndexName+" - waiting for it to index the existing documents");
+        waitForIndexing(newIndexName);
+        if(oldIndexName==null){
+            jedis.ftAliasAdd(INDEX_ALIAS_NAME, newIndexName);
+        }else{
+            jedis.ftAliasUpdate(INDEX_ALIAS_NAME, newIndexName);
+            jedis.ftDropIndex(oldIndexName); // without DD: the JSON documents stay
+            System.out.println("SearchIndexManager dropped the old index: "+oldIndexName);
+        }
+        System.out.println("SearchIndexManager: "+INDEX_ALIAS_NAME+" now points to "+newIndexName);
+        return newIndexName;
+    }
+
+    // the index the alias points to, or null when the alias does not exist
+    public String currentIndexName(){
+        try {
+            return String.valueOf(jedis.ftInfo(INDEX_ALIAS_NAME).get("index_name"));
+        }catch(JedisDataException jde){
+            return null;
+        }
+    }
+
+    String createNextIndex(){
+        IndexDefinition indexDefinition = new IndexDefinition(IndexDefinition.Type.JSON)
+                .setPrefixes(new String[]{JSON_KEY_PREFIX});
+        while(true){
+            // idx_rouws1 is the name the first index always had - so an older deployment simply continues at 2
+            String indexName = INDEX_NAME_BASE+jedis.incr(INDEX_VERSION_KEY);
+            try {
+                jedis.ftCreate(indexName, IndexOptions.defaultOptions().setDefinition(indexDefinition), buildSchema());
+                return indexName;
+            }catch(JedisDataException jde){
+                if(!String.valueOf(jde.getMessage()).toLowerCase().contains("already exists")){
+                    throw jde;
+                }
+                // left behind by an interrupted reindex or created before the version key existed - try the next version
+            }
+        }
+    }
+
+    void waitForIndexing(String indexName) throws InterruptedException {
+        long deadline = System.currentTimeMillis()+INDEXING_TIMEOUT_MILLIS;
+        while(true){
+            Map<String,Object> info = jedis.ftInfo(indexName);
+            if("0".equals(String.valueOf(info.get("indexing")))){
+                System.out.println("SearchIndexManager: "+indexName+" indexed "+info.get("num_docs")+" documents ("+
+                        info.get("hash_indexing_failures")+" failures)");
+                return;
+            }
+            if(System.currentTimeMillis()>deadline){
+                throw new IllegalStateException(indexName+" is still indexing after "+INDEXING_TIMEOUT_MILLIS+
+                        " millis - the alias still points to the old index");
+            }
+            System.out.println("SearchIndexManager: "+indexName+" percent_indexed = "+info.get("percent_indexed"));
+            Thread.sleep(POLL_INTERVAL_MILLIS);
+        }
+    }
+}
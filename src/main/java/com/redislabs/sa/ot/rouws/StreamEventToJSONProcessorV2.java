@@ -1,14 +1,22 @@
 package com.redislabs.sa.ot.rouws;
 
 import com.redislabs.sa.ot.streamutils.StreamEventMapProcessorV2;
-import org.json.JSONObject;
+import com.redislabs.sa.ot.util.EntryTracer;
+import com.redislabs.sa.ot.util.ShardedPubSubCommand;
 import redis.clients.jedis.JedisPooled;
-import redis.clients.jedis.json.Path2;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.json.JsonProtocol;
 import redis.clients.jedis.resps.StreamEntry;
+import redis.clients.jedis.util.SafeEncoder;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 public class StreamEventToJSONProcessorV2 implements StreamEventMapProcessorV2 {
     static AtomicLong counter = new AtomicLong();
@@ -17,7 +25,12 @@ public class StreamEventToJSONProcessorV2 implements StreamEventMapProcessorV2 {
     private boolean verbose = false;
     private String JSON_KEY_PREFIX="customer_order_history:";
     private int skipSize=1000;
-    private long printcounter = 0;
+    private final AtomicLong printcounter = new AtomicLong();
+    private boolean publishChangeNotices = false;
+    private PartitionedStreamLayout partitionedStreams = null;
+    static final byte[] ORDER_STAGES_PATH = SafeEncoder.encode("$.order_stages");
+    static final byte[] ROOT_PATH = SafeEncoder.encode("$");
+    static final byte[] NX = SafeEncoder.encode("NX");
 
     public StreamEventToJSONProcessorV2 setJSONKeyPrefix(String jsonKeyPrefix){
         this.JSON_KEY_PREFIX=jsonKeyPrefix;
@@ -38,6 +51,17 @@ public class StreamEventToJSONProcessorV2 implements StreamEventMapProcessorV2 {
         return this;
     }
 
+    // SPUBLISH an OrderChangeNotice on the routing slot's channel after every document change
+    public StreamEventToJSONProcessorV2 setPublishChangeNotices(boolean publishChangeNotices){
+        this.publishChangeNotices = publishChangeNotices;
+        return this;
+    }
+
+    public StreamEventToJSONProcessorV2 setPartitionedStreamLayout(PartitionedStreamLayout partitionedStreams){
+        this.partitionedStreams = partitionedStreams;
+        return this;
+    }
+
     public StreamEventToJSONProcessorV2 setSleepTime(long sleepTime){
         this.sleepTime = sleepTime;
         return this;
@@ -45,42 +69,111 @@ public class StreamEventToJSONProcessorV2 implements StreamEventMapProcessorV2 {
 
     @Override
     public void processStreamEntry(String streamName,StreamEntry payload) {
-        printMessageSparingly("StreamEventToJSONProcessor.processStreamEventMap..."+payload);
-
-        JSONObject orderStage = new JSONObject();
-        ArrayList<JSONObject> orderStages = new ArrayList<>();
-
-        printMessageSparingly(payload.toString());
-        Map<String, String> map = payload.getFields();
-        for( String f : map.keySet()){
-            printMessageSparingly("key\t"+f+"\tvalue\t"+map.get(f));
-            if(f.equalsIgnoreCase("order_cost")){
-                orderStage.put(f,Float.parseFloat(map.get(f)));
-            }else{
-                orderStage.put(f,map.get(f));
+        printMessageSparingly(() -> "StreamEventToJSONProcessor.processStreamEventMap..."+payload);
+
+        // The order stage JSON holds the values from the map
+        // maybe some food items and an order stage like 'new'
+        Map<String, String> map = OrderEventCodec.decode(payload.getFields()); // entries may be in either payload layout
+        String customerStreamName = customerStreamNameOf(streamName, map);
+        appendOrderEvents(streamName, customerStreamName, Collections.singletonList(map), Collections.singletonList(payload));
+        printMessageSparingly(() -> "Changed this JSON Object in redis: "+ "json:"+customerStreamName);
+    }
+
+    // the entries of each customer become one multi-value JSON.ARRAPPEND
+    // (one write and one re-index of the document instead of one per entry)
+    // a partition stream mixes customers - they are grouped here, keeping each customer's entries in stream order
+    @Override
+    public void processStreamEntries(String streamName, List<StreamEntry> payloads) {
+        if(payloads.size()==1){
+            processStreamEntry(streamName, payloads.get(0));
+            return;
+        }
+        printMessageSparingly(() -> "StreamEventToJSONProcessor.processStreamEntries... "+payloads.size()+" entries for "+streamName);
+        Map<String,List<Map<String,String>>> orderEventsByCustomer = new LinkedHashMap<>();
+        Map<String,List<StreamEntry>> payloadsByCustomer = new HashMap<>();
+        for(StreamEntry payload:payloads){
+            Map<String,String> orderEvent = OrderEventCodec.decode(payload.getFields());
+            String customerStreamName = customerStreamNameOf(streamName, orderEvent);
+            orderEventsByCustomer.computeIfAbsent(customerStreamName, k -> new ArrayList<>()).add(orderEvent);
+            payloadsByCustomer.computeIfAbsent(customerStreamName, k -> new ArrayList<>()).add(payload);
+        }
+        for(Map.Entry<String,List<Map<String,String>>> customerEvents:orderEventsByCustomer.entrySet()){
+            appendOrderEvents(streamName, customerEvents.getKey(), customerEvents.getValue(), payloadsByCustomer.get(customerEvents.getKey()));
+            printMessageSparingly(() -> "Changed this JSON Object in redis: "+ "json:"+customerEvents.getKey());
+        }
+    }
+
+    private String customerStreamNameOf(String streamName, Map<String,String> orderEvent){
+        return partitionedStreams==null ? streamName : partitionedStreams.customerStreamNameOf(streamName, orderEvent);
+    }
+
+    private void appendOrderEvents(String streamName, String customerStreamName, List<Map<String,String>> orderEvents, List<StreamEntry> payloads){
+        long startNanos = System.nanoTime();
+        byte[] jsonKeyName = SafeEncoder.encode(JSON_KEY_PREFIX+customerStreamName);
+        OrderStageJsonEncoder encoder = OrderStageJsonEncoder.get();
+        long arrayLength = 1;
+        try{ // the JSON object can be appended (the common case) - no need to check it exists first
+            arrayLength = arrayLengthOf(jedis.sendCommand(jsonKeyName, JsonProtocol.JsonCommand.ARRAPPEND, arrAppendArgs(jsonKeyName, encoder, orderEvents, 0)));
+        }catch(JedisDataException jde){ // no document yet - the first entry creates it (holding the RegionID) and the rest are appended
+            Object created = jedis.sendCommand(jsonKeyName, JsonProtocol.JsonCommand.SET, jsonKeyName, ROOT_PATH,
+                    encoder.encodeNewDocument(getRegionID(customerStreamName), orderEvents.get(0), PartitionedStreamLayout.CUSTOMER_ID_FIELD), NX);
+            int first = created==null ? 0 : 1; // created by another worker in the meantime: append all
+            if(first<orderEvents.size()){
+                arrayLength = arrayLengthOf(jedis.sendCommand(jsonKeyName, JsonProtocol.JsonCommand.ARRAPPEND,
+                        arrAppendArgs(jsonKeyName, encoder, orderEvents, first)));
             }
         }
-        // The orderStage JSON object holds the values from the map
-        // maybe some food items and an order stage like 'new'
-        orderStages.add(orderStage); // may only be a single map in a single event
-        Path2 path = new Path2("$.order_stages");
-        if(jedis.exists(JSON_KEY_PREFIX+streamName)){ // the JSON object can be appended
-            jedis.jsonArrAppend(JSON_KEY_PREFIX+streamName, path,orderStage);
-        }else{ // create a new JSON Object
-            JSONObject obj = new JSONObject();
-            String regionID = streamName.split("::")[1];//removing the "X:rouws::" prefix
-            obj.put("RegionID",regionID);
-            jedis.jsonSet(JSON_KEY_PREFIX+streamName,obj); // just the RegionID
-            jedis.jsonSet(JSON_KEY_PREFIX+streamName,path,orderStages); //Now Add the OrderStages
+        publishChangeNotice(customerStreamName, orderEvents.get(orderEvents.size()-1), arrayLength); // the latest stage is what listeners care about
+        if(EntryTracer.GLOBAL.isEnabled()){
+            long documentLength = arrayLength;
+            for(StreamEntry payload:payloads){
+                EntryTracer.GLOBAL.trace("json_write", streamName, payload.getID(), startNanos, () -> JSON_KEY_PREFIX+customerStreamName+" length "+documentLength);
+            }
+        }
+    }
+
+    private static byte[][] arrAppendArgs(byte[] jsonKeyName, OrderStageJsonEncoder encoder, List<Map<String,String>> orderEvents, int first){
+        byte[][] args = new byte[orderEvents.size()-first+2][];
+        args[0] = jsonKeyName;
+        args[1] = ORDER_STAGES_PATH;
+        for(int x=first;x<orderEvents.size();x++){
+            args[x-first+2] = encoder.encodeOrderStage(orderEvents.get(x), PartitionedStreamLayout.CUSTOMER_ID_FIELD);
+        }
+        return args;
+    }
+
+    // JSON.ARRAPPEND with a $ path replies with one new length per matching path
+    private static long arrayLengthOf(Object reply){
+        if(reply instanceof List && !((List<?>) reply).isEmpty() && ((List<?>) reply).get(0) instanceof Long){
+            return (Long) ((List<?>) reply).get(0);
+        }
+        return reply instanceof Long ? (Long) reply : -1;
+    }
+
+    private void publishChangeNotice(String streamName, Map<String,String> orderEvent, long arrayLength){
+        if(!publishChangeNotices){
+            return;
         }
-        printMessageSparingly("Changed this JSON Object in redis: "+ "json:"+streamName);
+        OrderChangeNotice notice = new OrderChangeNotice(streamName, orderEvent.get("orderID"), orderEvent.get("stage"), arrayLength);
+        byte[] channel = SafeEncoder.encode(OrderChangeNotice.channelFor(notice.getRegion()));
+        try{
+            jedis.sendCommand(channel, ShardedPubSubCommand.SPUBLISH, channel, SafeEncoder.encode(notice.encode()));
+        }catch(JedisDataException jde){ // a missed notice must not fail the (already written) event
+            printMessageSparingly(() -> "SPUBLISH failed: "+jde.getMessage());
+        }
+    }
+
+    static String getRegionID(String streamName){
+        return streamName.split("::")[1];//removing the "X:rouws::" prefix
     }
 
-    void printMessageSparingly(String message){
-        if((printcounter%skipSize==0)&&(verbose)) {
-            System.out.println("StreamEventToJSONProcessor.message printed 1 time for each "+skipSize+" events:\n"+message);
+    // the message is only built when it is printed - callers pass a lambda so a quiet run pays nothing for it
+    void printMessageSparingly(Supplier<String> message){
+        if(!verbose){
+            return;
+        }
+        if(printcounter.getAndIncrement()%skipSize==0) {
+            System.out.println("StreamEventToJSONProcessor.message printed 1 time for each "+skipSize+" events:\n"+message.get());
         }
-        printcounter++;
-        if(printcounter==(skipSize+1)){printcounter=1;}//in case it's a long running service
     }
 }
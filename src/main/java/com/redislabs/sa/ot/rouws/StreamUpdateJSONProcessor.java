@@ -1,14 +1,15 @@
 package com.redislabs.sa.ot.rouws;
 
 import com.redislabs.sa.ot.streamutils.StreamEventMapProcessorV2;
-import org.json.JSONObject;
 import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.json.JsonProtocol;
 import redis.clients.jedis.json.Path2;
 import redis.clients.jedis.resps.StreamEntry;
+import redis.clients.jedis.util.SafeEncoder;
 
-import java.util.ArrayList;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * This class is responsible for updating values stored in existing JSON documents
@@ -24,7 +25,8 @@ public class StreamUpdateJSONProcessor implements StreamEventMapProcessorV2 {
     private boolean verbose = false;
     private String JSON_KEY_PREFIX="customer_order_history:";
     private int skipSize=1000;
-    private long printcounter = 0;
+    private final AtomicLong printcounter = new AtomicLong();
+    private static final String[] CONTROL_FIELDS = {"jsonKeyName","pathToUse"};
 
     public StreamUpdateJSONProcessor setVerbose(boolean verbose){
         this.verbose=verbose;
@@ -47,21 +49,17 @@ public class StreamUpdateJSONProcessor implements StreamEventMapProcessorV2 {
 
     @Override
     public void processStreamEntry(String streamName,StreamEntry payload) {
-        printMessageSparingly("StreamUpdateJSONProcessor.processStreamEventMap..."+payload);
+        printMessageSparingly(() -> "StreamUpdateJSONProcessor.processStreamEventMap..."+payload);
         String operation = streamName;
         String jsonKeyName = null;
         Path2 pathToUse = null;
-        JSONObject orderStage = new JSONObject();
-        ArrayList<JSONObject> orderStages = new ArrayList<>();
 
-        printMessageSparingly(payload.toString());
+        printMessageSparingly(() -> payload.toString());
 
-        Map<String, String> map = payload.getFields();
+        Map<String, String> map = OrderEventCodec.decode(payload.getFields());
         for( String f : map.keySet()){
-            printMessageSparingly("key\t"+f+"\tvalue\t"+map.get(f));
-            if(f.equalsIgnoreCase("order_cost")){
-                orderStage.put(f,Float.parseFloat(map.get(f)));
-            }else if (f.equalsIgnoreCase("jsonKeyName")){
+            printMessageSparingly(() -> "key\t"+f+"\tvalue\t"+map.get(f));
+            if (f.equalsIgnoreCase("jsonKeyName")){
                 //we do not include the keyName in the data to be written
                 //we will use it to identify the target document instead
                 jsonKeyName=map.get(f);
@@ -69,36 +67,36 @@ public class StreamUpdateJSONProcessor implements StreamEventMapProcessorV2 {
                 //we do not include the path in the data to be written
                 //we will use it to identify the place in the document that needs a change
                 pathToUse=Path2.of(map.get(f));
-            }else{
-                orderStage.put(f,map.get(f));
             }
         }
-        // The orderStage JSON object holds the values from the map
+        // The order stage JSON holds the remaining values from the map
         // maybe some food items and an order stage like 'new'
-        orderStages.add(orderStage); // may only be a single map in a single event
-        Path2 path = new Path2("$.order_stages");
+        OrderStageJsonEncoder encoder = OrderStageJsonEncoder.get();
         if(jedis.exists(jsonKeyName)){ // the JSON object can be updated
             if(operation.equalsIgnoreCase("replace")){
-                jedis.jsonSet(jsonKeyName,pathToUse,orderStage);
+                byte[] key = SafeEncoder.encode(jsonKeyName);
+                jedis.sendCommand(key, JsonProtocol.JsonCommand.SET, key, SafeEncoder.encode(pathToUse.toString()),
+                        encoder.encodeOrderStage(map, CONTROL_FIELDS));
             }else if(operation.equalsIgnoreCase("delete")){
                 jedis.jsonDel(jsonKeyName,pathToUse);
             }
             //jedis.jsonArrAppend(JSON_KEY_PREFIX+streamName, path,orderStage);
         }else{ // create a new JSON Object (someone must have deleted the old one in between
-            JSONObject obj = new JSONObject();
+            byte[] key = SafeEncoder.encode(jsonKeyName);
             String regionID = jsonKeyName.split("::")[1];//removing the "X:rouws::" prefix
-            obj.put("RegionID",regionID);
-            jedis.jsonSet(jsonKeyName,obj); // just the RegionID
-            jedis.jsonSet(jsonKeyName,path,orderStages); //Now Add the OrderStages
+            jedis.sendCommand(key, JsonProtocol.JsonCommand.SET, key, StreamEventToJSONProcessorV2.ROOT_PATH,
+                    encoder.encodeNewDocument(regionID, map, CONTROL_FIELDS)); // the RegionID and the OrderStages
         }
-        printMessageSparingly("performed operation"+operation+" on this JSON Object in redis: "+jsonKeyName);
+        String changedKeyName = jsonKeyName;
+        printMessageSparingly(() -> "performed operation"+operation+" on this JSON Object in redis: "+changedKeyName);
     }
 
-    void printMessageSparingly(String message){
-        if((printcounter%skipSize==0)&&(verbose)) {
-            System.out.println("StreamUpdateJSONProcessor.message printed 1 time for each "+skipSize+" events:\n"+message);
+    void printMessageSparingly(Supplier<String> message){
+        if(!verbose){
+            return;
+        }
+        if(printcounter.getAndIncrement()%skipSize==0) {
+            System.out.println("StreamUpdateJSONProcessor.message printed 1 time for each "+skipSize+" events:\n"+message.get());
         }
-        printcounter++;
-        if(printcounter==(skipSize+1)){printcounter=1;}//in case it's a long running service
     }
 }
@@ -0,0 +1,13 @@
+package com.redislabs.sa.ot.streamutils;
+
+import redis.clients.jedis.resps.StreamEntry;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking counterpart of StreamEventMapProcessorV2
+ * The returned stage completes once the entry has been fully processed - only then is it acked
+ */
+public interface AsyncStreamEventMapProcessor {
+    public CompletionStage<Void> processStreamEntry(String streamName, StreamEntry payload);
+}
@@ -0,0 +1,278 @@
+package com.redislabs.sa.ot.streamutils;
+
+import com.redislabs.sa.ot.util.RoutingValues;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.resps.StreamGroupInfo;
+
+import java.util.*;
+
+/**
+ * Sweeps XINFO GROUPS across every registered stream and reports the consumer backlog
+ * For each stream and group it reads:
+ *  - lag: entries not yet delivered to the group (reported by redis 7 and later)
+ *  - pending: entries delivered but not yet acknowledged
+ *  - last-delivered-id
+ * The results are summed per group and per routing slot (the {slot} suffix of the stream name)
+ * and the top-N streams with the largest backlog are kept as laggards
+ *
+ * The cost of a sweep is bounded so it can run all the time against 100k+ streams:
+ *  - XINFO GROUPS is sent in pipelined batches of sweepBatchSize streams on one connection
+ *  - batches are paced so no more than maxStreamsPerSecond streams are inspected per second
+ * After every sweep the totals are printed (if verbose) and optionally written to a metrics hash with HSET
+ */
+public class ConsumerLagMonitor {
+    private JedisPooled jedisPooled = null;
+    private List<String> streamNames = new ArrayList<>();
+    private int sweepBatchSize = 500;
+    private int maxStreamsPerSecond = 20000;
+    private int topN = 10;
+    private long sweepIntervalMillis = 5000;
+    private String metricsKeyName = null;
+    private boolean verbose = false;
+    private volatile boolean running = false;
+    private volatile LagSweep latestSweep = null;
+
+    public ConsumerLagMonitor setPooledJedis(JedisPooled jedisPooled){
+        this.jedisPooled=jedisPooled;
+        return this;
+    }
+
+    public ConsumerLagMonitor setStreamNames(List<String> streamNames){
+        this.streamNames=new ArrayList<>(streamNames);
+        return this;
+    }
+
+    public ConsumerLagMonitor setSweepBatchSize(int sweepBatchSize){
+        this.sweepBatchSize=sweepBatchSize;
+        return this;
+    }
+
+    public ConsumerLagMonitor setMaxStreamsPerSecond(int maxStreamsPerSecond){
+        this.maxStreamsPerSecond=maxStreamsPerSecond;
+        return this;
+    }
+
+    public ConsumerLagMonitor setTopN(int topN){
+        this.topN=topN;
+        return this;
+    }
+
+    public ConsumerLagMonitor setSweepIntervalMillis(long sweepIntervalMillis){
+        this.sweepIntervalMillis=sweepIntervalMillis;
+        return this;
+    }
+
+    // when set, the totals of every sweep are written to this hash (one field per group and per slot)
+    public ConsumerLagMonitor setMetricsKeyName(String metricsKeyName){
+        this.metricsKeyName=metricsKeyName;
+        return this;
+    }
+
+    public ConsumerLagMonitor setVerbose(boolean verbose){
+        this.verbose=verbose;
+        return this;
+    }
+
+    public LagSweep getLatestSweep(){
+        return latestSweep;
+    }
+
+    public ConsumerLagMonitor start(){
+        running = true;
+        Thread sweeper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(running){
+                    try{
+                        long sweepStart = System.currentTimeMillis();
+                        latestSweep = sweep();
+                        if(verbose){
+                            System.out.println(latestSweep);
+                        }
+                        if(metricsKeyName!=null){
+                            exportMetrics(latestSweep);
+                        }
+                        Thread.sleep(Math.max(0, sweepIntervalMillis-(System.currentTimeMillis()-sweepStart)));
+                    }catch(InterruptedException ie){
+                        return;
+                    }catch(RuntimeException re){
+                        System.out.println("ConsumerLagMonitor sweep failed: "+re.getMessage());
+                        try { Thread.sleep(sweepIntervalMillis); } catch (InterruptedException ie) { return; }
+                    }
+                }
+            }
+        }, "consumerLagMonitor");
+        sweeper.setDaemon(true);
+        sweeper.start();
+        return this;
+    }
+
+    public void stop(){
+        running = false;
+    }
+
+    public LagSweep sweep() throws InterruptedException {
+        LagSweep result = new LagSweep(topN);
+        long minimumBatchMillis = (1000L*sweepBatchSize)/Math.max(1, maxStreamsPerSecond);
+        for(int from=0;from<streamNames.size();from+=sweepBatchSize){
+            long batchStart = System.currentTimeMillis();
+            List<String> batch = streamNames.subList(from, Math.min(from+sweepBatchSize, streamNames.size()));
+            List<Response<List<StreamGroupInfo>>> responses = new ArrayList<>(batch.size());
+            try(Connection connection = jedisPooled.getPool().getResource()){
+                Pipeline pipeline = new Pipeline(connection);
+                for(String streamName:batch){
+                    responses.add(pipeline.xinfoGroups(streamName));
+                }
+                pipeline.sync();
+            }
+            for(int x=0;x<batch.size();x++){
+                List<StreamGroupInfo> groups;
+                try{
+                    groups = responses.get(x).get();
+                }catch(RuntimeException re){ // the stream does not exist (yet)
+                    result.missingStreams++;
+                    continue;
+                }
+                for(StreamGroupInfo groupInfo:groups){
+                    result.add(batch.get(x), groupInfo);
+                }
+            }
+            long sleepMillis = minimumBatchMillis-(System.currentTimeMillis()-batchStart);
+            if(sleepMillis>0){
+                Thread.sleep(sleepMillis); // keep the sweep under maxStreamsPerSecond
+            }
+        }
+        result.sweepMillis = System.currentTimeMillis()-result.startedAt;
+        return result;
+    }
+
+    void exportMetrics(LagSweep sweep){
+        Map<String,String> fields = new HashMap<>();
+        fields.put("streams", ""+sweep.streamsSwept);
+        fields.put("missing_streams", ""+sweep.missingStreams);
+        fields.put("sweep_millis", ""+sweep.sweepMillis);
+        fields.put("swept_at", ""+sweep.startedAt);
+        for(Map.Entry<String,long[]> group:sweep.totalsByGroup.entrySet()){
+            fields.put("group:"+group.getKey()+":lag", ""+group.getValue()[0]);
+            fields.put("group:"+group.getKey()+":pending", ""+group.getValue()[1]);
+        }
+        for(Map.Entry<String,long[]> slot:sweep.totalsBySlot.entrySet()){
+            fields.put("slot:"+slot.getKey()+":lag", ""+slot.getValue()[0]);
+            fields.put("slot:"+slot.getKey()+":pending", ""+slot.getValue()[1]);
+        }
+        jedisPooled.hset(metricsKeyName, fields);
+    }
+
+    /**
+     * The result of one sweep - totals are {lag, pending} pairs
+     */
+    public static class LagSweep {
+        final long startedAt = System.currentTimeMillis();
+        long sweepMillis = 0;
+        long streamsSwept = 0;
+        long missingStreams = 0;
+        long streamsWithUnknownLag = 0;
+        final Map<String,long[]> totalsByGroup = new TreeMap<>();
+        final Map<String,long[]> totalsBySlot = new TreeMap<>();
+        private final int topN;
+        private final PriorityQueue<Laggard> laggards = new PriorityQueue<>(Comparator.comparingLong(l -> l.backlog));
+        private String lastStreamName = null;
+
+        LagSweep(int topN){
+            this.topN = topN;
+        }
+
+        void add(String streamName, StreamGroupInfo groupInfo){
+            if(!streamName.equals(lastStreamName)){
+                streamsSwept++;
+                lastStreamName = streamName;
+            }
+            Object lagValue = groupInfo.getGroupInfo().get("lag"); // only reported by redis 7 and later
+            long lag = 0;
+            if(lagValue instanceof Long){
+                lag = (Long) lagValue;
+            }else{
+                streamsWithUnknownLag++;
+            }
+            long pending = groupInfo.getPending();
+            addTo(totalsByGroup, groupInfo.getName(), lag, pending);
+            addTo(totalsBySlot, RoutingValues.routingValueOf(streamName), lag, pending);
+            long backlog = lag+pending;
+            if(backlog>0 && (laggards.size()<topN || backlog>laggards.peek().backlog)){
+                laggards.add(new Laggard(streamName, groupInfo.getName(), lag, pending, String.valueOf(groupInfo.getLastDeliveredId())));
+                if(laggards.size()>topN){
+                    laggards.poll();
+                }
+            }
+        }
+
+        private static void addTo(Map<String,long[]> totals, String name, long lag, long pending){
+            long[] pair = totals.computeIfAbsent(name, k -> new long[2]);
+            pair[0] += lag;
+            pair[1] += pending;
+        }
+
+        public long getTotalBacklog(){
+            long total = 0;
+            for(long[] pair:totalsByGroup.values()){
+                total += pair[0]+pair[1];
+            }
+            return total;
+        }
+
+        public Map<String,long[]> getTotalsByGroup(){
+            return totalsByGroup;
+        }
+
+        public Map<String,long[]> getTotalsBySlot(){
+            return totalsBySlot;
+        }
+
+        // the largest backlogs first
+        public List<Laggard> getTopLaggards(){
+            List<Laggard> sorted = new ArrayList<>(laggards);
+            sorted.sort(Comparator.comparingLong((Laggard l) -> l.backlog).reversed());
+            return sorted;
+        }
+
+        @Override
+        public String toString(){
+            StringBuilder sb = new StringBuilder("ConsumerLagMonitor swept "+streamsSwept+" streams in "+sweepMillis+" millis (missing: "+
+                    missingStreams+", lag unknown: "+streamsWithUnknownLag+") total backlog: "+getTotalBacklog());
+            for(Map.Entry<String,long[]> group:totalsByGroup.entrySet()){
+                sb.append("\n\tgroup ").append(group.getKey()).append(" lag: ").append(group.getValue()[0])
+                        .append(" pending: ").append(group.getValue()[1]);
+            }
+            for(Laggard laggard:getTopLaggards()){
+                sb.append("\n\tlaggard ").append(laggard);
+            }
+            return sb.toString();
+        }
+    }
+
+    public static class Laggard {
+        final String streamName;
+        final String groupName;
+        final long lag;
+        final long pending;
+        final long backlog;
+        final String lastDeliveredID;
+
+        Laggard(String streamName, String groupName, long lag, long pending, String lastDeliveredID){
+            this.streamName = streamName;
+            this.groupName = groupName;
+            this.lag = lag;
+            this.pending = pending;
+            this.backlog = lag+pending;
+            this.lastDeliveredID = lastDeliveredID;
+        }
+
+        @Override
+        public String toString(){
+            return streamName+" ("+groupName+") lag: "+lag+" pending: "+pending+" last-delivered-id: "+lastDeliveredID;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.redislabs.sa.ot.streamutils;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class spreads the work of processing stream entries across a fixed number of lanes
+ * Each lane is a single-threaded executor, so all work submitted to one lane runs in submission order
+ * The stream key is hashed to pick a lane - this means every entry for a customer (stream) lands in the same lane
+ * and is processed in order, while different customers are processed in parallel across the other lanes
+ *
+ * Each lane queue is bounded - when a lane is full the submitting (reading) thread waits
+ * This keeps a slow lane from buffering an unbounded number of entries in memory
+ * Queue depth is sampled on every dispatch so the worst backlog per lane can be reported
+ * Work that throws is logged and counted - the lane thread carries on with the next piece of work
+ */
+public class KeyAffinityLaneDispatcher {
+    private int laneCount = 4;
+    private int laneQueueCapacity = 1000;
+    private ThreadPoolExecutor[] lanes = null;
+    private AtomicInteger[] maxObservedDepths = null;
+    private AtomicLong dispatchedCounter = new AtomicLong();
+    private AtomicLong failedCounter = new AtomicLong();
+
+    public KeyAffinityLaneDispatcher setLaneCount(int laneCount){
+        this.laneCount = Math.max(1,laneCount);
+        return this;
+    }
+
+    public KeyAffinityLaneDispatcher setLaneQueueCapacity(int laneQueueCapacity){
+        this.laneQueueCapacity = Math.max(1,laneQueueCapacity);
+        return this;
+    }
+
+    public int getLaneCount(){
+        return laneCount;
+    }
+
+    public synchronized KeyAffinityLaneDispatcher start(){
+        if(lanes!=null){
+            return this;
+        }
+        lanes = new ThreadPoolExecutor[laneCount];
+        maxObservedDepths = new AtomicInteger[laneCount];
+        for(int lane=0;lane<laneCount;lane++){
+            final String threadName = "lane-"+lane;
+            lanes[lane] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(laneQueueCapacity),
+                    runnable -> new Thread(runnable, threadName),
+                    (runnable, executor) -> {
+                        // a full lane pushes back on the reader instead of dropping or re-ordering the entry
+                        // - unless the lane is shut down, its queue is then never drained again:
+                        try {
+                            while(!executor.getQueue().offer(runnable, 100, TimeUnit.MILLISECONDS)){
+                                if(executor.isShutdown()){
+                                    throw new RejectedExecutionException("Lane "+threadName+" is shut down");
+                                }
+                            }
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException("Interrupted while waiting for lane capacity", ie);
+                        }
+                    });
+            maxObservedDepths[lane] = new AtomicInteger();
+        }
+        System.out.println("KeyAffinityLaneDispatcher started with "+laneCount+" lanes (queue capacity "+laneQueueCapacity+" per lane)");
+        return this;
+    }
+
+    // the same streamName always maps to the same lane:
+    public int laneFor(String streamName){
+        return Math.floorMod(streamName.hashCode(), laneCount);
+    }
+
+    // work for a stream is executed in the order it is dispatched
+    // callers must dispatch from a single thread per stream for that order to match the stream order
+    public void dispatch(String streamName, Runnable work){
+        if(lanes==null){
+            start();
+        }
+        int lane = laneFor(streamName);
+        ThreadPoolExecutor laneExecutor = lanes[lane];
+        if(laneExecutor.isShutdown()){
+            throw new RejectedExecutionException("Lane "+lane+" is shut down");
+        }
+        laneExecutor.execute(() -> {
+            try{
+                work.run();
+            }catch(RuntimeException re){
+                failedCounter.incrementAndGet();
+                System.out.println("KeyAffinityLaneDispatcher lane "+lane+" work for "+streamName+" failed: "+re);
+            }
+        });
+        int depth = laneExecutor.getQueue().size();
+        AtomicInteger max = maxObservedDepths[lane];
+        int previous = max.get();
+        while(depth>previous && !max.compareAndSet(previous,depth)){
+            previous = max.get();
+        }
+        dispatchedCounter.incrementAndGet();
+    }
+
+    public int[] getLaneQueueDepths(){
+        int[] depths = new int[laneCount];
+        if(lanes==null){
+            return depths;
+        }
+        for(int lane=0;lane<laneCount;lane++){
+            depths[lane] = lanes[lane].getQueue().size();
+        }
+        return depths;
+    }
+
+    public int[] getMaxObservedLaneQueueDepths(){
+        int[] depths = new int[laneCount];
+        if(maxObservedDepths==null){
+            return depths;
+        }
+        for(int lane=0;lane<laneCount;lane++){
+            depths[lane] = maxObservedDepths[lane].get();
+        }
+        return depths;
+    }
+
+    public long getDispatchedCount(){
+        return dispatchedCounter.get();
+    }
+
+    public long getFailedCount(){
+        return failedCounter.get();
+    }
+
+    public String describeLaneQueueDepths(){
+        int[] current = getLaneQueueDepths();
+        int[] max = getMaxObservedLaneQueueDepths();
+        StringBuilder sb = new StringBuilder("KeyAffinityLaneDispatcher dispatched "+getDispatchedCount()+" entries ("+getFailedCount()+" failed). Lane queue depth (current/max):");
+        for(int lane=0;lane<laneCount;lane++){
+            sb.append(" [").append(lane).append("] ").append(current[lane]).append('/').append(max[lane]);
+        }
+        return sb.toString();
+    }
+
+    public void shutdown(){
+        if(lanes==null){
+            return;
+        }
+        for(ThreadPoolExecutor lane:lanes){
+            lane.shutdown();
+        }
+    }
+}
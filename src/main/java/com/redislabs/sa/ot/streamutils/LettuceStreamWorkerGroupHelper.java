@@ -0,0 +1,158 @@
+package com.redislabs.sa.ot.streamutils;
+
+import com.redislabs.sa.ot.util.LettuceConnectionHelper;
+import io.lettuce.core.Consumer;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XGroupCreateArgs;
+import io.lettuce.core.XReadArgs;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.resps.StreamEntry;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking counterpart of RedisStreamWorkerGroupHelperV2
+ * Each named consumer is a logical consumer: it is a chain of callbacks driven by the shared scheduler
+ * of the LettuceConnectionHelper - not a thread holding a pooled connection
+ * Many logical consumers therefore share the few multiplexed connections of the helper
+ *
+ * XREADGROUP is issued without BLOCK (a blocked command would stall the shared connection)
+ * When a read returns nothing the consumer is re-scheduled after sleepTime, otherwise it reads again immediately
+ * Entries from the same stream are processed one after the other, entries from different streams concurrently
+ */
+public class LettuceStreamWorkerGroupHelper {
+    private LettuceConnectionHelper connectionHelper = null;
+    private ArrayList<String> streamNamesList = null;
+    private String consumerGroupName;
+    private long sleepTime = 50l;//milliseconds
+    private int batchSize = 10;
+    private final AtomicLong printcounter = new AtomicLong();
+    private int skipSize = 1000;
+    private boolean verbose = false;
+
+    public LettuceStreamWorkerGroupHelper setStreamNamesArrayList(ArrayList<String> streamNamesList){
+        this.streamNamesList = streamNamesList;
+        System.out.println("Assigned this instance of LettuceStreamWorkerGroupHelper "+streamNamesList.size()+" streamNames...");
+        return this;
+    }
+
+    public LettuceStreamWorkerGroupHelper setConnectionHelper(LettuceConnectionHelper connectionHelper){
+        this.connectionHelper = connectionHelper;
+        return this;
+    }
+
+    public LettuceStreamWorkerGroupHelper setSleepTime(long sleepTime){
+        this.sleepTime = sleepTime;
+        return this;
+    }
+
+    public LettuceStreamWorkerGroupHelper setBatchSize(int batchSize){
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public LettuceStreamWorkerGroupHelper setVerbose(boolean verbose){
+        this.verbose = verbose;
+        return this;
+    }
+
+    public LettuceStreamWorkerGroupHelper setPrintoutSkipSize(int skipSize){
+        this.skipSize = skipSize;
+        return this;
+    }
+
+    public void createConsumerGroup(String consumerGroupName) {
+        this.consumerGroupName = consumerGroupName;
+        RedisAsyncCommands<String,String> async = connectionHelper.getAsyncCommands();
+        List<CompletableFuture<String>> creations = new ArrayList<>();
+        for(String streamName:streamNamesList) {
+            //all streams have the same groupname allowing multiple streams to be read in a single XREADGroup later on
+            creations.add(async.xgroupCreate(XReadArgs.StreamOffset.latest(streamName), consumerGroupName,
+                    XGroupCreateArgs.Builder.mkstream(true)).toCompletableFuture()
+                    .exceptionally(t -> {
+                        if (t.getMessage() != null && t.getMessage().contains("BUSYGROUP")) {
+                            printMessageSparingly(() -> "ConsumerGroup " + consumerGroupName + " already exists -- continuing");
+                        } else {
+                            t.printStackTrace();
+                        }
+                        return null;
+                    }));
+        }
+        CompletableFuture.allOf(creations.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    // This Method can be invoked many times each time with a unique consumerName
+    // no thread is started - the consumer runs as callbacks on the shared scheduler and connections
+    public void namedGroupConsumerStartListeningToAllStreams(String consumerName, AsyncStreamEventMapProcessor processor) {
+        printMessageSparingly(() -> "LettuceStreamWorkerGroupHelper.namedGroupConsumerStartListeningToAllStreams(--> " + consumerName + "  <--): Actively Listening to "+streamNamesList.size()+" Streams");
+        XReadArgs.StreamOffset<String>[] offsets = buildOffsets();
+        RedisAsyncCommands<String,String> async = connectionHelper.getAsyncCommands();
+        connectionHelper.getScheduler().execute(() -> readNextBatch(async, consumerName, offsets, processor));
+    }
+
+    @SuppressWarnings("unchecked")
+    private XReadArgs.StreamOffset<String>[] buildOffsets(){
+        XReadArgs.StreamOffset<String>[] offsets = (XReadArgs.StreamOffset<String>[]) new XReadArgs.StreamOffset<?>[streamNamesList.size()];
+        for(int x=0;x<streamNamesList.size();x++){
+            offsets[x] = XReadArgs.StreamOffset.lastConsumed(streamNamesList.get(x));
+        }
+        return offsets;
+    }
+
+    private void readNextBatch(RedisAsyncCommands<String,String> async, String consumerName,
+                               XReadArgs.StreamOffset<String>[] offsets, AsyncStreamEventMapProcessor processor){
+        async.xreadgroup(Consumer.from(consumerGroupName, consumerName), XReadArgs.Builder.count(batchSize), offsets)
+                .toCompletableFuture()
+                .thenCompose(messages -> processBatch(async, consumerName, messages, processor)
+                        .thenApply(ignored -> messages.size()))
+                .whenComplete((count, t) -> {
+                    long delay = sleepTime;
+                    if (t != null) {
+                        System.out.println("LettuceStreamWorkerGroupHelper consumer " + consumerName + " failed a read cycle: " + t.getMessage());
+                    } else if (count > 0) {
+                        delay = 0; // there may be more waiting - read again right away
+                    } else {
+                        printMessageSparingly(() -> "No new messages on the streams at this time");
+                    }
+                    connectionHelper.getScheduler().schedule(() -> readNextBatch(async, consumerName, offsets, processor),
+                            delay, TimeUnit.MILLISECONDS);
+                });
+    }
+
+    private CompletableFuture<Void> processBatch(RedisAsyncCommands<String,String> async, String consumerName,
+                                                 List<StreamMessage<String,String>> messages, AsyncStreamEventMapProcessor processor){
+        //chain the entries of each stream so a customer's stages are applied in order:
+        Map<String, CompletionStage<Void>> chainPerStream = new HashMap<>();
+        for(StreamMessage<String,String> message:messages){
+            String streamName = message.getStream();
+            StreamEntry streamEntry = new StreamEntry(new StreamEntryID(message.getId()), message.getBody());
+            printMessageSparingly(() -> "Consumer " + consumerName + " of ConsumerGroup " + consumerGroupName + " has received... " + streamName + " " + streamEntry);
+            CompletionStage<Void> previous = chainPerStream.getOrDefault(streamName, CompletableFuture.completedFuture(null));
+            chainPerStream.put(streamName, previous
+                    .thenCompose(ignored -> processor.processStreamEntry(streamName, streamEntry))
+                    .thenCompose(ignored -> async.xack(streamName, consumerGroupName, message.getId()))
+                    .thenApply(ignored -> null));
+        }
+        CompletableFuture<?>[] chains = new CompletableFuture<?>[chainPerStream.size()];
+        int x = 0;
+        for(CompletionStage<Void> chain:chainPerStream.values()){
+            chains[x++] = chain.toCompletableFuture();
+        }
+        return CompletableFuture.allOf(chains);
+    }
+
+    void printMessageSparingly(Supplier<String> message){
+        if(!verbose){
+            return;
+        }
+        if(printcounter.getAndIncrement()%skipSize==0) {
+            System.out.println("This message printed 1 time for each "+skipSize+" events:\n"+message.get());
+        }
+    }
+}
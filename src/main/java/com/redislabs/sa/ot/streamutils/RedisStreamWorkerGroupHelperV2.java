@@ -1,12 +1,29 @@
 package com.redislabs.sa.ot.streamutils;
 
+import com.redislabs.sa.ot.util.EntryTracer;
+import com.redislabs.sa.ot.util.JitteredBackoff;
+import com.redislabs.sa.ot.util.ReconnectMetrics;
+import com.redislabs.sa.ot.util.RedisCircuitBreaker;
+import com.redislabs.sa.ot.util.RoutingValues;
+import redis.clients.jedis.Connection;
 import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.params.XAddParams;
+import redis.clients.jedis.params.XAutoClaimParams;
+import redis.clients.jedis.params.XPendingParams;
 import redis.clients.jedis.params.XReadGroupParams;
 import redis.clients.jedis.resps.StreamEntry;
+import redis.clients.jedis.resps.StreamPendingEntry;
+import redis.clients.jedis.resps.StreamPendingSummary;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 public class RedisStreamWorkerGroupHelperV2 {
     private JedisPooled jedisPooled = null;
@@ -15,9 +32,25 @@ public class RedisStreamWorkerGroupHelperV2 {
     private int oneDay = 60 * 60 * 24 * 1000;
     private int fiveSeconds = 5000;
     private int oneMinute = 60000;
-    private long printcounter = 0;
+    private final AtomicLong printcounter = new AtomicLong();
     private int skipSize = 1000;
     private boolean verbose = false;
+    private KeyAffinityLaneDispatcher laneDispatcher = null;
+    private RedisCircuitBreaker circuitBreaker = new RedisCircuitBreaker();
+    private int batchSize = 10;
+    private volatile boolean running = true;
+    private StreamDoorbell doorbell = null;
+    private long doorbellSweepMillis = 30000;
+    private int maxDirtyStreamsPerRead = 100;
+    private final List<Thread> consumerThreads = Collections.synchronizedList(new ArrayList<>());
+    private int maxDeliveries = 5;
+    private long retryMinIdleMillis = 60000;
+    private String deadLetterStreamBase = "X:deadletter";
+    private long deadLetterMaxLength = 100000;
+    private final AtomicLong deadLettered = new AtomicLong();
+    private final AtomicLong lastRetrySweepTime = new AtomicLong(System.currentTimeMillis()); // shared by the consumers of this helper
+    private int retrySweepBatchSize = 500;
+    private final Map<String,Integer> laneWorkInFlight = new ConcurrentHashMap<>(); // streamName -> batches queued or running on its lane
 
     // Use this constructor for each consumer Group
     // In the case where you want multiple groups - create multiple instances of this class
@@ -44,6 +77,136 @@ public class RedisStreamWorkerGroupHelperV2 {
         return this;
     }
 
+    // how many entries a consumer asks for in each XREADGROUP
+    public RedisStreamWorkerGroupHelperV2 setBatchSize(int batchSize){
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    // when set, consumers read only the streams the writers rang the doorbell for (instead of every stream on each read)
+    // every doorbellSweepMillis they still read all streams once - a safety net for a writer that died between XADD and ring
+    public RedisStreamWorkerGroupHelperV2 setDoorbell(StreamDoorbell doorbell, long doorbellSweepMillis){
+        this.doorbell = doorbell;
+        this.doorbellSweepMillis = doorbellSweepMillis;
+        return this;
+    }
+
+    public RedisStreamWorkerGroupHelperV2 setMaxDirtyStreamsPerRead(int maxDirtyStreamsPerRead){
+        this.maxDirtyStreamsPerRead = maxDirtyStreamsPerRead;
+        return this;
+    }
+
+    // an entry that fails processing stays pending and is retried (claimed again) once it has been idle retryMinIdleMillis
+    // once it has been delivered maxDeliveries times it is moved to the dead-letter stream (deadLetterStreamBase{slot}) and acked
+    public RedisStreamWorkerGroupHelperV2 setFailurePolicy(int maxDeliveries, long retryMinIdleMillis, String deadLetterStreamBase){
+        this.maxDeliveries = maxDeliveries;
+        this.retryMinIdleMillis = retryMinIdleMillis;
+        this.deadLetterStreamBase = deadLetterStreamBase;
+        return this;
+    }
+
+    public long getDeadLetteredCount(){
+        return deadLettered.get();
+    }
+
+    // consumers finish their current read and then exit their loop
+    public void stopListening(){
+        this.running = false;
+    }
+
+    // waits for every consumer started by this helper to exit after stopListening() - returns false on timeout
+    public boolean awaitStopped(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis()+timeoutMillis;
+        for(Thread consumerThread:new ArrayList<>(consumerThreads)){
+            consumerThread.join(Math.max(1, deadline-System.currentTimeMillis()));
+            if(consumerThread.isAlive()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // takes over the entries other consumers of the group received but never acked (minIdleMillis 0 takes all of them)
+    // and processes + acks them as consumerName - used when the streams move here from another consumer
+    public long claimPendingEntries(String consumerName, long minIdleMillis, StreamEventMapProcessorV2 streamEventMapProcessorV2){
+        return claimPendingEntries(streamNamesList, consumerName, minIdleMillis, streamEventMapProcessorV2);
+    }
+
+    // one sweep per helper (not per consumer): a pipeline of XPENDING summaries finds the streams that have pending entries
+    // and only those are swept with XAUTOCLAIM - so an idle stream costs a pipelined command per retryMinIdleMillis
+    // streams with work on their lane are left out: their entries are pending while they wait in the lane queue,
+    // claiming them would process them twice and out of order
+    long retryPendingEntries(String consumerName, StreamEventMapProcessorV2 streamEventMapProcessorV2){
+        List<String> streamsToSweep = new ArrayList<>();
+        for(String streamName:streamNamesList){
+            if(!laneWorkInFlight.containsKey(streamName)){
+                streamsToSweep.add(streamName);
+            }
+        }
+        List<String> streamsWithPending = new ArrayList<>();
+        for(int from=0;from<streamsToSweep.size();from+=retrySweepBatchSize){
+            List<String> batch = streamsToSweep.subList(from, Math.min(from+retrySweepBatchSize, streamsToSweep.size()));
+            Map<String,Response<StreamPendingSummary>> summaries = new LinkedHashMap<>();
+            try(Connection connection = jedisPooled.getPool().getResource()){
+                Pipeline pipeline = new Pipeline(connection);
+                for(String streamName:batch){
+                    summaries.put(streamName, pipeline.xpending(streamName, consumerGroupName));
+                }
+                pipeline.sync();
+            }
+            for(Map.Entry<String,Response<StreamPendingSummary>> summary:summaries.entrySet()){
+                try{
+                    if(summary.getValue().get().getTotal()>0){
+                        streamsWithPending.add(summary.getKey());
+                    }
+                }catch(JedisDataException jde){ // the stream or its group does not exist (yet)
+                }
+            }
+        }
+        return streamsWithPending.isEmpty() ? 0 : claimPendingEntries(streamsWithPending, consumerName, retryMinIdleMillis, streamEventMapProcessorV2);
+    }
+
+    private long claimPendingEntries(List<String> streamNames, String consumerName, long minIdleMillis, StreamEventMapProcessorV2 streamEventMapProcessorV2){
+        long claimed = 0;
+        for(String streamName:streamNames){
+            StreamEntryID cursor = new StreamEntryID(0, 0);
+            do{
+                Map.Entry<StreamEntryID, List<StreamEntry>> claimResult;
+                try{
+                    claimResult = jedisPooled.xautoclaim(streamName, consumerGroupName, consumerName, minIdleMillis, cursor,
+                            XAutoClaimParams.xAutoClaimParams().count(batchSize));
+                }catch(JedisDataException jde){ // the stream or its group does not exist (yet)
+                    break;
+                }
+                List<StreamEntry> entries = new ArrayList<>();
+                for(StreamEntry streamEntry:claimResult.getValue()){
+                    if(streamEntry!=null){ // null when deleted from the stream while pending
+                        entries.add(streamEntry);
+                    }
+                }
+                if(!entries.isEmpty()){
+                    processOnLane(streamName, entries, streamEventMapProcessorV2);
+                    claimed += entries.size();
+                }
+                cursor = claimResult.getKey();
+            }while(!"0-0".equals(cursor.toString()));
+        }
+        return claimed;
+    }
+
+    // share one breaker across every helper (and writer) that talks to the same Redis endpoint
+    public RedisStreamWorkerGroupHelperV2 setCircuitBreaker(RedisCircuitBreaker circuitBreaker){
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    // when a dispatcher is set, entries are processed (and acked) on the lane owned by their stream
+    // instead of on the reading thread - use a single reading consumer per group to keep per-stream order
+    public RedisStreamWorkerGroupHelperV2 setLaneDispatcher(KeyAffinityLaneDispatcher laneDispatcher){
+        this.laneDispatcher = laneDispatcher;
+        return this;
+    }
+
 
     // this classes' constructor determines the target StreamName(s)
     // we need to only provide the consumer group name
@@ -54,11 +217,11 @@ public class RedisStreamWorkerGroupHelperV2 {
             try {
                 //all streams have the same groupname allowing multiple streams to be read in a single XREADGroup later on
                 String thing = jedisPooled.xgroupCreate(streamName, this.consumerGroupName, nextID, true);
-                printMessageSparingly(this.getClass().getName() + " : Result returned when creating a new ConsumerGroup " + thing);
+                printMessageSparingly(() -> this.getClass().getName() + " : Result returned when creating a new ConsumerGroup " + thing);
                 Thread.sleep(50l);
             } catch (Exception jde) {
                 if (jde.getMessage().contains("BUSYGROUP")) {
-                    printMessageSparingly("ConsumerGroup " + consumerGroupName + " already exists -- continuing");
+                    printMessageSparingly(() -> "ConsumerGroup " + consumerGroupName + " already exists -- continuing");
                 } else {
                     jde.printStackTrace();
                 }
@@ -71,78 +234,238 @@ public class RedisStreamWorkerGroupHelperV2 {
     // using 0 will grab any pending messages for that listener in case it failed mid-processing
     // a single consumer can handle multiple streams and requires fewer connections as a result <-- I hope
     public void namedGroupConsumerStartListeningToAllStreams(String consumerName, StreamEventMapProcessorV2 streamEventMapProcessorV2) {
-        new Thread(new Runnable() {
+        Thread consumerThread = new Thread(new Runnable() {
             @Override
             public void run() {
                 //String key = "0"; // get all data for this consumer in case it is in recovery mode
-                List<StreamEntry> streamEntryList = null;
                 //StreamEntry value = null;
                 StreamEntryID lastSeenID = null;
-                printMessageSparingly("RedisStreamAdapter.namedGroupConsumerStartListeningToAllStreams(--> " + consumerName + "  <--): Actively Listening to "+streamNamesList.size()+" Streams");
+                printMessageSparingly(() -> "RedisStreamAdapter.namedGroupConsumerStartListeningToAllStreams(--> " + consumerName + "  <--): Actively Listening to "+streamNamesList.size()+" Streams");
                 Map.Entry<String, StreamEntryID> streamQuery = null;
+                JitteredBackoff backoff = new JitteredBackoff();
+                String slot = RoutingValues.routingValueOf(streamNamesList.get(0)); // every stream of a helper shares the routing value
+                long lastFullReadTime = 0;
                 /*
                 with XREADGROUP you can read from multiple keys at the same time,
                 however for this to work, you need to create a consumer group with the same name in every stream.
                 ? Does this provide any benefit in terms of # of connections needed?
                  */
-                while (true) { //loop eternally
+                while (running) { //loop until stopListening() is called
+                    if(!circuitBreaker.allowRequest()){
+                        //redis is known to be unavailable - wait instead of adding to a reconnect storm:
+                        backoff.pause();
+                        continue;
+                    }
                     try {
-                        //grab up to 10 entries from the target streams at a time
+                        long lastRetry = lastRetrySweepTime.get();
+                        if(System.currentTimeMillis()-lastRetry>=retryMinIdleMillis
+                                && lastRetrySweepTime.compareAndSet(lastRetry, System.currentTimeMillis())){
+                            //entries that failed (here or on a consumer that died) are claimed again - each claim counts as a delivery
+                            //only the consumer that wins the compareAndSet sweeps, the others keep reading:
+                            retryPendingEntries(consumerName, streamEventMapProcessorV2);
+                        }
+                        //grab up to batchSize (default 10) entries from the target streams at a time
                         //block for 5 seconds if no entries are immediately available in any stream
                         //this will return the number collected within those 5 seconds so that no messages are
                         //too delayed in being written due to waiting for other messages
                         //We will read from all Streams known to this instance of the helper:
                         //As the helper(s) is(are) created we can create sub-groups of streams
-                        XReadGroupParams xReadGroupParams = new XReadGroupParams().block(fiveSeconds).count(10);
+                        XReadGroupParams xReadGroupParams = new XReadGroupParams().block(fiveSeconds).count(batchSize);
                         HashMap hashMap = new HashMap();
                         //here we add X # of streams to the Hashmap used in the XRead command:
                         //Note that we only add streamNames that have at least 1 entry
                         //Note that we also semi-randomly skip streams based on nanoTime
                         //This last decision is due to the fact that we try again in 5 seconds and want to limit
                         //the number of connections in use
-                        for(int streamNamesCount=0;streamNamesCount<streamNamesList.size();streamNamesCount++) {
+                        List<String> streamsToRead = streamNamesList;
+                        if(doorbell!=null && System.currentTimeMillis()-lastFullReadTime<doorbellSweepMillis){
+                            //only the streams a writer rang for - the doorbell is what blocks, not the XREADGROUP:
+                            streamsToRead = doorbell.takeDirtyStreams(slot, maxDirtyStreamsPerRead);
+                            circuitBreaker.recordSuccess(); // redis answered - this may have been the half-open probe
+                            if(streamsToRead.isEmpty()){
+                                doorbell.await(slot, fiveSeconds/1000);
+                                continue;
+                            }
+                            xReadGroupParams = new XReadGroupParams().count(batchSize);
+                        }else{
+                            lastFullReadTime = System.currentTimeMillis();
+                        }
+                        for(int streamNamesCount=0;streamNamesCount<streamsToRead.size();streamNamesCount++) {
                             //if(jedisPooled.xlen(streamNamesList.get(streamNamesCount))>1){// && System.nanoTime()%3==0) {
-                                hashMap.put(streamNamesList.get(streamNamesCount), StreamEntryID.UNRECEIVED_ENTRY);
+                                hashMap.put(streamsToRead.get(streamNamesCount), StreamEntryID.UNRECEIVED_ENTRY);
                             //}
                         }
+                        long readStartNanos = System.nanoTime();
                         List<Map.Entry<String, List<StreamEntry>>> readGroupResult =
                                 jedisPooled.xreadGroup(consumerGroupName, consumerName,
                                         xReadGroupParams,
                                         (Map<String, StreamEntryID>) hashMap);
+                        circuitBreaker.recordSuccess();
+                        if(backoff.getAttempt()>0){
+                            ReconnectMetrics.GLOBAL.recordReconnect();
+                            backoff.reset();
+                        }
                         //Results come from multiple Streams:
 
                         for(Map.Entry<String, List<StreamEntry>> readResult:readGroupResult) {
                             String streamName = readResult.getKey(); // name of Stream
-                            streamEntryList = readResult.getValue(); // The entries captured from the stream
-                            for(StreamEntry streamEntry:streamEntryList) {
-                                printMessageSparingly("Consumer " + consumerName + " of ConsumerGroup " + consumerGroupName + " has received... " + streamName + " " + streamEntry);
-                                lastSeenID = streamEntry.getID();
-                                //only process one entry at a time:
-                                streamEventMapProcessorV2.processStreamEntry(streamName, streamEntry);
-                                jedisPooled.xack(streamName, consumerGroupName, lastSeenID);
+                            List<StreamEntry> entries = readResult.getValue(); // The entries captured from the stream
+                            if(entries.isEmpty()){
+                                continue;
+                            }
+                            printMessageSparingly(() -> "Consumer " + consumerName + " of ConsumerGroup " + consumerGroupName + " has received... " + entries.size()+" entries from "+streamName + " " + entries.get(0));
+                            lastSeenID = entries.get(entries.size()-1).getID();
+                            if(EntryTracer.GLOBAL.isEnabled()){
+                                for(StreamEntry entry:entries){
+                                    EntryTracer.GLOBAL.trace("read", streamName, entry.getID(), readStartNanos, () -> consumerName);
+                                }
                             }
+                            if(doorbell!=null && entries.size()>=batchSize){
+                                doorbell.ring(streamName); // there may be more - have it read again
+                            }
+                            //all entries of one stream (one customer) are processed together so their writes can be combined
+                            //and are then acked with a single XACK:
+                            processOnLane(streamName, entries, streamEventMapProcessorV2);
                         }
                         //jedisPooled.xdel(key, lastSeenID);// Use trim in some other maintenance operation instead of delete here
                     }catch(NullPointerException npe){
-                        printMessageSparingly("No new messages on the streams at this time");
-                    }catch(redis.clients.jedis.exceptions.JedisConnectionException jce){
-                        printMessageSparingly(" Unexpected end of stream.\n" +
+                        printMessageSparingly(() -> "No new messages on the streams at this time");
+                    }catch(JedisConnectionException jce){
+                        printMessageSparingly(() -> " Unexpected end of stream.\n" +
                                 "at com.redislabs.sa.ot.streamutils.RedisStreamWorkerGroupHelperV2$1.run ");
                         System.out.println(" Unexpected end of stream.\n" +
                                 "at com.redislabs.sa.ot.streamutils.RedisStreamWorkerGroupHelperV2$1.run ");
+                        ReconnectMetrics.GLOBAL.recordConnectionFailure();
+                        circuitBreaker.recordFailure();
+                        backoff.pause();
+                    }catch(RuntimeException re){
+                        //not a connection failure - redis answered (or the processor failed) so the consumer keeps going
+                        //and a half-open probe still reports back instead of leaving the breaker waiting for it:
+                        System.out.println("Consumer "+consumerName+" of ConsumerGroup "+consumerGroupName+" read failed: "+re);
+                        circuitBreaker.recordSuccess();
+                        backoff.pause();
                     }
                 }
             }
-        }).start();
+        });
+        consumerThreads.add(consumerThread);
+        consumerThread.start();
+    }
+
+
+    // with a dispatcher the entries are handed to the lane for their stream and acked once processed there
+    // read and claimed entries go through the same lane so a customer's entries are never processed side by side
+    private void processOnLane(String streamName, List<StreamEntry> entries, StreamEventMapProcessorV2 streamEventMapProcessorV2){
+        if(laneDispatcher==null){
+            processAndAck(streamName, entries, streamEventMapProcessorV2);
+            return;
+        }
+        laneWorkInFlight.merge(streamName, 1, Integer::sum);
+        try{
+            laneDispatcher.dispatch(streamName, () -> {
+                try{
+                    processAndAck(streamName, entries, streamEventMapProcessorV2);
+                }catch(JedisConnectionException jce){
+                    //the reader never sees this failure - the shared breaker makes it (and the writers) back off instead
+                    //the entries stay pending and are claimed again by the retry sweep:
+                    ReconnectMetrics.GLOBAL.recordConnectionFailure();
+                    circuitBreaker.recordFailure();
+                    throw jce;
+                }finally {
+                    laneWorkDone(streamName);
+                }
+            });
+        }catch(RuntimeException re){
+            laneWorkDone(streamName);
+            throw re;
+        }
+    }
+
+    private void laneWorkDone(String streamName){
+        laneWorkInFlight.computeIfPresent(streamName, (key, batches) -> batches==1 ? null : batches-1);
+    }
+
+    private void processAndAck(String streamName, List<StreamEntry> entries, StreamEventMapProcessorV2 streamEventMapProcessorV2){
+        long processStartNanos = System.nanoTime();
+        List<StreamEntry> toAck = entries;
+        try{
+            streamEventMapProcessorV2.processStreamEntries(streamName, entries);
+        }catch(JedisConnectionException jce){
+            throw jce; // redis is unavailable, not the entries - they stay pending and the loop backs off
+        }catch(RuntimeException re){
+            //one bad entry spoils the whole batch - process them one at a time so only the failing entries stay pending
+            //entries that were written before the failure may be written again (delivery is at-least-once as before)
+            toAck = processOneByOne(streamName, entries, streamEventMapProcessorV2);
+        }
+        if(toAck.isEmpty()){
+            return;
+        }
+        StreamEntryID[] entryIDs = new StreamEntryID[toAck.size()];
+        for(int x=0;x<entryIDs.length;x++){
+            entryIDs[x] = toAck.get(x).getID();
+            EntryTracer.GLOBAL.trace("process", streamName, entryIDs[x], processStartNanos, () -> entries.size()+" entries in batch");
+        }
+        long ackStartNanos = System.nanoTime();
+        jedisPooled.xack(streamName, consumerGroupName, entryIDs);
+        if(EntryTracer.GLOBAL.isEnabled()){
+            for(StreamEntryID entryID:entryIDs){
+                EntryTracer.GLOBAL.trace("xack", streamName, entryID, ackStartNanos, null);
+            }
+        }
     }
 
+    // returns the entries that can be acked: the processed ones and the ones moved to the dead-letter stream
+    private List<StreamEntry> processOneByOne(String streamName, List<StreamEntry> entries, StreamEventMapProcessorV2 streamEventMapProcessorV2){
+        List<StreamEntry> toAck = new ArrayList<>();
+        for(StreamEntry entry:entries){
+            try{
+                streamEventMapProcessorV2.processStreamEntry(streamName, entry);
+                toAck.add(entry);
+            }catch(JedisConnectionException jce){
+                throw jce;
+            }catch(RuntimeException re){
+                if(deadLetterIfExhausted(streamName, entry, re)){
+                    toAck.add(entry);
+                }
+            }
+        }
+        return toAck;
+    }
 
-    void printMessageSparingly(String message){
-        if((printcounter%skipSize==0)&&(verbose)) {
-            System.out.println("This message printed 1 time for each "+skipSize+" events:\n"+message);
+    // XPENDING knows how many times the entry was delivered (read + every claim) - below the budget it is left pending for a retry
+    private boolean deadLetterIfExhausted(String streamName, StreamEntry entry, RuntimeException failure){
+        long deliveries = 1;
+        List<StreamPendingEntry> pending = jedisPooled.xpending(streamName, consumerGroupName,
+                XPendingParams.xPendingParams(entry.getID(), entry.getID(), 1));
+        if(pending!=null && !pending.isEmpty()){
+            deliveries = pending.get(0).getDeliveredTimes();
+        }
+        if(deliveries<maxDeliveries){
+            System.out.println("Entry "+entry.getID()+" of "+streamName+" failed (delivery "+deliveries+" of "+maxDeliveries+"): "+failure);
+            return false;
+        }
+        //the original fields plus what is needed to find out what went wrong (and to replay it once fixed):
+        Map<String,String> deadLetter = new LinkedHashMap<>(entry.getFields());
+        deadLetter.put("dlq_source_stream", streamName);
+        deadLetter.put("dlq_source_id", entry.getID().toString());
+        deadLetter.put("dlq_group", consumerGroupName);
+        deadLetter.put("dlq_deliveries", ""+deliveries);
+        deadLetter.put("dlq_error", String.valueOf(failure));
+        String slot = RoutingValues.routingValueOf(streamName);
+        String deadLetterStreamName = slot.isEmpty() ? deadLetterStreamBase : deadLetterStreamBase+"{"+slot+"}";
+        jedisPooled.xadd(deadLetterStreamName, deadLetter, XAddParams.xAddParams().maxLen(deadLetterMaxLength).approximateTrimming());
+        deadLettered.incrementAndGet();
+        System.out.println("Moved entry "+entry.getID()+" of "+streamName+" to "+deadLetterStreamName+" after "+deliveries+" deliveries: "+failure);
+        return true;
+    }
+
+    void printMessageSparingly(Supplier<String> message){
+        if(!verbose){
+            return;
+        }
+        if(printcounter.getAndIncrement()%skipSize==0) {
+            System.out.println("This message printed 1 time for each "+skipSize+" events:\n"+message.get());
         }
-        printcounter++;
-        if(printcounter==(skipSize+1)){printcounter=1;}//in case it's a long running service
     }
 
 }
\ No newline at end of file
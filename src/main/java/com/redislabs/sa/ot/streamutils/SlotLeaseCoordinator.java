@@ -0,0 +1,229 @@
+package com.redislabs.sa.ot.streamutils;
+
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.util.MurmurHash;
+
+import java.util.*;
+
+/**
+ * Lets several consumer JVMs share the routing slots without any per-instance configuration
+ *
+ * Every instance keeps a lease in the sorted set rouws:lease:instances (score = lease expiry time in millis)
+ * and renews it every heartbeatMillis from its own thread - so a long drain or claim on the heartbeat thread never lets it expire
+ * Instances whose lease has expired are removed by whoever sees them first
+ * The live instances are placed on a consistent-hash ring (virtualNodes points each) and a slot belongs to the
+ * first instance found clockwise from the hash of the slot - so a join or leave only moves about 1/N of the slots
+ *
+ * When a slot moves:
+ *  - the old owner is told to release it: it stops reading, finishes what it has in hand and then
+ *    SETs rouws:lease:drained:{slot} so the new owner knows nothing is being processed anymore
+ *  - the new owner waits for that marker (or for the old owner's lease to expire) before it is told to take the slot
+ *    and it then claims the pending entries the old owner left behind (XAUTOCLAIM) before it reads new ones
+ *  - when it gave up waiting instead, the old owner may still be busy - only entries idle for leaseMillis are claimed
+ * The current owner of each slot is kept in the hash rouws:lease:owners
+ */
+public class SlotLeaseCoordinator {
+
+    // implemented by whoever runs the consumers for a slot
+    public interface SlotListener {
+        // start consuming the slot - claim the pending entries of previousOwner that have been idle claimMinIdleMillis first
+        // (previousOwner is null when unknown - claimMinIdleMillis is 0 once it drained or its lease expired)
+        void slotAcquired(String slot, String previousOwner, long claimMinIdleMillis);
+        // stop consuming the slot - return true only when nothing from it is being processed anymore
+        boolean slotReleased(String slot);
+    }
+
+    private static final MurmurHash MURMUR = new MurmurHash();
+    private JedisPooled jedisPooled = null;
+    private String instanceID = null;
+    private String keyBase = "rouws:lease:";
+    private List<String> slots = new ArrayList<>();
+    private long leaseMillis = 10000;
+    private long heartbeatMillis = 3000;
+    private int virtualNodes = 64;
+    private SlotListener slotListener = null;
+    private final Set<String> ownedSlots = new TreeSet<>();
+    private final Map<String,Long> waitingForDrainSince = new HashMap<>();
+    private volatile boolean running = false;
+    private volatile boolean renewing = false;
+
+    public SlotLeaseCoordinator setPooledJedis(JedisPooled jedisPooled){
+        this.jedisPooled=jedisPooled;
+        return this;
+    }
+
+    // must be unique across the running instances - it is also used as the consumer name
+    public SlotLeaseCoordinator setInstanceID(String instanceID){
+        this.instanceID=instanceID;
+        return this;
+    }
+
+    public SlotLeaseCoordinator setKeyBase(String keyBase){
+        this.keyBase=keyBase;
+        return this;
+    }
+
+    public SlotLeaseCoordinator setSlots(List<String> slots){
+        this.slots=new ArrayList<>(slots);
+        return this;
+    }
+
+    public SlotLeaseCoordinator setLeaseMillis(long leaseMillis){
+        this.leaseMillis=leaseMillis;
+        return this;
+    }
+
+    public SlotLeaseCoordinator setHeartbeatMillis(long heartbeatMillis){
+        this.heartbeatMillis=heartbeatMillis;
+        return this;
+    }
+
+    public SlotLeaseCoordinator setVirtualNodes(int virtualNodes){
+        this.virtualNodes=virtualNodes;
+        return this;
+    }
+
+    public SlotLeaseCoordinator setSlotListener(SlotListener slotListener){
+        this.slotListener=slotListener;
+        return this;
+    }
+
+    public String getInstanceID(){
+        return instanceID;
+    }
+
+    public synchronized Set<String> getOwnedSlots(){
+        return new TreeSet<>(ownedSlots);
+    }
+
+    public SlotLeaseCoordinator start(){
+        running = true;
+        Thread heartbeat = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(running){
+                    try{
+                        rebalance();
+                        Thread.sleep(heartbeatMillis);
+                    }catch(InterruptedException ie){
+                        return;
+                    }catch(RuntimeException re){
+                        System.out.println("SlotLeaseCoordinator heartbeat failed: "+re.getMessage());
+                        try { Thread.sleep(heartbeatMillis); } catch (InterruptedException ie) { return; }
+                    }
+                }
+            }
+        }, "slotLeaseHeartbeat");
+        heartbeat.setDaemon(true);
+        renewing = true;
+        Thread renewer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(renewing){
+                    try{
+                        renewLease();
+                        Thread.sleep(heartbeatMillis);
+                    }catch(InterruptedException ie){
+                        return;
+                    }catch(RuntimeException re){
+                        System.out.println("SlotLeaseCoordinator lease renewal failed: "+re.getMessage());
+                        try { Thread.sleep(heartbeatMillis); } catch (InterruptedException ie) { return; }
+                    }
+                }
+            }
+        }, "slotLeaseRenewer");
+        renewer.setDaemon(true);
+        renewer.start();
+        heartbeat.start();
+        return this;
+    }
+
+    // gives up every slot (draining each one) and removes the lease so the others take over at their next heartbeat
+    public synchronized void stop(){
+        running = false;
+        for(String slot:new ArrayList<>(ownedSlots)){
+            release(slot);
+        }
+        renewing = false; // the lease is kept while draining
+        jedisPooled.zrem(instancesKey(), instanceID);
+    }
+
+    synchronized void rebalance(){
+        long now = System.currentTimeMillis();
+        jedisPooled.zremrangeByScore(instancesKey(), Double.NEGATIVE_INFINITY, now); // expired leases
+        List<String> liveInstances = jedisPooled.zrangeByScore(instancesKey(), now, Double.POSITIVE_INFINITY);
+        if(!liveInstances.contains(instanceID)){
+            liveInstances.add(instanceID);
+        }
+        TreeMap<Long,String> ring = buildRing(liveInstances);
+        for(String slot:slots){
+            boolean mine = instanceID.equals(ownerOf(ring, slot));
+            if(!mine && ownedSlots.contains(slot)){
+                release(slot);
+            }else if(mine && !ownedSlots.contains(slot)){
+                tryAcquire(slot, liveInstances, now);
+            }
+        }
+    }
+
+    private void renewLease(){
+        jedisPooled.zadd(instancesKey(), System.currentTimeMillis()+leaseMillis, instanceID);
+    }
+
+    private void release(String slot){
+        System.out.println("SlotLeaseCoordinator "+instanceID+" releasing slot "+slot);
+        boolean drained = slotListener.slotReleased(slot);
+        ownedSlots.remove(slot);
+        if(drained){ // otherwise the new owner waits leaseMillis and then claims only what has been idle that long
+            jedisPooled.set(drainedKey(slot), instanceID, SetParams.setParams().px(leaseMillis*3));
+        }
+    }
+
+    private void tryAcquire(String slot, List<String> liveInstances, long now){
+        String previousOwner = jedisPooled.hget(ownersKey(), slot);
+        boolean previousOwnerGone = previousOwner==null || previousOwner.equals(instanceID) || !liveInstances.contains(previousOwner);
+        boolean drained = previousOwner!=null && previousOwner.equals(jedisPooled.get(drainedKey(slot)));
+        long waitingSince = waitingForDrainSince.computeIfAbsent(slot, k -> now);
+        if(!previousOwnerGone && !drained && now-waitingSince<leaseMillis){
+            return; // the old owner is still draining - try again at the next heartbeat
+        }
+        waitingForDrainSince.remove(slot);
+        jedisPooled.hset(ownersKey(), slot, instanceID);
+        jedisPooled.del(drainedKey(slot));
+        ownedSlots.add(slot);
+        System.out.println("SlotLeaseCoordinator "+instanceID+" acquired slot "+slot+" (previous owner: "+previousOwner+")");
+        slotListener.slotAcquired(slot, previousOwner, (previousOwnerGone || drained) ? 0 : leaseMillis);
+    }
+
+    TreeMap<Long,String> buildRing(List<String> instances){
+        TreeMap<Long,String> ring = new TreeMap<>();
+        for(String instance:instances){
+            for(int v=0;v<virtualNodes;v++){
+                ring.put(hash(instance+"#"+v), instance);
+            }
+        }
+        return ring;
+    }
+
+    static String ownerOf(TreeMap<Long,String> ring, String slot){
+        Map.Entry<Long,String> owner = ring.ceilingEntry(hash("slot:"+slot));
+        return owner!=null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    static long hash(String value){
+        return MURMUR.hash(value); // the same hash Jedis used for client side sharding
+    }
+
+    private String instancesKey(){
+        return keyBase+"instances";
+    }
+
+    private String ownersKey(){
+        return keyBase+"owners";
+    }
+
+    private String drainedKey(String slot){
+        return keyBase+"drained:{"+slot+"}";
+    }
+}
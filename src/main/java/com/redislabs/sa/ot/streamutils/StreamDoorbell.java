@@ -0,0 +1,76 @@
+package com.redislabs.sa.ot.streamutils;
+
+import com.redislabs.sa.ot.util.RoutingValues;
+import redis.clients.jedis.JedisPooled;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tells the consumers of a slot which of its streams have new entries, so they don't have to pass every stream to XREADGROUP
+ *
+ * Per slot there are two small keys that live in the slot itself (same hash tag as the streams):
+ *  rouws:doorbell:dirty:{slot} - a set of the stream names written to since a consumer last took them
+ *  rouws:doorbell:ring:{slot}  - a list a consumer BLPOPs on - a writer pushes to it only when its stream was not dirty yet
+ * A writer rings after XADD: SADD, and RPUSH only if the SADD added the name - one script, so one extra round trip per write
+ * The ring is trimmed to MAX_RING_TOKENS on each push and cleared when a consumer empties the dirty set,
+ * so it never grows under load and idle consumers are not woken by stale tokens
+ * A consumer waits on the ring, SPOPs a handful of dirty streams and reads just those
+ * A stream popped while entries are still arriving is simply added (and rung) again by the next write
+ */
+public class StreamDoorbell {
+    static final int MAX_RING_TOKENS = 16; // enough to wake every consumer of a slot at once
+    private static final String RING_SCRIPT =
+            "if redis.call('SADD', KEYS[1], ARGV[1])==1 then " +
+            "redis.call('RPUSH', KEYS[2], '1') redis.call('LTRIM', KEYS[2], 0, "+(MAX_RING_TOKENS-1)+") end";
+    // the ring is cleared in the same script that drains the set - a writer's later ring is never lost
+    private static final String TAKE_SCRIPT =
+            "local dirty = redis.call('SPOP', KEYS[1], ARGV[1]) " +
+            "if redis.call('SCARD', KEYS[1])==0 then redis.call('DEL', KEYS[2]) end return dirty";
+    private JedisPooled jedisPooled = null;
+    private String keyBase = "rouws:doorbell:";
+
+    public StreamDoorbell setPooledJedis(JedisPooled jedisPooled){
+        this.jedisPooled=jedisPooled;
+        return this;
+    }
+
+    public StreamDoorbell setKeyBase(String keyBase){
+        this.keyBase=keyBase;
+        return this;
+    }
+
+    // called by writers after adding to streamName
+    public void ring(String streamName){
+        String slot = RoutingValues.routingValueOf(streamName);
+        jedisPooled.eval(RING_SCRIPT, Arrays.asList(dirtyKey(slot), ringKey(slot)), Collections.singletonList(streamName));
+    }
+
+    // blocks up to timeoutSeconds for a writer to ring the slot - returns false on timeout
+    public boolean await(String slot, int timeoutSeconds){
+        List<String> rung = jedisPooled.blpop(timeoutSeconds, ringKey(slot));
+        return rung!=null && !rung.isEmpty();
+    }
+
+    // removes and returns up to maxStreams of the slot's dirty streams - each one is handed to only one consumer
+    public List<String> takeDirtyStreams(String slot, int maxStreams){
+        Object dirty = jedisPooled.eval(TAKE_SCRIPT, Arrays.asList(dirtyKey(slot), ringKey(slot)), Collections.singletonList(""+maxStreams));
+        List<String> streamNames = new ArrayList<>();
+        if(dirty instanceof List){
+            for(Object streamName:(List<?>) dirty){
+                streamNames.add(String.valueOf(streamName));
+            }
+        }
+        return streamNames;
+    }
+
+    private String dirtyKey(String slot){
+        return keyBase+"dirty:{"+slot+"}";
+    }
+
+    private String ringKey(String slot){
+        return keyBase+"ring:{"+slot+"}";
+    }
+}
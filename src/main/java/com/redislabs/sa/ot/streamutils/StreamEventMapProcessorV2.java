@@ -2,6 +2,16 @@ package com.redislabs.sa.ot.streamutils;
 
 import redis.clients.jedis.resps.StreamEntry;
 
+import java.util.List;
+
 public interface StreamEventMapProcessorV2 {
     public void processStreamEntry(String streamName, StreamEntry payload);
+
+    // all entries read from one stream in a single read - in stream order
+    // processors that can combine the writes for a stream override this
+    default void processStreamEntries(String streamName, List<StreamEntry> payloads){
+        for(StreamEntry payload:payloads){
+            processStreamEntry(streamName, payload);
+        }
+    }
 }
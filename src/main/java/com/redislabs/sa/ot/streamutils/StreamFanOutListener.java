@@ -0,0 +1,236 @@
+package com.redislabs.sa.ot.streamutils;
+
+import com.redislabs.sa.ot.util.JitteredBackoff;
+import com.redislabs.sa.ot.util.RedisCircuitBreaker;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.params.XReadParams;
+import redis.clients.jedis.resps.StreamEntry;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A read-only follower of a batch of streams that uses plain XREAD BLOCK instead of a consumer group
+ * Nothing is kept on the server for it - no group, no pending entries list, no XACK per entry - so any number of
+ * listeners (notifications, analytics...) can follow the same streams without slowing down the processors
+ *
+ * The last seen ID of every stream is held in memory and checkpointed every checkpointIntervalMillis, either to
+ * the hash checkpointKeyName (stream name -> last ID) or, when a checkpoint file is set, to a local properties file
+ * A restarted listener continues after its checkpoint - entries seen after the last checkpoint are delivered again
+ * Streams without a checkpoint start at the time the listener starts (or at the beginning with setStartFromBeginning)
+ */
+public class StreamFanOutListener {
+    private JedisPooled jedisPooled = null;
+    private List<String> streamNamesList = new ArrayList<>();
+    private String listenerName = "listener";
+    private String checkpointKeyName = null;
+    private String checkpointFile = null;
+    private long checkpointIntervalMillis = 5000;
+    private int batchSize = 100;
+    private int blockMillis = 5000;
+    private boolean startFromBeginning = false;
+    private RedisCircuitBreaker circuitBreaker = new RedisCircuitBreaker();
+    private final Map<String,StreamEntryID> lastSeenIDs = new HashMap<>();
+    private final Set<String> changedSinceCheckpoint = new HashSet<>();
+    private volatile boolean running = false;
+    private long entriesSeen = 0;
+    private Thread listenerThread = null;
+
+    public StreamFanOutListener setPooledJedis(JedisPooled jedisPooled){
+        this.jedisPooled=jedisPooled;
+        return this;
+    }
+
+    public StreamFanOutListener setStreamNamesArrayList(List<String> streamNamesList){
+        this.streamNamesList=new ArrayList<>(streamNamesList);
+        return this;
+    }
+
+    public StreamFanOutListener setListenerName(String listenerName){
+        this.listenerName=listenerName;
+        return this;
+    }
+
+    // keep the checkpoint in the same slot as the streams - for example rouws:listener:order_listeners:{37}
+    public StreamFanOutListener setCheckpointKeyName(String checkpointKeyName){
+        this.checkpointKeyName=checkpointKeyName;
+        return this;
+    }
+
+    // checkpoint to a local file instead of redis
+    public StreamFanOutListener setCheckpointFile(String checkpointFile){
+        this.checkpointFile=checkpointFile;
+        return this;
+    }
+
+    public StreamFanOutListener setCheckpointIntervalMillis(long checkpointIntervalMillis){
+        this.checkpointIntervalMillis=checkpointIntervalMillis;
+        return this;
+    }
+
+    public StreamFanOutListener setBatchSize(int batchSize){
+        this.batchSize=batchSize;
+        return this;
+    }
+
+    public StreamFanOutListener setStartFromBeginning(boolean startFromBeginning){
+        this.startFromBeginning=startFromBeginning;
+        return this;
+    }
+
+    public StreamFanOutListener setCircuitBreaker(RedisCircuitBreaker circuitBreaker){
+        this.circuitBreaker=circuitBreaker;
+        return this;
+    }
+
+    public synchronized long getEntriesSeen(){
+        return entriesSeen;
+    }
+
+    public StreamFanOutListener start(StreamEventMapProcessorV2 processor){
+        loadCheckpoint();
+        StreamEntryID startID = startFromBeginning ? new StreamEntryID(0, 0) : new StreamEntryID(System.currentTimeMillis(), 0);
+        synchronized (this){
+            for(String streamName:streamNamesList){
+                lastSeenIDs.putIfAbsent(streamName, startID);
+            }
+        }
+        running = true;
+        listenerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listen(processor);
+            }
+        }, listenerName);
+        listenerThread.start();
+        return this;
+    }
+
+    // finishes the current read, writes a last checkpoint and returns
+    public void stop() throws InterruptedException {
+        running = false;
+        if(listenerThread!=null){
+            listenerThread.join(blockMillis*2L);
+        }
+    }
+
+    private void listen(StreamEventMapProcessorV2 processor){
+        System.out.println("StreamFanOutListener "+listenerName+" following "+streamNamesList.size()+" streams");
+        JitteredBackoff backoff = new JitteredBackoff();
+        long lastCheckpointTime = System.currentTimeMillis();
+        while(running){
+            if(!circuitBreaker.allowRequest()){
+                backoff.pause();
+                continue;
+            }
+            try{
+                Map<String,StreamEntryID> readFrom;
+                synchronized (this){
+                    readFrom = new HashMap<>(lastSeenIDs);
+                }
+                List<Map.Entry<String, List<StreamEntry>>> readResult =
+                        jedisPooled.xread(XReadParams.xReadParams().block(blockMillis).count(batchSize), readFrom);
+                circuitBreaker.recordSuccess();
+                backoff.reset();
+                if(readResult!=null){
+                    for(Map.Entry<String, List<StreamEntry>> streamEntries:readResult){
+                        List<StreamEntry> entries = streamEntries.getValue();
+                        if(entries.isEmpty()){
+                            continue;
+                        }
+                        processor.processStreamEntries(streamEntries.getKey(), entries);
+                        synchronized (this){
+                            lastSeenIDs.put(streamEntries.getKey(), entries.get(entries.size()-1).getID());
+                            changedSinceCheckpoint.add(streamEntries.getKey());
+                            entriesSeen += entries.size();
+                        }
+                    }
+                }
+                if(System.currentTimeMillis()-lastCheckpointTime>=checkpointIntervalMillis){
+                    checkpoint();
+                    lastCheckpointTime = System.currentTimeMillis();
+                }
+            }catch(RuntimeException re){
+                circuitBreaker.recordFailure();
+                System.out.println("StreamFanOutListener "+listenerName+" read failed: "+re.getMessage());
+                backoff.pause();
+            }
+        }
+        checkpoint();
+    }
+
+    // only the streams that moved since the last checkpoint are written to redis - the file is always rewritten whole
+    public void checkpoint(){
+        Map<String,String> changed = new HashMap<>();
+        Map<String,String> all = new TreeMap<>();
+        synchronized (this){
+            for(String streamName:changedSinceCheckpoint){
+                changed.put(streamName, lastSeenIDs.get(streamName).toString());
+            }
+            if(changed.isEmpty()){
+                return;
+            }
+            for(Map.Entry<String,StreamEntryID> lastSeen:lastSeenIDs.entrySet()){
+                all.put(lastSeen.getKey(), lastSeen.getValue().toString());
+            }
+            changedSinceCheckpoint.clear();
+        }
+        try{
+            if(checkpointFile!=null){
+                writeCheckpointFile(all);
+            }else if(checkpointKeyName!=null){
+                jedisPooled.hset(checkpointKeyName, changed);
+            }
+        }catch(IOException | RuntimeException e){
+            synchronized (this){ // try again at the next checkpoint
+                changedSinceCheckpoint.addAll(changed.keySet());
+            }
+            System.out.println("StreamFanOutListener "+listenerName+" checkpoint failed: "+e.getMessage());
+        }
+    }
+
+    private void loadCheckpoint(){
+        Map<String,String> saved = new HashMap<>();
+        try{
+            if(checkpointFile!=null && Files.exists(Paths.get(checkpointFile))){
+                Properties properties = new Properties();
+                try(Reader reader = Files.newBufferedReader(Paths.get(checkpointFile), StandardCharsets.UTF_8)){
+                    properties.load(reader);
+                }
+                for(String streamName:properties.stringPropertyNames()){
+                    saved.put(streamName, properties.getProperty(streamName));
+                }
+            }else if(checkpointFile==null && checkpointKeyName!=null){
+                saved = jedisPooled.hgetAll(checkpointKeyName);
+            }
+        }catch(IOException | RuntimeException e){
+            System.out.println("StreamFanOutListener "+listenerName+" could not load its checkpoint - starting fresh: "+e.getMessage());
+            return;
+        }
+        int resumed = 0;
+        synchronized (this){
+            for(String streamName:streamNamesList){
+                if(saved.containsKey(streamName)){
+                    lastSeenIDs.put(streamName, new StreamEntryID(saved.get(streamName)));
+                    resumed++;
+                }
+            }
+        }
+        System.out.println("StreamFanOutListener "+listenerName+" resumed "+resumed+" streams from its checkpoint");
+    }
+
+    // written to a temporary file and moved into place so a crash never leaves half a checkpoint behind
+    private void writeCheckpointFile(Map<String,String> lastSeen) throws IOException {
+        Path target = Paths.get(checkpointFile);
+        Path temporary = Paths.get(checkpointFile+".tmp");
+        Properties properties = new Properties();
+        properties.putAll(lastSeen);
+        try(Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)){
+            properties.store(writer, "StreamFanOutListener "+listenerName+" last seen IDs");
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,121 @@
+package com.redislabs.sa.ot.util;
+
+import redis.clients.jedis.StreamEntryID;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Follows a sample of stream entries through their life: xadd -> read -> process -> json_write -> xack
+ *
+ * Whether an entry is sampled depends only on its entry ID, so the writer JVM and the consumer JVM pick the same entries
+ * and their trace files can be joined on the ID. Each step writes one tab separated line:
+ *  epochMillis  entryID  streamName  step  stepMicros  ageMillis(now - entry ID time)  detail
+ * Lines are handed to a background thread through a bounded queue - when it is full the line is dropped (and counted)
+ * The detail is a Supplier, so nothing is built for entries that are not sampled - with a sample rate of 0
+ * (the default) a trace point costs one comparison
+ *
+ * GLOBAL is shared by default so the writers, helpers and processors in one JVM write to the same file
+ */
+public class EntryTracer {
+    public static final EntryTracer GLOBAL = new EntryTracer();
+    private static final long SAMPLE_SCALE = 1000000;
+
+    private volatile long sampleThreshold = 0; // sampled when hash(entryID) % SAMPLE_SCALE < sampleThreshold
+    private String traceFile = "entry_traces.tsv";
+    private final BlockingQueue<String> lines = new ArrayBlockingQueue<>(10000);
+    private final AtomicLong linesWritten = new AtomicLong();
+    private final AtomicLong linesDropped = new AtomicLong();
+    private Thread writerThread = null;
+
+    // 0.001 follows one entry in a thousand
+    public EntryTracer setSampleRate(double sampleRate){
+        this.sampleThreshold = (long) (Math.max(0, Math.min(1, sampleRate))*SAMPLE_SCALE);
+        return this;
+    }
+
+    public EntryTracer setTraceFile(String traceFile){
+        this.traceFile=traceFile;
+        return this;
+    }
+
+    public boolean isEnabled(){
+        return sampleThreshold>0;
+    }
+
+    public boolean isSampled(StreamEntryID entryID){
+        if(sampleThreshold==0 || entryID==null){
+            return false;
+        }
+        long hash = entryID.getTime()*0x9E3779B97F4A7C15L + entryID.getSequence();
+        hash ^= (hash>>>29);
+        return Math.floorMod(hash, SAMPLE_SCALE)<sampleThreshold;
+    }
+
+    /**
+     * @param startNanos System.nanoTime() taken when the step began
+     * @param detail built only when the entry is sampled - may be null
+     */
+    public void trace(String step, String streamName, StreamEntryID entryID, long startNanos, Supplier<String> detail){
+        if(!isSampled(entryID)){
+            return;
+        }
+        long stepMicros = (System.nanoTime()-startNanos)/1000;
+        long now = System.currentTimeMillis();
+        String line = now+"\t"+entryID+"\t"+streamName+"\t"+step+"\t"+stepMicros+"\t"+(now-entryID.getTime())+"\t"+
+                (detail==null ? "" : detail.get().replace('\t',' ').replace('\n',' '));
+        if(!lines.offer(line)){
+            linesDropped.incrementAndGet(); // never slow down the traced path
+        }
+    }
+
+    // starts the thread appending the sampled lines to the trace file - nothing is written before this is called
+    public synchronized EntryTracer start(){
+        if(writerThread!=null || !isEnabled()){
+            return this;
+        }
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<String> batch = new ArrayList<>();
+                try(BufferedWriter writer = Files.newBufferedWriter(Paths.get(traceFile), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)){
+                    while(true){
+                        batch.add(lines.take());
+                        lines.drainTo(batch);
+                        for(String tracedLine:batch){
+                            writer.write(tracedLine);
+                            writer.newLine();
+                        }
+                        writer.flush(); // the thread is a daemon - keep what was sampled if the JVM exits
+                        linesWritten.addAndGet(batch.size());
+                        batch.clear();
+                    }
+                }catch(IOException ioe){
+                    System.out.println("EntryTracer stopped writing to "+traceFile+": "+ioe.getMessage());
+                }catch(InterruptedException ie){
+                    // daemon thread - the JVM is going away
+                }
+            }
+        }, "entryTracer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        System.out.println("EntryTracer sampling "+(sampleThreshold*100.0/SAMPLE_SCALE)+"% of entries into "+traceFile);
+        return this;
+    }
+
+    @Override
+    public String toString(){
+        return "EntryTracer lines written: "+linesWritten.get()+" dropped: "+linesDropped.get();
+    }
+}
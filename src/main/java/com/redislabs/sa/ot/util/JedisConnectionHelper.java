@@ -30,6 +30,15 @@ public class JedisConnectionHelper {
     }
 
 
+    /**
+     * Borrow a connection from the pool - use it to build a Pipeline and close it when done
+     * (closing a Pipeline only syncs it - closing the Connection returns it to the pool)
+     * @return Connection
+     */
+    public Connection getConnection(){
+        return jedisPooled.getPool().getResource();
+    }
+
     /**
      * Assuming use of Jedis 4.3.1:
      * https://github.com/redis/jedis/blob/82f286b4d1441cf15e32cc629c66b5c9caa0f286/src/main/java/redis/clients/jedis/Transaction.java#L22-L23
@@ -135,6 +144,7 @@ public class JedisConnectionHelper {
         poolConfig.setMaxWait(Duration.ofMinutes(bs.getNumberOfMinutesForWaitDuration()));
         poolConfig.setTestOnCreate(bs.isTestOnCreate());
         poolConfig.setTestOnBorrow(bs.isTestOnBorrow());
+        poolConfig.setTestWhileIdle(bs.isTestWhileIdle()); // idle connections are validated by the evictor thread - off the hot path
         poolConfig.setNumTestsPerEvictionRun(bs.getNumTestsPerEvictionRun());
         poolConfig.setBlockWhenExhausted(bs.isBlockWhenExhausted());
         poolConfig.setMinEvictableIdleTime(Duration.ofMillis(bs.getMinEvictableIdleTimeMilliseconds()));
@@ -14,6 +14,7 @@ public class JedisConnectionHelperSettings {
     private boolean testOnCreate = true;
     private boolean testOnBorrow = true;
     private boolean testOnReturn = true;
+    private boolean testWhileIdle = false;
     private int numTestsPerEvictionRun = 3;
     private boolean useSSL = false;
     private boolean usePassword = false;
@@ -135,6 +136,14 @@ public class JedisConnectionHelperSettings {
         this.testOnReturn = testOnReturn;
     }
 
+    public boolean isTestWhileIdle() {
+        return testWhileIdle;
+    }
+
+    public void setTestWhileIdle(boolean testWhileIdle) {
+        this.testWhileIdle = testWhileIdle;
+    }
+
     public int getNumTestsPerEvictionRun() {
         return numTestsPerEvictionRun;
     }
@@ -0,0 +1,50 @@
+package com.redislabs.sa.ot.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter - one instance per retrying loop (it is not thread-safe)
+ * Each consecutive failure doubles the ceiling (up to maxDelayMillis) and the actual delay is a random value below it
+ * The randomness spreads the retries of many loops so they do not all hit a recovering server at the same moment
+ */
+public class JitteredBackoff {
+    private long baseDelayMillis = 100;
+    private long maxDelayMillis = 30000;
+    private int attempt = 0;
+
+    public JitteredBackoff setBaseDelayMillis(long baseDelayMillis){
+        this.baseDelayMillis = Math.max(1,baseDelayMillis);
+        return this;
+    }
+
+    public JitteredBackoff setMaxDelayMillis(long maxDelayMillis){
+        this.maxDelayMillis = Math.max(1,maxDelayMillis);
+        return this;
+    }
+
+    public int getAttempt(){
+        return attempt;
+    }
+
+    public long nextDelayMillis(){
+        // cap the shift so the ceiling cannot overflow on a long outage:
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 20));
+        attempt++;
+        return ThreadLocalRandom.current().nextLong(ceiling/2, ceiling+1);
+    }
+
+    // sleeps for the next delay - returns false if interrupted
+    public boolean pause(){
+        try{
+            Thread.sleep(nextDelayMillis());
+            return true;
+        }catch(InterruptedException ie){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public void reset(){
+        attempt = 0;
+    }
+}
@@ -0,0 +1,95 @@
+package com.redislabs.sa.ot.util;
+
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.SslOptions;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Alternative to JedisConnectionHelper for the non-blocking engine
+ * A Lettuce connection is multiplexed: many threads (and many logical consumers) can issue commands
+ * on the same connection at the same time without waiting for each other's replies
+ * This helper opens a small, fixed number of connections and hands them out round-robin
+ * It also owns a small scheduler used to drive the logical consumers and writers - so no thread is parked per consumer
+ *
+ * Blocking commands (XREADGROUP BLOCK, BLPOP...) must NOT be issued on these connections
+ * as they would stall every other command multiplexed on the same connection
+ */
+public class LettuceConnectionHelper {
+    final RedisClient redisClient;
+    final List<StatefulRedisConnection<String,String>> connections = new ArrayList<>();
+    final ScheduledExecutorService scheduler;
+    private final AtomicLong nextConnection = new AtomicLong();
+
+    public LettuceConnectionHelper(JedisConnectionHelperSettings bs, int numberOfConnections, int numberOfSchedulerThreads){
+        System.out.println("Creating LettuceConnectionHelper with "+numberOfConnections+" connections and "+
+                numberOfSchedulerThreads+" scheduler threads for "+bs);
+        RedisURI.Builder uriBuilder = RedisURI.builder()
+                .withHost(bs.getRedisHost())
+                .withPort(bs.getRedisPort())
+                .withTimeout(Duration.ofMillis(bs.getRequestTimeoutMillis()));
+        if(bs.isUsePassword()){
+            uriBuilder.withAuthentication(bs.getUserName(), bs.getPassword());
+        }
+        ClientOptions.Builder optionsBuilder = ClientOptions.builder();
+        if(bs.isUseSSL()){ // manage client-side certificates to allow SSL handshake for connections
+            uriBuilder.withSsl(true);
+            optionsBuilder.sslOptions(SslOptions.builder()
+                    .jdkSslProvider()
+                    .keystore(new File(bs.getUserCertPath()), bs.getUserCertPassword().toCharArray())
+                    .truststore(new File(bs.getCaCertPath()), bs.getCaCertPassword())
+                    .build());
+        }
+        this.redisClient = RedisClient.create(uriBuilder.build());
+        this.redisClient.setOptions(optionsBuilder.build());
+        for(int x=0;x<Math.max(1,numberOfConnections);x++){
+            connections.add(redisClient.connect());
+        }
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(Math.max(1,numberOfSchedulerThreads));
+        executor.setRemoveOnCancelPolicy(true);
+        this.scheduler = executor;
+        RedisAsyncCommands<String,String> async = getAsyncCommands();
+        async.set("com.redislabs.sa.ot.util.LettuceConnectionHelper","test").toCompletableFuture().join();
+        async.del("com.redislabs.sa.ot.util.LettuceConnectionHelper").toCompletableFuture().join();
+    }
+
+    /**
+     * Obtain async commands on one of the shared connections (chosen round-robin)
+     * Callers should keep using the same instance for commands whose order matters
+     * @return RedisAsyncCommands
+     */
+    public RedisAsyncCommands<String,String> getAsyncCommands(){
+        int index = (int) (nextConnection.getAndIncrement() % connections.size());
+        return connections.get(index).async();
+    }
+
+    /**
+     * The shared scheduler that drives logical consumers and writers
+     * @return ScheduledExecutorService
+     */
+    public ScheduledExecutorService getScheduler(){
+        return scheduler;
+    }
+
+    public int getConnectionCount(){
+        return connections.size();
+    }
+
+    public void shutdown(){
+        scheduler.shutdown();
+        for(StatefulRedisConnection<String,String> connection:connections){
+            connection.close();
+        }
+        redisClient.shutdown();
+    }
+}
@@ -0,0 +1,59 @@
+package com.redislabs.sa.ot.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how the program copes with an unreliable connection to Redis
+ * GLOBAL is shared by default so a single line can report on every loop in the JVM
+ */
+public class ReconnectMetrics {
+    public static final ReconnectMetrics GLOBAL = new ReconnectMetrics();
+    private final AtomicLong connectionFailures = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong circuitOpened = new AtomicLong();
+    private final AtomicLong circuitClosed = new AtomicLong();
+    private final AtomicLong rejectedWhileOpen = new AtomicLong();
+
+    public void recordConnectionFailure(){
+        connectionFailures.incrementAndGet();
+    }
+
+    // a loop that failed at least once has succeeded again
+    public void recordReconnect(){
+        reconnects.incrementAndGet();
+    }
+
+    public void recordCircuitOpened(){
+        circuitOpened.incrementAndGet();
+    }
+
+    public void recordCircuitClosed(){
+        circuitClosed.incrementAndGet();
+    }
+
+    public void recordRejectedWhileOpen(){
+        rejectedWhileOpen.incrementAndGet();
+    }
+
+    public long getConnectionFailures(){
+        return connectionFailures.get();
+    }
+
+    public long getReconnects(){
+        return reconnects.get();
+    }
+
+    public long getCircuitOpened(){
+        return circuitOpened.get();
+    }
+
+    public long getRejectedWhileOpen(){
+        return rejectedWhileOpen.get();
+    }
+
+    public String toString(){
+        return "ReconnectMetrics: connectionFailures = "+connectionFailures.get()+" reconnects = "+reconnects.get()+
+                " circuitOpened = "+circuitOpened.get()+" circuitClosed = "+circuitClosed.get()+
+                " rejectedWhileOpen = "+rejectedWhileOpen.get();
+    }
+}
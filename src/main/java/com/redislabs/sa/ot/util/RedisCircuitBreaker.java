@@ -0,0 +1,76 @@
+package com.redislabs.sa.ot.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A circuit breaker meant to be shared by every consumer and writer that talks to the same Redis endpoint
+ * CLOSED: requests flow, consecutive connection failures are counted
+ * OPEN: after failureThreshold consecutive failures no request is allowed for openDurationMillis
+ * HALF_OPEN: once that time has passed a single probe request is let through
+ *  - success closes the circuit, failure opens it again
+ *  - a probe that reports neither within another openDurationMillis is given up on and the next caller probes instead
+ * This stops hundreds of threads from hammering a server that is trying to recover
+ */
+public class RedisCircuitBreaker {
+    public static final int CLOSED=0,OPEN=1,HALF_OPEN=2;
+    private int failureThreshold = 5;
+    private long openDurationMillis = 5000;
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong openedAt = new AtomicLong();
+    private ReconnectMetrics metrics = ReconnectMetrics.GLOBAL;
+
+    public RedisCircuitBreaker setFailureThreshold(int failureThreshold){
+        this.failureThreshold = Math.max(1,failureThreshold);
+        return this;
+    }
+
+    public RedisCircuitBreaker setOpenDurationMillis(long openDurationMillis){
+        this.openDurationMillis = openDurationMillis;
+        return this;
+    }
+
+    public RedisCircuitBreaker setMetrics(ReconnectMetrics metrics){
+        this.metrics = metrics;
+        return this;
+    }
+
+    public int getState(){
+        return state.get();
+    }
+
+    public boolean allowRequest(){
+        int current = state.get();
+        if(current==CLOSED){
+            return true;
+        }
+        long since = openedAt.get();
+        long now = System.currentTimeMillis();
+        // only the caller that wins this race gets to probe the server - openedAt then restarts the wait for its outcome:
+        if(now-since>=openDurationMillis && openedAt.compareAndSet(since,now)){
+            state.compareAndSet(OPEN,HALF_OPEN);
+            return true;
+        }
+        metrics.recordRejectedWhileOpen();
+        return false;
+    }
+
+    public void recordSuccess(){
+        consecutiveFailures.set(0);
+        if(state.getAndSet(CLOSED)!=CLOSED){
+            metrics.recordCircuitClosed();
+            System.out.println("RedisCircuitBreaker: connection to redis restored - circuit closed");
+        }
+    }
+
+    public void recordFailure(){
+        int failures = consecutiveFailures.incrementAndGet();
+        int current = state.get();
+        if((current==HALF_OPEN || (current==CLOSED && failures>=failureThreshold)) && state.compareAndSet(current,OPEN)){
+            openedAt.set(System.currentTimeMillis());
+            metrics.recordCircuitOpened();
+            System.out.println("RedisCircuitBreaker: "+failures+" consecutive connection failures - circuit open for "+openDurationMillis+" millis");
+        }
+    }
+}
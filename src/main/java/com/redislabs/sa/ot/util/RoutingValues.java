@@ -0,0 +1,19 @@
+package com.redislabs.sa.ot.util;
+
+/**
+ * Every key of a customer (stream, document, checkpoint, doorbell...) ends with the routing value as a hash tag:
+ *  X:rouws::0000000037{37}  customer_order_history:X:rouws::0000000037{37}
+ * so all of them live in the same slot - this is the one place that reads it back from a key name
+ */
+public class RoutingValues {
+
+    private RoutingValues(){
+    }
+
+    // "X:rouws::0000000037{37}" -> "37" - an empty string when the key has no hash tag
+    public static String routingValueOf(String keyName){
+        int open = keyName.lastIndexOf('{');
+        int close = keyName.lastIndexOf('}');
+        return (open>=0 && close>open) ? keyName.substring(open+1, close) : "";
+    }
+}
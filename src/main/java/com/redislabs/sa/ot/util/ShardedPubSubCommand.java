@@ -0,0 +1,23 @@
+package com.redislabs.sa.ot.util;
+
+import redis.clients.jedis.commands.ProtocolCommand;
+import redis.clients.jedis.util.SafeEncoder;
+
+/**
+ * Sharded Pub/Sub (redis 7) is not part of the Jedis 4.3.1 API - these are sent with sendCommand instead
+ * A sharded channel lives in the slot of its name (hash tags apply) so a publish only touches the shard owning that slot
+ */
+public enum ShardedPubSubCommand implements ProtocolCommand {
+    SPUBLISH, SSUBSCRIBE, SUNSUBSCRIBE;
+
+    private final byte[] raw;
+
+    ShardedPubSubCommand(){
+        this.raw = SafeEncoder.encode(name());
+    }
+
+    @Override
+    public byte[] getRaw() {
+        return raw;
+    }
+}